@@ -0,0 +1,292 @@
+package com.examples.helloguice;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+
+/**
+ * Uses the Class Data Sharing of the JVM to reduce the class loading time of
+ * the creation of an injector; these tests run only on Linux.
+ *
+ * With Java 8, only the classes of the JDK are archived; application classes
+ * (Guice and our modules) are archived since Java 10 (AppCDS), provided the
+ * classpath only contains jars: the directories of the classpath of the tests
+ * are packed in jars first.
+ */
+public class AppCdsGuiceLearningTest {
+
+	@Singleton
+	static class MyParam {
+
+	}
+
+	static interface MyInterface {
+
+	}
+
+	static class MyImplementation implements MyInterface {
+
+	}
+
+	static class MyClass {
+		private MyParam myParam;
+
+		@Inject
+		public MyClass(MyInterface field, MyParam myParam) {
+			this.myParam = myParam;
+		}
+
+		public MyParam getMyParam() {
+			return myParam;
+		}
+	}
+
+	static class MyFactory {
+		@Inject
+		private Injector parentInjector;
+
+		public <T> T create(Class<T> type, MyParam myParam) {
+			return parentInjector.createChildInjector(new AbstractModule() {
+				@Override
+				protected void configure() {
+					bind(MyParam.class).toInstance(myParam);
+				}
+			}).getInstance(type);
+		}
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyInterface.class).to(MyImplementation.class);
+		}
+
+	}
+
+	/**
+	 * The training run: creates an injector with the given modules and uses
+	 * {@link MyFactory}, so that also the classes loaded lazily (like the
+	 * anonymous module in {@link MyFactory#create(Class, MyParam)}) end up in
+	 * the class list.
+	 */
+	public static class TrainingRun {
+
+		public static void main(String[] moduleClassNames) throws ReflectiveOperationException {
+			List<Module> modules = new ArrayList<>();
+			for (String moduleClassName : moduleClassNames) {
+				modules.add((Module) Class.forName(moduleClassName).newInstance());
+			}
+			Injector injector = Guice.createInjector(modules);
+			injector.getInstance(MyFactory.class).create(MyClass.class, new MyParam());
+		}
+
+	}
+
+	/**
+	 * Runs a main class in a new JVM, with the same java and classpath as the
+	 * current one (with its directories packed in jars), to generate a class
+	 * list, to dump a CDS archive from it and to measure the startup time with
+	 * and without the archive.
+	 */
+	static class AppCdsTool {
+
+		private final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+				+ "java";
+
+		private final String classpath;
+
+		private final File workDir;
+
+		public AppCdsTool(File workDir) throws IOException {
+			this.workDir = workDir;
+			this.classpath = jarClassPath(System.getProperty("java.class.path"), workDir);
+		}
+
+		/**
+		 * @return the given classpath, where each directory is replaced by a jar
+		 *         with its content, in the given directory, and empty or missing
+		 *         directories are removed
+		 */
+		static String jarClassPath(String classpath, File jarDir) throws IOException {
+			List<String> entries = new ArrayList<>();
+			for (String entry : classpath.split(File.pathSeparator)) {
+				File file = new File(entry);
+				if (entry.isEmpty() || !file.exists()) {
+					continue;
+				}
+				if (!file.isDirectory()) {
+					entries.add(entry);
+					continue;
+				}
+				Path root = file.toPath();
+				List<Path> files;
+				try (Stream<Path> walk = Files.walk(root)) {
+					files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+				}
+				if (files.isEmpty()) {
+					continue;
+				}
+				File jar = new File(jarDir, entries.size() + "-" + file.getName() + ".jar");
+				try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+					for (Path path : files) {
+						out.putNextEntry(new JarEntry(root.relativize(path).toString().replace(File.separatorChar, '/')));
+						Files.copy(path, out);
+						out.closeEntry();
+					}
+				}
+				entries.add(jar.getAbsolutePath());
+			}
+			return String.join(File.pathSeparator, entries);
+		}
+
+		public static boolean isSupported() {
+			return System.getProperty("os.name").toLowerCase().contains("linux");
+		}
+
+		private static boolean isJava8() {
+			return System.getProperty("java.specification.version").startsWith("1.");
+		}
+
+		public File generateClassList(Class<?> mainClass, String... args) throws IOException, InterruptedException {
+			File classList = new File(workDir, "classes.lst");
+			run(Arrays.asList("-XX:DumpLoadedClassList=" + classList.getAbsolutePath(), "-cp", classpath,
+				mainClass.getName()), args);
+			return classList;
+		}
+
+		/**
+		 * @return true if the class is loaded from the archive when the main class
+		 *         runs with it; only Java 9 and later can log it
+		 */
+		public boolean isLoadedFromArchive(File archive, String className, Class<?> mainClass, String... args)
+				throws IOException, InterruptedException {
+			String output = run(Arrays.asList("-Xshare:on", "-XX:SharedArchiveFile=" + archive.getAbsolutePath(),
+				"-Xlog:class+load=info", "-cp", classpath, mainClass.getName()), args);
+			return output.contains(" " + className + " source: shared objects file");
+		}
+
+		public File dumpArchive(File classList) throws IOException, InterruptedException {
+			File archive = new File(workDir, "app.jsa");
+			run(Arrays.asList("-Xshare:dump", "-XX:SharedClassListFile=" + classList.getAbsolutePath(),
+				"-XX:SharedArchiveFile=" + archive.getAbsolutePath(), "-cp", classpath));
+			return archive;
+		}
+
+		/**
+		 * @param archive
+		 *            if null the main class runs with the default class data sharing
+		 *            of the JVM (the shared archive of the JDK, if there is one),
+		 *            otherwise the archive must be used (-Xshare:on)
+		 * @return the best wall-clock time, in milliseconds, of the given number of
+		 *         runs
+		 */
+		public long startup(File archive, int runs, Class<?> mainClass, String... args)
+				throws IOException, InterruptedException {
+			List<String> options = new ArrayList<>();
+			if (archive != null) {
+				options.add("-Xshare:on");
+				options.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+			}
+			options.addAll(Arrays.asList("-cp", classpath, mainClass.getName()));
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < runs; ++i) {
+				long start = System.nanoTime();
+				run(options, args);
+				best = Math.min(best, (System.nanoTime() - start) / 1000000);
+			}
+			return best;
+		}
+
+		/**
+		 * @return the output of the JVM
+		 */
+		private String run(List<String> options, String... args) throws IOException, InterruptedException {
+			List<String> command = new ArrayList<>();
+			command.add(java);
+			if (isJava8()) {
+				// SharedArchiveFile is a diagnostic option in Java 8
+				command.add("-XX:+UnlockDiagnosticVMOptions");
+			}
+			command.addAll(options);
+			Collections.addAll(command, args);
+			File output = new File(workDir, "output.txt");
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(output).start();
+			int exitCode = process.waitFor();
+			String result = new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8);
+			if (exitCode != 0) {
+				throw new IllegalStateException(command + " failed:\n" + result);
+			}
+			return result;
+		}
+
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testClassListContainsGuiceAndModuleClasses() throws Exception {
+		assumeTrue(AppCdsTool.isSupported());
+		AppCdsTool tool = new AppCdsTool(folder.getRoot());
+		File classList = tool.generateClassList(TrainingRun.class, MyModule.class.getName());
+		List<String> classes = Files.readAllLines(classList.toPath(), StandardCharsets.UTF_8);
+		assertTrue(classes.contains("java/lang/Object"));
+		if (!AppCdsTool.isJava8()) {
+			// Java 8 only lists the classes of the JDK
+			assertTrue(classes.contains("com/google/inject/internal/InjectorImpl"));
+			assertTrue(classes.contains(MyFactory.class.getName().replace('.', '/') + "$1"));
+		}
+	}
+
+	@Test
+	public void testStartupWithAndWithoutArchive() throws Exception {
+		assumeTrue(AppCdsTool.isSupported());
+		AppCdsTool tool = new AppCdsTool(folder.getRoot());
+		String module = MyModule.class.getName();
+		File archive = tool.dumpArchive(tool.generateClassList(TrainingRun.class, module));
+		assertTrue(archive.length() > 0);
+		if (!AppCdsTool.isJava8()) {
+			// the classes of Guice and of the tests come from the archive
+			assertTrue(tool.isLoadedFromArchive(archive, Guice.class.getName(), TrainingRun.class, module));
+			assertTrue(tool.isLoadedFromArchive(archive, MyFactory.class.getName(), TrainingRun.class, module));
+		}
+		// the baseline is the default of the JVM, which already shares the
+		// classes of the JDK archive when the JDK ships one
+		long without = tool.startup(null, 5, TrainingRun.class, module);
+		// -Xshare:on makes the run fail if the archive cannot be used
+		long with = tool.startup(archive, 5, TrainingRun.class, module);
+		System.out.println(String.format("injector startup: %d ms with the default CDS, %d ms with our archive",
+			without, with));
+		// the gain depends on the JVM and on the machine, so we only check that
+		// the archive does not make the startup slower, with a margin for noise
+		assertTrue(with + " ms with the archive, " + without + " ms without",
+			with <= without * 1.25 + 50);
+	}
+
+}
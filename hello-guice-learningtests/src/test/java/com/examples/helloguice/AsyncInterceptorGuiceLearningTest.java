@@ -0,0 +1,652 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Scope;
+import com.google.inject.ScopeAnnotation;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.name.Names;
+
+public class AsyncInterceptorGuiceLearningTest {
+
+	/**
+	 * The annotated method, which must return void or a
+	 * {@link CompletableFuture}, is executed by {@link AsyncModule} in the
+	 * executor with the given name.
+	 */
+	@Target(METHOD)
+	@Retention(RUNTIME)
+	static @interface Async {
+		String value() default "default";
+	}
+
+	@Target({ TYPE, METHOD })
+	@Retention(RUNTIME)
+	@ScopeAnnotation
+	static @interface FactoryParameterScoped {
+
+	}
+
+	@FactoryParameterScoped
+	static class MyParam {
+
+	}
+
+	/**
+	 * The FactoryScope of {@link CustomScopeGuiceLearningTest}, with the
+	 * possibility of entering the scope with the parameters of another thread.
+	 */
+	static class FactoryScope implements Scope {
+
+		private final ThreadLocal<ArrayDeque<Map<Key<?>, Object>>> parametersStack = new ThreadLocal<ArrayDeque<Map<Key<?>, Object>>>() {
+			@Override
+			protected ArrayDeque<Map<Key<?>, Object>> initialValue() {
+				return new ArrayDeque<>();
+			}
+		};
+
+		@Override
+		public <T> Provider<T> scope(final Key<T> key, final Provider<T> unscoped) {
+			return new Provider<T>() {
+				@Override
+				public T get() {
+					@SuppressWarnings("unchecked")
+					T toReturn = (T) parametersStack.get().peek().get(key);
+					return toReturn;
+				}
+			};
+		}
+
+		public void enter() {
+			parametersStack.get().push(new HashMap<>());
+		}
+
+		public void enter(Map<Key<?>, Object> parameters) {
+			parametersStack.get().push(new HashMap<>(parameters));
+		}
+
+		public void leave() {
+			parametersStack.get().pop();
+		}
+
+		public void addParameter(Object o) {
+			parametersStack.get().peek().put(Key.get(o.getClass()), o);
+		}
+
+		/**
+		 * @return the parameters of the current thread, or null if it is not in
+		 *         the scope
+		 */
+		public Map<Key<?>, Object> getParameters() {
+			return parametersStack.get().peek();
+		}
+
+	}
+
+	static class GenericFactory {
+		@Inject
+		private Injector injector;
+
+		@Inject
+		private FactoryScope scope;
+
+		public <T> T create(Class<T> type, Object... parameters) {
+			try {
+				scope.enter();
+				for (Object parameter : parameters) {
+					scope.addParameter(parameter);
+				}
+				return injector.getInstance(type);
+			} finally {
+				scope.leave();
+			}
+		}
+	}
+
+	static class MyService {
+		final List<String> threads = new ArrayList<>();
+
+		@Async
+		public void log(String message, CountDownLatch done) {
+			synchronized (threads) {
+				threads.add(Thread.currentThread().getName() + " " + message);
+			}
+			done.countDown();
+		}
+
+		@Async("background")
+		public CompletableFuture<String> compute(int value) {
+			if (value < 0) {
+				throw new IllegalArgumentException("negative value " + value);
+			}
+			return CompletableFuture.completedFuture(Thread.currentThread().getName() + " " + value);
+		}
+
+		@Async("single")
+		public CompletableFuture<Void> await(CountDownLatch latch) throws InterruptedException {
+			latch.await();
+			return CompletableFuture.completedFuture(null);
+		}
+	}
+
+	static class MyParamService {
+		@Inject
+		private Provider<MyParam> myParamProvider;
+
+		@Async
+		public CompletableFuture<MyParam> getMyParam() {
+			return CompletableFuture.completedFuture(myParamProvider.get());
+		}
+
+		@Async("single")
+		public CompletableFuture<MyParam> getMyParamAfter(CountDownLatch latch) throws InterruptedException {
+			latch.await();
+			return CompletableFuture.completedFuture(myParamProvider.get());
+		}
+	}
+
+	/**
+	 * Calls an {@link Async} method while it is created.
+	 */
+	static class MyClass {
+		private CompletableFuture<MyParam> myParam;
+
+		@Inject
+		public MyClass(MyParamService service) {
+			myParam = service.getMyParam();
+		}
+
+		public CompletableFuture<MyParam> getMyParam() {
+			return myParam;
+		}
+	}
+
+	/**
+	 * A task that must be told when an executor discards it.
+	 */
+	static interface DiscardableTask extends Runnable {
+		void discarded(RejectedExecutionException e);
+	}
+
+	/**
+	 * A {@link ThreadPoolExecutor} with a bounded queue, with daemon threads,
+	 * that records the depth of the queue, the time tasks wait in it, and the
+	 * rejected tasks.
+	 *
+	 * When the policy is a {@link ThreadPoolExecutor.DiscardPolicy} or a
+	 * {@link ThreadPoolExecutor.DiscardOldestPolicy}, the discarded task, if it
+	 * is a {@link DiscardableTask}, is notified, so that whoever waits for it
+	 * does not wait forever.
+	 */
+	static class InstrumentedExecutor extends ThreadPoolExecutor {
+
+		private static class QueuedTask implements Runnable {
+			private final Runnable task;
+			private final long queued = System.nanoTime();
+
+			QueuedTask(Runnable task) {
+				this.task = task;
+			}
+
+			@Override
+			public void run() {
+				task.run();
+			}
+		}
+
+		private final AtomicInteger maxQueueDepth = new AtomicInteger();
+		private final LongAdder executed = new LongAdder();
+		private final LongAdder waitNanos = new LongAdder();
+		private final AtomicLong maxWaitNanos = new AtomicLong();
+		private final LongAdder rejected = new LongAdder();
+
+		public InstrumentedExecutor(String name, int threads, int queueCapacity, RejectedExecutionHandler policy) {
+			super(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity));
+			AtomicInteger count = new AtomicInteger();
+			setThreadFactory(r -> {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			setRejectedExecutionHandler((r, executor) -> {
+				rejected.increment();
+				if (policy instanceof ThreadPoolExecutor.DiscardPolicy) {
+					discarded(r);
+				} else if (policy instanceof ThreadPoolExecutor.DiscardOldestPolicy) {
+					// as the policy does, but notifying the discarded task
+					if (!executor.isShutdown()) {
+						Runnable oldest = executor.getQueue().poll();
+						if (oldest != null) {
+							discarded(oldest);
+						}
+						super.execute(r);
+					} else {
+						discarded(r);
+					}
+				} else {
+					policy.rejectedExecution(r, executor);
+				}
+			});
+		}
+
+		private void discarded(Runnable r) {
+			Runnable task = r instanceof QueuedTask ? ((QueuedTask) r).task : r;
+			if (task instanceof DiscardableTask) {
+				((DiscardableTask) task).discarded(new RejectedExecutionException("Discarded by " + this));
+			}
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			super.execute(new QueuedTask(command));
+			maxQueueDepth.accumulateAndGet(getQueue().size(), Math::max);
+		}
+
+		@Override
+		protected void beforeExecute(Thread t, Runnable r) {
+			long waited = System.nanoTime() - ((QueuedTask) r).queued;
+			executed.increment();
+			waitNanos.add(waited);
+			maxWaitNanos.accumulateAndGet(waited, Math::max);
+		}
+
+		public int getQueueDepth() {
+			return getQueue().size();
+		}
+
+		public int getMaxQueueDepth() {
+			return maxQueueDepth.get();
+		}
+
+		public long getMeanWaitNanos() {
+			long n = executed.sum();
+			return n == 0 ? 0 : waitNanos.sum() / n;
+		}
+
+		public long getMaxWaitNanos() {
+			return maxWaitNanos.get();
+		}
+
+		public long getRejected() {
+			return rejected.sum();
+		}
+
+	}
+
+	/**
+	 * Executes a method in the named executor, after entering the
+	 * {@link FactoryScope}, if bound, with the parameters of the calling thread.
+	 *
+	 * The parameters are copied in the calling thread, which may change them
+	 * while the method is waiting in the queue of the executor.
+	 *
+	 * If the executor rejects the call, the caller gets a
+	 * {@link RejectedExecutionException}, unless the policy is different; if
+	 * the call of a method returning a {@link CompletableFuture} is discarded,
+	 * the future is completed exceptionally with a
+	 * {@link RejectedExecutionException}; an exception thrown by a method
+	 * returning a {@link CompletableFuture} completes the future exceptionally,
+	 * while the one of a void method is handled by the uncaught exception
+	 * handler of the worker thread.
+	 */
+	static class AsyncInterceptor implements MethodInterceptor {
+
+		@Inject
+		private Injector injector;
+
+		private final Map<Method, ExecutorService> executors = new ConcurrentHashMap<>();
+
+		private volatile FactoryScope scope;
+
+		@Inject
+		void initScope() {
+			Binding<FactoryScope> binding = injector.getExistingBinding(Key.get(FactoryScope.class));
+			scope = binding == null ? null : binding.getProvider().get();
+		}
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			ExecutorService executor = executorOf(invocation.getMethod());
+			Map<Key<?>, Object> current = scope == null ? null : scope.getParameters();
+			Map<Key<?>, Object> parameters = current == null ? null : new HashMap<>(current);
+			if (invocation.getMethod().getReturnType() == void.class) {
+				executor.execute(() -> {
+					try {
+						proceed(invocation, parameters);
+					} catch (RuntimeException | Error e) {
+						throw e;
+					} catch (Throwable e) {
+						throw new IllegalStateException(e);
+					}
+				});
+				return null;
+			}
+			CompletableFuture<Object> result = new CompletableFuture<>();
+			executor.execute(new DiscardableTask() {
+				@Override
+				public void run() {
+					try {
+						((CompletableFuture<?>) proceed(invocation, parameters)).whenComplete((value, e) -> {
+							if (e != null) {
+								result.completeExceptionally(e);
+							} else {
+								result.complete(value);
+							}
+						});
+					} catch (Throwable e) {
+						result.completeExceptionally(e);
+					}
+				}
+
+				@Override
+				public void discarded(RejectedExecutionException e) {
+					result.completeExceptionally(e);
+				}
+			});
+			return result;
+		}
+
+		private Object proceed(MethodInvocation invocation, Map<Key<?>, Object> parameters) throws Throwable {
+			if (parameters == null) {
+				return invocation.proceed();
+			}
+			scope.enter(parameters);
+			try {
+				return invocation.proceed();
+			} finally {
+				scope.leave();
+			}
+		}
+
+		private ExecutorService executorOf(Method method) {
+			ExecutorService executor = executors.get(method);
+			if (executor == null) {
+				Class<?> returnType = method.getReturnType();
+				if (returnType != void.class && returnType != CompletableFuture.class) {
+					throw new IllegalStateException(method + " must return void or a CompletableFuture");
+				}
+				executor = injector.getInstance(
+					Key.get(ExecutorService.class, Names.named(method.getAnnotation(Async.class).value())));
+				executors.put(method, executor);
+			}
+			return executor;
+		}
+
+	}
+
+	/**
+	 * Binds the executors, by name, and intercepts the methods annotated with
+	 * {@link Async}; an executor named "default" is always bound.
+	 *
+	 * The threads of the executors are daemon threads, so they do not prevent
+	 * the JVM from exiting; {@link #shutdown()} stops them.
+	 */
+	static class AsyncModule extends AbstractModule {
+
+		private final Map<String, InstrumentedExecutor> executors = new HashMap<>();
+
+		public AsyncModule() {
+			executor("default", Runtime.getRuntime().availableProcessors(), 1000,
+				new ThreadPoolExecutor.AbortPolicy());
+		}
+
+		public AsyncModule executor(String name, int threads, int queueCapacity, RejectedExecutionHandler policy) {
+			executors.put(name, new InstrumentedExecutor(name, threads, queueCapacity, policy));
+			return this;
+		}
+
+		/**
+		 * Shuts down the executors: the calls already submitted are executed,
+		 * the new ones are rejected.
+		 */
+		public void shutdown() {
+			executors.values().forEach(ExecutorService::shutdown);
+		}
+
+		@Override
+		protected void configure() {
+			for (Map.Entry<String, InstrumentedExecutor> entry : executors.entrySet()) {
+				bind(ExecutorService.class).annotatedWith(Names.named(entry.getKey())).toInstance(entry.getValue());
+				bind(InstrumentedExecutor.class).annotatedWith(Names.named(entry.getKey()))
+					.toInstance(entry.getValue());
+			}
+			AsyncInterceptor interceptor = new AsyncInterceptor();
+			requestInjection(interceptor);
+			bindInterceptor(Matchers.any(), Matchers.annotatedWith(Async.class), interceptor);
+		}
+
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			FactoryScope scope = new FactoryScope();
+			bindScope(FactoryParameterScoped.class, scope);
+			bind(FactoryScope.class).toInstance(scope);
+		}
+
+	}
+
+	private static AsyncModule asyncModule() {
+		return new AsyncModule()
+			.executor("background", 2, 10, new ThreadPoolExecutor.CallerRunsPolicy())
+			.executor("single", 1, 1, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	@Test
+	public void testVoidMethodIsExecutedInTheDefaultExecutor() throws InterruptedException {
+		Injector injector = Guice.createInjector(new MyModule(), asyncModule());
+		MyService service = injector.getInstance(MyService.class);
+		CountDownLatch done = new CountDownLatch(1);
+		service.log("hello", done);
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		assertTrue(service.threads.get(0).matches("default-\\d+ hello"));
+	}
+
+	@Test
+	public void testFutureIsCompletedByTheNamedExecutor() throws Exception {
+		Injector injector = Guice.createInjector(new MyModule(), asyncModule());
+		MyService service = injector.getInstance(MyService.class);
+		assertTrue(service.compute(1).get().matches("background-\\d+ 1"));
+		try {
+			service.compute(-1).get();
+			fail();
+		} catch (ExecutionException e) {
+			assertEquals("negative value -1", e.getCause().getMessage());
+		}
+		assertEquals(2,
+			injector.getInstance(Key.get(InstrumentedExecutor.class, Names.named("background"))).getTaskCount());
+	}
+
+	@Test
+	public void testFactoryScopeParametersArePropagated() throws Exception {
+		Injector injector = Guice.createInjector(new MyModule(), asyncModule());
+		MyParamService service = injector.getInstance(MyParamService.class);
+		FactoryScope scope = injector.getInstance(FactoryScope.class);
+		MyParam myParam = new MyParam();
+		scope.enter();
+		CompletableFuture<MyParam> future;
+		try {
+			scope.addParameter(myParam);
+			future = service.getMyParam();
+		} finally {
+			scope.leave();
+		}
+		assertSame(myParam, future.get());
+		// also when called during the creation with the GenericFactory
+		MyParam other = new MyParam();
+		assertSame(other, injector.getInstance(GenericFactory.class).create(MyClass.class, other).getMyParam().get());
+	}
+
+	@Test
+	public void testParametersAreCopiedWhenTheMethodIsCalled() throws Exception {
+		Injector injector = Guice.createInjector(new MyModule(), asyncModule());
+		MyParamService service = injector.getInstance(MyParamService.class);
+		FactoryScope scope = injector.getInstance(FactoryScope.class);
+		MyParam myParam = new MyParam();
+		CountDownLatch latch = new CountDownLatch(1);
+		CompletableFuture<MyParam> future;
+		scope.enter();
+		try {
+			scope.addParameter(myParam);
+			future = service.getMyParamAfter(latch);
+			// while the call is still running, the caller changes its parameters
+			scope.addParameter(new MyParam());
+		} finally {
+			scope.leave();
+		}
+		latch.countDown();
+		assertSame(myParam, future.get(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testWithoutFactoryScope() throws Exception {
+		Injector injector = Guice.createInjector(asyncModule());
+		assertTrue(injector.getInstance(MyService.class).compute(1).get().matches("background-\\d+ 1"));
+	}
+
+	@Test
+	public void testBoundedQueueRejectsAndRecordsMetrics() throws Exception {
+		Injector injector = Guice.createInjector(new MyModule(), asyncModule());
+		MyService service = injector.getInstance(MyService.class);
+		InstrumentedExecutor executor = injector.getInstance(Key.get(InstrumentedExecutor.class, Names.named("single")));
+		CountDownLatch latch = new CountDownLatch(1);
+		// the first call is executed, and blocks the only thread
+		CompletableFuture<Void> first = service.await(latch);
+		while (executor.getActiveCount() == 0) {
+			Thread.sleep(1);
+		}
+		// the second one is queued
+		CompletableFuture<Void> second = service.await(latch);
+		assertEquals(1, executor.getQueueDepth());
+		try {
+			service.await(latch);
+			fail();
+		} catch (RejectedExecutionException e) {
+			assertEquals(1, executor.getRejected());
+		}
+		Thread.sleep(10);
+		latch.countDown();
+		assertNull(first.get());
+		assertNull(second.get());
+		assertEquals(1, executor.getMaxQueueDepth());
+		assertTrue(executor.getMaxWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(10));
+		assertTrue(executor.getMeanWaitNanos() > 0);
+	}
+
+	@Test
+	public void testDiscardedCallsCompleteTheFutureExceptionally() throws Exception {
+		AsyncModule module = new AsyncModule()
+			.executor("single", 1, 1, new ThreadPoolExecutor.DiscardPolicy());
+		Injector injector = Guice.createInjector(new MyModule(), module);
+		try {
+			MyService service = injector.getInstance(MyService.class);
+			InstrumentedExecutor executor = injector
+				.getInstance(Key.get(InstrumentedExecutor.class, Names.named("single")));
+			CountDownLatch latch = new CountDownLatch(1);
+			CompletableFuture<Void> first = service.await(latch);
+			while (executor.getActiveCount() == 0) {
+				Thread.sleep(1);
+			}
+			CompletableFuture<Void> second = service.await(latch);
+			// the queue is full: the third call is discarded
+			CompletableFuture<Void> third = service.await(latch);
+			assertRejected(third);
+			latch.countDown();
+			assertNull(first.get(1, TimeUnit.SECONDS));
+			assertNull(second.get(1, TimeUnit.SECONDS));
+		} finally {
+			module.shutdown();
+		}
+	}
+
+	@Test
+	public void testDiscardedOldestCallsCompleteTheFutureExceptionally() throws Exception {
+		AsyncModule module = new AsyncModule()
+			.executor("single", 1, 1, new ThreadPoolExecutor.DiscardOldestPolicy());
+		Injector injector = Guice.createInjector(new MyModule(), module);
+		try {
+			MyService service = injector.getInstance(MyService.class);
+			InstrumentedExecutor executor = injector
+				.getInstance(Key.get(InstrumentedExecutor.class, Names.named("single")));
+			CountDownLatch latch = new CountDownLatch(1);
+			CompletableFuture<Void> first = service.await(latch);
+			while (executor.getActiveCount() == 0) {
+				Thread.sleep(1);
+			}
+			CompletableFuture<Void> second = service.await(latch);
+			// the queue is full: the second call, the oldest in the queue, is
+			// discarded to make room for the third one
+			CompletableFuture<Void> third = service.await(latch);
+			assertRejected(second);
+			latch.countDown();
+			assertNull(first.get(1, TimeUnit.SECONDS));
+			assertNull(third.get(1, TimeUnit.SECONDS));
+		} finally {
+			module.shutdown();
+		}
+	}
+
+	private static void assertRejected(CompletableFuture<?> future) throws Exception {
+		try {
+			future.get(1, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+	}
+
+	@Test
+	public void testShutdownStopsTheExecutors() throws Exception {
+		AsyncModule module = asyncModule();
+		Injector injector = Guice.createInjector(new MyModule(), module);
+		assertTrue(injector.getInstance(MyService.class).compute(1).get().matches("background-\\d+ 1"));
+		module.shutdown();
+		for (String name : new String[] { "default", "background", "single" }) {
+			assertTrue(injector.getInstance(Key.get(ExecutorService.class, Names.named(name)))
+				.awaitTermination(1, TimeUnit.SECONDS));
+		}
+	}
+
+}
@@ -0,0 +1,433 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.inject.Inject;
+
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.OutOfScopeException;
+import com.google.inject.ProvisionException;
+import com.google.inject.Provider;
+import com.google.inject.Scope;
+import com.google.inject.ScopeAnnotation;
+import com.google.inject.Scopes;
+import com.google.inject.Singleton;
+import com.google.inject.name.Names;
+
+public class BatchScopeGuiceLearningTest {
+
+	/**
+	 * Scope annotation for instances shared among the records of a chunk
+	 * processed by a batch job, and disposed at its end.
+	 */
+	@Target({ TYPE, METHOD })
+	@Retention(RUNTIME)
+	@ScopeAnnotation
+	static @interface BatchScoped {
+
+	}
+
+	/**
+	 * The order in which resources are closed.
+	 */
+	static final List<String> closed = Collections.synchronizedList(new ArrayList<>());
+
+	@BatchScoped
+	static class MyConnection implements AutoCloseable {
+
+		@Override
+		public void close() {
+			closed.add("MyConnection");
+		}
+	}
+
+	@BatchScoped
+	static class MyRepository implements AutoCloseable {
+		private MyConnection myConnection;
+
+		@Inject
+		public MyRepository(MyConnection myConnection) {
+			this.myConnection = myConnection;
+		}
+
+		public MyConnection getMyConnection() {
+			return myConnection;
+		}
+
+		@Override
+		public void close() {
+			closed.add("MyRepository");
+		}
+	}
+
+	@BatchScoped
+	static class MyFailingResource implements AutoCloseable {
+
+		@Override
+		public void close() throws Exception {
+			closed.add("MyFailingResource");
+			throw new Exception("cannot close");
+		}
+	}
+
+	static interface MyInterface {
+
+	}
+
+	@Singleton
+	static class MyImplementation implements MyInterface {
+
+	}
+
+	static class MyClass {
+		@Inject
+		MyRepository myRepository;
+
+		@Inject
+		MyConnection myConnection;
+
+		@Inject
+		MyInterface myInterface;
+	}
+
+	/**
+	 * The instances of a batch, stored in an open-addressing table with linear
+	 * probing: the keys and the instances are in two parallel arrays, whose
+	 * length is a power of two kept at least twice the number of entries, and
+	 * the lookup of a key only compares the keys in the slots following its
+	 * hash, with no node to allocate or to dereference.
+	 */
+	static class BatchTable {
+
+		private Key<?>[] keys = new Key<?>[16];
+
+		private Object[] values = new Object[16];
+
+		private int size;
+
+		/**
+		 * @return null if there is no instance for the key
+		 */
+		public Object get(Key<?> key, int hash) {
+			int mask = keys.length - 1;
+			for (int i = hash & mask;; i = (i + 1) & mask) {
+				Key<?> k = keys[i];
+				if (k == null) {
+					return null;
+				}
+				if (k == key || k.equals(key)) {
+					return values[i];
+				}
+			}
+		}
+
+		public void put(Key<?> key, int hash, Object value) {
+			if ((size + 1) * 2 > keys.length) {
+				resize();
+			}
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			while (keys[i] != null) {
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			values[i] = value;
+			++size;
+		}
+
+		private void resize() {
+			Key<?>[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new Key<?>[oldKeys.length * 2];
+			values = new Object[oldKeys.length * 2];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; ++i) {
+				if (oldKeys[i] != null) {
+					put(oldKeys[i], spread(oldKeys[i].hashCode()), oldValues[i]);
+				}
+			}
+		}
+
+		static int spread(int hash) {
+			return hash ^ (hash >>> 16);
+		}
+
+	}
+
+	/**
+	 * Each thread processes its own batch, started with {@link #enterBatch()}
+	 * and ended with {@link #exitBatch()}: the instances of a key are shared
+	 * within the batch, and created again in the next one.
+	 *
+	 * At the end of a batch the AutoCloseable instances are closed in the
+	 * reverse order of creation, so that an instance is closed before the ones
+	 * it depends on, which were created before it; all of them are closed even
+	 * if some fail.
+	 */
+	static class BatchScope implements Scope {
+
+		private static final Object NULL = new Object();
+
+		static class Batch {
+			final BatchTable table = new BatchTable();
+
+			final List<Object> created = new ArrayList<>();
+		}
+
+		private final ThreadLocal<Batch> current = new ThreadLocal<>();
+
+		@Override
+		public <T> Provider<T> scope(final Key<T> key, final Provider<T> unscoped) {
+			final int hash = BatchTable.spread(key.hashCode());
+			return new Provider<T>() {
+				@Override
+				public T get() {
+					Batch batch = current.get();
+					if (batch == null) {
+						throw new OutOfScopeException("Cannot access " + key + " outside of a batch");
+					}
+					Object instance = batch.table.get(key, hash);
+					if (instance == null) {
+						T created = unscoped.get();
+						if (Scopes.isCircularProxy(created)) {
+							return created;
+						}
+						batch.table.put(key, hash, created == null ? NULL : created);
+						batch.created.add(created);
+						return created;
+					}
+					@SuppressWarnings("unchecked")
+					T toReturn = instance == NULL ? null : (T) instance;
+					return toReturn;
+				}
+
+				@Override
+				public String toString() {
+					return String.format("%s[%s]", unscoped, BatchScope.this);
+				}
+			};
+		}
+
+		public void enterBatch() {
+			if (current.get() != null) {
+				throw new IllegalStateException("A batch is already in progress");
+			}
+			current.set(new Batch());
+		}
+
+		/**
+		 * @return the number of instances created in the batch
+		 */
+		public int exitBatch() {
+			Batch batch = current.get();
+			if (batch == null) {
+				throw new IllegalStateException("No batch in progress");
+			}
+			current.remove();
+			Exception failure = null;
+			for (int i = batch.created.size() - 1; i >= 0; --i) {
+				Object instance = batch.created.get(i);
+				if (instance instanceof AutoCloseable) {
+					try {
+						((AutoCloseable) instance).close();
+					} catch (Exception e) {
+						if (failure == null) {
+							failure = e;
+						} else {
+							failure.addSuppressed(e);
+						}
+					}
+				}
+			}
+			if (failure != null) {
+				throw new IllegalStateException("Cannot dispose the instances of the batch", failure);
+			}
+			return batch.created.size();
+		}
+
+		@Override
+		public String toString() {
+			return "BatchScope";
+		}
+
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			BatchScope scope = new BatchScope();
+			bindScope(BatchScoped.class, scope);
+			bind(BatchScope.class).toInstance(scope);
+			bind(MyInterface.class).to(MyImplementation.class);
+		}
+
+	}
+
+	@Test
+	public void testInstancesAreSharedWithinABatch() {
+		Injector injector = Guice.createInjector(new MyModule());
+		BatchScope scope = injector.getInstance(BatchScope.class);
+		scope.enterBatch();
+		MyClass first = injector.getInstance(MyClass.class);
+		MyClass second = injector.getInstance(MyClass.class);
+		assertNotSame(first, second);
+		assertSame(first.myRepository, second.myRepository);
+		assertSame(first.myConnection, first.myRepository.getMyConnection());
+		scope.exitBatch();
+		scope.enterBatch();
+		MyClass third = injector.getInstance(MyClass.class);
+		assertNotSame(first.myRepository, third.myRepository);
+		assertNotSame(first.myConnection, third.myConnection);
+		// singletons are not affected
+		assertSame(first.myInterface, third.myInterface);
+		scope.exitBatch();
+	}
+
+	@Test
+	public void testOutsideOfABatch() {
+		Injector injector = Guice.createInjector(new MyModule());
+		try {
+			injector.getInstance(MyClass.class);
+			fail();
+		} catch (ProvisionException e) {
+			assertTrue(e.getCause() instanceof OutOfScopeException);
+		}
+		BatchScope scope = injector.getInstance(BatchScope.class);
+		try {
+			scope.exitBatch();
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("No batch in progress", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testDisposalInReverseCreationOrder() {
+		Injector injector = Guice.createInjector(new MyModule());
+		BatchScope scope = injector.getInstance(BatchScope.class);
+		closed.clear();
+		scope.enterBatch();
+		injector.getInstance(MyClass.class);
+		injector.getInstance(MyClass.class);
+		// MyConnection and MyRepository
+		assertEquals(2, scope.exitBatch());
+		assertEquals(Arrays.asList("MyRepository", "MyConnection"), closed);
+	}
+
+	@Test
+	public void testAllInstancesAreDisposedEvenIfSomeFail() {
+		Injector injector = Guice.createInjector(new MyModule());
+		BatchScope scope = injector.getInstance(BatchScope.class);
+		closed.clear();
+		scope.enterBatch();
+		injector.getInstance(MyConnection.class);
+		injector.getInstance(MyFailingResource.class);
+		injector.getInstance(MyRepository.class);
+		try {
+			scope.exitBatch();
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("cannot close", e.getCause().getMessage());
+		}
+		assertEquals(Arrays.asList("MyRepository", "MyFailingResource", "MyConnection"), closed);
+		// the failed batch has been ended anyway
+		scope.enterBatch();
+		scope.exitBatch();
+	}
+
+	@Test
+	public void testBatchesArePerThread() throws Exception {
+		Injector injector = Guice.createInjector(new MyModule());
+		BatchScope scope = injector.getInstance(BatchScope.class);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			List<Future<MyConnection>> futures = new ArrayList<>();
+			for (int i = 0; i < 2; ++i) {
+				futures.add(executor.submit(() -> {
+					scope.enterBatch();
+					try {
+						MyConnection myConnection = injector.getInstance(MyConnection.class);
+						assertSame(myConnection, injector.getInstance(MyRepository.class).getMyConnection());
+						return myConnection;
+					} finally {
+						scope.exitBatch();
+					}
+				}));
+			}
+			assertNotSame(futures.get(0).get(), futures.get(1).get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testTableGrows() {
+		BatchTable table = new BatchTable();
+		List<Key<?>> keys = new ArrayList<>();
+		for (int i = 0; i < 100; ++i) {
+			Key<?> key = Key.get(Integer.class, Names.named("" + i));
+			keys.add(key);
+			table.put(key, BatchTable.spread(key.hashCode()), i);
+		}
+		for (int i = 0; i < 100; ++i) {
+			assertEquals(i, table.get(keys.get(i), BatchTable.spread(keys.get(i).hashCode())));
+		}
+		Key<String> missing = Key.get(String.class);
+		assertEquals(null, table.get(missing, BatchTable.spread(missing.hashCode())));
+	}
+
+	/**
+	 * Compares the time to get a batch scoped instance within a batch with the
+	 * time to get a singleton, after a warm-up; the timings are only printed,
+	 * since they depend on the machine.
+	 */
+	@Test
+	public void testBatchLookupBenchmark() {
+		Injector injector = Guice.createInjector(new MyModule());
+		BatchScope scope = injector.getInstance(BatchScope.class);
+		Provider<MyConnection> batchScoped = injector.getProvider(MyConnection.class);
+		Provider<MyInterface> singleton = injector.getProvider(MyInterface.class);
+		int iterations = 5000000;
+		scope.enterBatch();
+		benchmark(batchScoped, iterations);
+		benchmark(singleton, iterations);
+		long batchNanos = benchmark(batchScoped, iterations);
+		long singletonNanos = benchmark(singleton, iterations);
+		assertEquals(1, scope.exitBatch());
+		System.out.println(String.format("lookup: batch scoped %.1f ns, singleton %.1f ns",
+			(double) batchNanos / iterations, (double) singletonNanos / iterations));
+	}
+
+	private static long benchmark(Provider<?> provider, int iterations) {
+		Object first = provider.get();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i) {
+			assertSame(first, provider.get());
+		}
+		return System.nanoTime() - start;
+	}
+
+}
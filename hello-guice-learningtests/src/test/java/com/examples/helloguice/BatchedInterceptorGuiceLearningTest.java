@@ -0,0 +1,559 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Test;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+import com.google.inject.matcher.Matchers;
+
+public class BatchedInterceptorGuiceLearningTest {
+
+	/**
+	 * The calls to the annotated method, which must take a single argument and
+	 * return a {@link CompletableFuture}, are collected by {@link BatchedModule}
+	 * from all the threads, and sent together to the bulk method of the same
+	 * object, which takes the list of the arguments and returns the list of the
+	 * results, in the same order. A batch is sent when it reaches maxSize calls,
+	 * or maxDelay milliseconds after its first call.
+	 *
+	 * Without the interception, the annotated method is called as usual.
+	 */
+	@Target(METHOD)
+	@Retention(RUNTIME)
+	static @interface Batched {
+		String bulk();
+
+		int maxSize() default 100;
+
+		long maxDelay() default 10;
+	}
+
+	static interface MyBackend {
+		CompletableFuture<String> fetch(int id);
+
+		List<String> fetchAll(List<Integer> ids);
+	}
+
+	/**
+	 * Simulates a client with a single connection to a backend, where each
+	 * request costs a round trip of 1 millisecond, whatever the number of ids.
+	 */
+	@Singleton
+	static class MyBackendClient implements MyBackend {
+		final AtomicInteger requests = new AtomicInteger();
+
+		final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+		@Batched(bulk = "fetchAll", maxSize = 32, maxDelay = 2)
+		@Override
+		public CompletableFuture<String> fetch(int id) {
+			return CompletableFuture.completedFuture(fetchAll(Collections.singletonList(id)).get(0));
+		}
+
+		@Override
+		public synchronized List<String> fetchAll(List<Integer> ids) {
+			requests.incrementAndGet();
+			batchSizes.add(ids.size());
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			List<String> results = new ArrayList<>();
+			for (int id : ids) {
+				if (id < 0) {
+					throw new IllegalArgumentException("negative id " + id);
+				}
+				results.add("value " + id);
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * Sends a batch only when it is full, unless it waits for one second.
+	 */
+	@Singleton
+	static class MyPatientBackendClient extends MyBackendClient {
+		@Batched(bulk = "fetchAll", maxSize = 32, maxDelay = 1000)
+		@Override
+		public CompletableFuture<String> fetch(int id) {
+			return super.fetch(id);
+		}
+	}
+
+	/**
+	 * Its bulk method blocks until it is released.
+	 */
+	@Singleton
+	static class MySlowBackendClient extends MyBackendClient {
+		final CountDownLatch started = new CountDownLatch(1);
+
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public List<String> fetchAll(List<Integer> ids) {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.fetchAll(ids);
+		}
+	}
+
+	/**
+	 * Waits long enough for the calls of a test to be in the same batch, even
+	 * on a loaded machine.
+	 */
+	@Singleton
+	static class MyDelayedBackendClient extends MyBackendClient {
+		@Batched(bulk = "fetchAll", maxSize = 32, maxDelay = 100)
+		@Override
+		public CompletableFuture<String> fetch(int id) {
+			return super.fetch(id);
+		}
+	}
+
+	/**
+	 * Not a singleton, so that its instances can be collected.
+	 */
+	static class MyUnscopedBackendClient extends MyBackendClient {
+
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyBackend.class).to(MyBackendClient.class);
+		}
+
+	}
+
+	/**
+	 * The pending calls to a {@link Batched} method of an object; the batch is
+	 * sent when the call that fills it is made, or when its delay expires,
+	 * measured by the scheduler; in both cases, it is detached under the lock,
+	 * so that it never exceeds maxSize calls, and the bulk method is called in
+	 * the flush executor, so that neither the caller nor the scheduler wait for
+	 * it, and a slow bulk call does not delay the batches of other objects.
+	 *
+	 * The object is given with each call, and only held by the pending batch,
+	 * so that the batcher does not prevent it from being collected.
+	 */
+	static class Batcher {
+
+		private static final class Batch {
+			final Object target;
+
+			final List<Object> arguments = new ArrayList<>();
+
+			final List<CompletableFuture<Object>> futures = new ArrayList<>();
+
+			Batch(Object target) {
+				this.target = target;
+			}
+		}
+
+		private final Method bulk;
+
+		private final Batched batched;
+
+		private final ScheduledExecutorService scheduler;
+
+		private final Executor flushExecutor;
+
+		/**
+		 * The pending batch, or null.
+		 */
+		private Batch current;
+
+		Batcher(Method bulk, Batched batched, ScheduledExecutorService scheduler, Executor flushExecutor) {
+			this.bulk = bulk;
+			this.batched = batched;
+			this.scheduler = scheduler;
+			this.flushExecutor = flushExecutor;
+		}
+
+		CompletableFuture<Object> add(Object target, Object argument) {
+			CompletableFuture<Object> future = new CompletableFuture<>();
+			Batch batch;
+			boolean full;
+			synchronized (this) {
+				boolean first = current == null;
+				if (first) {
+					current = new Batch(target);
+				}
+				batch = current;
+				batch.arguments.add(argument);
+				batch.futures.add(future);
+				full = batch.futures.size() >= batched.maxSize();
+				if (full) {
+					current = null;
+				} else if (first) {
+					scheduler.schedule(() -> flushIfPending(batch), batched.maxDelay(), TimeUnit.MILLISECONDS);
+				}
+			}
+			if (full) {
+				flushLater(batch);
+			}
+			return future;
+		}
+
+		/**
+		 * Sends the given batch, unless it has already been sent because it was
+		 * full.
+		 */
+		private void flushIfPending(Batch batch) {
+			synchronized (this) {
+				if (current != batch) {
+					return;
+				}
+				current = null;
+			}
+			flushLater(batch);
+		}
+
+		private void flushLater(Batch batch) {
+			try {
+				flushExecutor.execute(() -> flush(batch));
+			} catch (RejectedExecutionException e) {
+				for (CompletableFuture<Object> future : batch.futures) {
+					future.completeExceptionally(e);
+				}
+			}
+		}
+
+		private void flush(Batch batch) {
+			try {
+				List<?> results = (List<?>) bulk.invoke(batch.target, batch.arguments);
+				if (results.size() != batch.futures.size()) {
+					throw new IllegalStateException(bulk + " returned " + results.size() + " results for "
+							+ batch.futures.size() + " arguments");
+				}
+				for (int i = 0; i < batch.futures.size(); ++i) {
+					batch.futures.get(i).complete(results.get(i));
+				}
+			} catch (Throwable e) {
+				Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+				for (CompletableFuture<Object> future : batch.futures) {
+					future.completeExceptionally(cause);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Routes the calls to {@link Batched} methods to a {@link Batcher} for each
+	 * method and each object (the objects are weakly referenced, and compared by
+	 * identity; a batcher does not reference its object once its calls are
+	 * sent).
+	 *
+	 * The scheduler and the flush executor use daemon threads, and are shut
+	 * down by {@link #close()}.
+	 */
+	static class BatchedInterceptor implements MethodInterceptor, AutoCloseable {
+
+		private final ConcurrentMap<Method, LoadingCache<Object, Batcher>> batchers = new ConcurrentHashMap<>();
+
+		private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("batched-scheduler-%d").build());
+
+		private final ExecutorService flushExecutor = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("batched-flush-%d").build());
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			Method method = invocation.getMethod();
+			LoadingCache<Object, Batcher> batchersOfMethod = batchers.get(method);
+			if (batchersOfMethod == null) {
+				batchersOfMethod = batchers.computeIfAbsent(method, this::createBatchers);
+			}
+			Object target = invocation.getThis();
+			return batchersOfMethod.getUnchecked(target).add(target, invocation.getArguments()[0]);
+		}
+
+		private LoadingCache<Object, Batcher> createBatchers(Method method) {
+			Batched batched = method.getAnnotation(Batched.class);
+			if (method.getParameterCount() != 1 || method.getReturnType() != CompletableFuture.class) {
+				throw new IllegalStateException(method + " must take one argument and return a CompletableFuture");
+			}
+			Method bulk = findBulk(method.getDeclaringClass(), batched.bulk());
+			if (bulk == null) {
+				throw new IllegalStateException("no bulk method " + batched.bulk() + "(List) for " + method);
+			}
+			bulk.setAccessible(true);
+			return CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Object, Batcher>() {
+				@Override
+				public Batcher load(Object target) {
+					return new Batcher(bulk, batched, scheduler, flushExecutor);
+				}
+			});
+		}
+
+		private static Method findBulk(Class<?> type, String name) {
+			for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+				try {
+					return c.getDeclaredMethod(name, List.class);
+				} catch (NoSuchMethodException e) {
+					// look in the superclass
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Stops the scheduler and the flush executor; the batches already being
+		 * sent are completed, the pending ones are not.
+		 */
+		@Override
+		public void close() {
+			scheduler.shutdownNow();
+			flushExecutor.shutdown();
+		}
+
+		public boolean isClosed() {
+			return scheduler.isShutdown() && flushExecutor.isShutdown();
+		}
+
+	}
+
+	/**
+	 * Intercepts the methods annotated with {@link Batched}; the interceptor is
+	 * also bound, so that it can be closed.
+	 */
+	static class BatchedModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			BatchedInterceptor interceptor = new BatchedInterceptor();
+			bind(BatchedInterceptor.class).toInstance(interceptor);
+			bindInterceptor(Matchers.any(), Matchers.annotatedWith(Batched.class), interceptor);
+		}
+
+	}
+
+	@Test
+	public void testCallsAreSentInBulkWhenTheBatchIsFull() throws Exception {
+		Injector injector = Guice.createInjector(new BatchedModule());
+		MyBackend backend = injector.getInstance(MyPatientBackendClient.class);
+		List<CompletableFuture<String>> futures = new ArrayList<>();
+		for (int i = 0; i < 64; ++i) {
+			futures.add(backend.fetch(i));
+		}
+		for (int i = 0; i < 64; ++i) {
+			assertEquals("value " + i, futures.get(i).get());
+		}
+		// two batches of maxSize calls
+		assertEquals(2, injector.getInstance(MyPatientBackendClient.class).requests.get());
+	}
+
+	@Test
+	public void testConcurrentCallsDoNotExceedMaxSize() throws Exception {
+		Injector injector = Guice.createInjector(new BatchedModule());
+		MyPatientBackendClient backend = injector.getInstance(MyPatientBackendClient.class);
+		int threadCount = 16;
+		int calls = 64;
+		List<CompletableFuture<String>> futures = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < threadCount; ++t) {
+			threads.add(new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				for (int i = 0; i < calls; ++i) {
+					futures.add(backend.fetch(i));
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		for (CompletableFuture<String> future : futures) {
+			future.get(1, TimeUnit.SECONDS);
+		}
+		// all the batches are full, so none waits for maxDelay
+		assertEquals(Collections.nCopies(threadCount * calls / 32, 32), backend.batchSizes);
+	}
+
+	@Test
+	public void testBatchersDoNotRetainTheirObjects() throws Exception {
+		Injector injector = Guice.createInjector(new BatchedModule());
+		MyBackend backend = injector.getInstance(MyUnscopedBackendClient.class);
+		assertEquals("value 1", backend.fetch(1).get(1, TimeUnit.SECONDS));
+		WeakReference<MyBackend> reference = new WeakReference<>(backend);
+		backend = null;
+		for (int i = 0; i < 50 && reference.get() != null; ++i) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(reference.get());
+	}
+
+	@Test
+	public void testPartialBatchIsSentAfterMaxDelay() throws Exception {
+		Injector injector = Guice.createInjector(new BatchedModule());
+		MyDelayedBackendClient backend = injector.getInstance(MyDelayedBackendClient.class);
+		CompletableFuture<String> first = backend.fetch(1);
+		CompletableFuture<String> second = backend.fetch(2);
+		assertEquals("value 1", first.get(1, TimeUnit.SECONDS));
+		assertEquals("value 2", second.get(1, TimeUnit.SECONDS));
+		assertEquals(1, backend.requests.get());
+	}
+
+	@Test
+	public void testFailureOfTheBulkMethodCompletesAllTheFutures() throws Exception {
+		Injector injector = Guice.createInjector(new MyModule(), new BatchedModule());
+		MyBackend backend = injector.getInstance(MyBackend.class);
+		CompletableFuture<String> first = backend.fetch(1);
+		CompletableFuture<String> second = backend.fetch(-1);
+		for (CompletableFuture<String> future : Arrays.asList(first, second)) {
+			try {
+				future.get(1, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertEquals("negative id -1", e.getCause().getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void testSlowBulkCallDoesNotDelayOtherBatches() throws Exception {
+		Injector injector = Guice.createInjector(new BatchedModule());
+		MySlowBackendClient slow = injector.getInstance(MySlowBackendClient.class);
+		try {
+			CompletableFuture<String> blocked = slow.fetch(1);
+			assertTrue(slow.started.await(1, TimeUnit.SECONDS));
+			MyBackend other = injector.getInstance(MyBackendClient.class);
+			assertEquals("value 2", other.fetch(2).get(1, TimeUnit.SECONDS));
+			assertFalse(blocked.isDone());
+			slow.release.countDown();
+			assertEquals("value 1", blocked.get(1, TimeUnit.SECONDS));
+		} finally {
+			slow.release.countDown();
+			injector.getInstance(BatchedInterceptor.class).close();
+		}
+	}
+
+	@Test
+	public void testCloseStopsTheThreads() throws Exception {
+		Injector injector = Guice.createInjector(new MyModule(), new BatchedModule());
+		MyBackend backend = injector.getInstance(MyBackend.class);
+		assertEquals("value 1", backend.fetch(1).get(1, TimeUnit.SECONDS));
+		BatchedInterceptor interceptor = injector.getInstance(BatchedInterceptor.class);
+		interceptor.close();
+		assertTrue(interceptor.isClosed());
+	}
+
+	/**
+	 * Compares the throughput and the mean latency of many threads calling the
+	 * backend with and without batching; the figures are only printed, since
+	 * they depend on the machine.
+	 */
+	@Test
+	public void testBatchedBenchmark() throws Exception {
+		MyBackend unbatched = Guice.createInjector(new MyModule()).getInstance(MyBackend.class);
+		Injector batchedInjector = Guice.createInjector(new MyModule(), new BatchedModule());
+		MyBackend batched = batchedInjector.getInstance(MyBackend.class);
+		int threads = 16;
+		int calls = 20;
+		try {
+			long[] unbatchedResult = benchmark(unbatched, threads, calls);
+			long[] batchedResult = benchmark(batched, threads, calls);
+			System.out.println(String.format("%d calls: unbatched %d calls/s, mean latency %d us; "
+					+ "batched %d calls/s, mean latency %d us",
+				threads * calls, unbatchedResult[0], unbatchedResult[1], batchedResult[0], batchedResult[1]));
+		} finally {
+			batchedInjector.getInstance(BatchedInterceptor.class).close();
+		}
+	}
+
+	/**
+	 * @return the throughput, in calls per second, and the mean latency, in
+	 *         microseconds
+	 */
+	private static long[] benchmark(MyBackend backend, int threadCount, int calls) throws InterruptedException {
+		AtomicInteger errors = new AtomicInteger();
+		long[] latencies = new long[threadCount];
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < threadCount; ++t) {
+			int index = t;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < calls; ++i) {
+					long start = System.nanoTime();
+					try {
+						backend.fetch(i).get();
+					} catch (InterruptedException | ExecutionException e) {
+						errors.incrementAndGet();
+					}
+					latencies[index] += System.nanoTime() - start;
+				}
+			}));
+		}
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		assertEquals(0, errors.get());
+		long totalLatency = 0;
+		for (long latency : latencies) {
+			totalLatency += latency;
+		}
+		long total = (long) threadCount * calls;
+		return new long[] { total * 1000000000L / elapsed, totalLatency / total / 1000 };
+	}
+
+}
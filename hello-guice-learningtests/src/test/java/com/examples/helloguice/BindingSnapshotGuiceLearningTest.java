@@ -0,0 +1,652 @@
+package com.examples.helloguice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.security.MessageDigest;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Primitives;
+import com.google.inject.AbstractModule;
+import com.google.inject.Binder;
+import com.google.inject.Binding;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Scope;
+import com.google.inject.Scopes;
+import com.google.inject.Singleton;
+import com.google.inject.Stage;
+import com.google.inject.binder.ScopedBindingBuilder;
+import com.google.inject.name.Names;
+import com.google.inject.spi.DefaultBindingScopingVisitor;
+import com.google.inject.spi.Element;
+import com.google.inject.spi.ElementSource;
+import com.google.inject.spi.Elements;
+import com.google.inject.spi.InstanceBinding;
+import com.google.inject.spi.LinkedKeyBinding;
+import com.google.inject.spi.UntargettedBinding;
+
+public class BindingSnapshotGuiceLearningTest {
+
+	static class MyClass {
+		@Inject
+		@Named("URL")
+		private String url;
+
+		@Inject
+		@Named("port")
+		private int port;
+
+		@Inject
+		private MyInterface field;
+
+		@Override
+		public String toString() {
+			return "MyClass [url=" + url + ", port=" + port + "]";
+		}
+	};
+
+	static interface MyInterface {
+
+	}
+
+	static class MyImplementation implements MyInterface {
+
+	};
+
+	static class MySingleton {
+
+	};
+
+	static class MyModule extends AbstractModule {
+
+		private static int configured = 0;
+
+		@Override
+		protected void configure() {
+			configured++;
+			bind(String.class).annotatedWith(Names.named("URL")).toInstance("localhost");
+			bind(int.class).annotatedWith(Names.named("port")).toInstance(8080);
+			bind(MyInterface.class).to(MyImplementation.class);
+			bind(MySingleton.class).in(Singleton.class);
+		}
+
+	}
+
+	/**
+	 * Installs {@link MyModule}, whose bytecode is then part of the fingerprint.
+	 */
+	static class MyInstallingModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			install(new MyModule());
+		}
+
+	}
+
+	/**
+	 * Its bindings depend on the state given to the constructor.
+	 */
+	static class MyModuleWithState extends AbstractModule {
+
+		private final int port;
+
+		MyModuleWithState(int port) {
+			this.port = port;
+		}
+
+		@Override
+		protected void configure() {
+			bind(int.class).annotatedWith(Names.named("port")).toInstance(port);
+		}
+
+	}
+
+	static class MyOtherModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyInterface.class).to(MyImplementation.class);
+		}
+
+	}
+
+	static class MyProviderModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyInterface.class).toProvider(MyImplementation::new);
+		}
+
+	}
+
+	public static class MyLargeModule extends AbstractModule {
+
+		private static final int BINDINGS = 5000;
+
+		@Override
+		protected void configure() {
+			for (int i = 0; i < BINDINGS; ++i) {
+				bind(String.class).annotatedWith(Names.named("key" + i)).toInstance("value" + i);
+			}
+		}
+
+	}
+
+	/**
+	 * Records the bindings of a set of modules in a compact binary file, so that
+	 * an injector can later be created by replaying them, without running the
+	 * configure() methods of the modules.
+	 *
+	 * The file contains a fingerprint of the bytecode of the module classes,
+	 * including the modules they installed when the snapshot was recorded, whose
+	 * names are in the file too: when it does not match, the snapshot is stale
+	 * and the modules are used as usual. The bindings must only depend on that
+	 * bytecode, so modules with instance fields (state passed to constructors,
+	 * captured variables or enclosing instances) and modules whose bytecode
+	 * cannot be read, e.g., lambdas, cannot be fingerprinted, and no snapshot is
+	 * recorded for them.
+	 *
+	 * Only linked, untargetted and constant instance bindings, with no scope or
+	 * with singleton scopes, can be recorded.
+	 */
+	static class BindingSnapshot {
+
+		private static final int MAGIC = 0x47534e50;
+
+		private static final byte LINKED = 1, INSTANCE = 2, UNTARGETTED = 3;
+
+		private static final byte NO_SCOPE = 0, SINGLETON = 1, EAGER_SINGLETON = 2;
+
+		/**
+		 * @return false if the modules cannot be fingerprinted, and no snapshot
+		 *         has been written
+		 */
+		public static boolean write(File file, Module... modules) throws IOException {
+			if (fingerprint(modules) == null) {
+				return false;
+			}
+			List<Element> elements = Elements.getElements(Stage.TOOL, modules);
+			List<String> installed = installedModuleClasses(elements, modules);
+			String fingerprint = fingerprint(installed, modules);
+			if (fingerprint == null) {
+				return false;
+			}
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file)))) {
+				out.writeInt(MAGIC);
+				out.writeUTF(fingerprint);
+				out.writeInt(installed.size());
+				for (String className : installed) {
+					out.writeUTF(className);
+				}
+				out.writeInt(elements.size());
+				for (Element element : elements) {
+					write(out, element);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Creates the injector from the snapshot, if it is up to date, or from the
+		 * modules.
+		 */
+		public static Injector createInjector(File file, Module... modules) throws IOException {
+			if (!isUpToDate(file, modules)) {
+				return Guice.createInjector(modules);
+			}
+			return Guice.createInjector(binder -> {
+				try {
+					replay(file, binder);
+				} catch (IOException | ClassNotFoundException e) {
+					binder.addError(e);
+				}
+			});
+		}
+
+		public static boolean isUpToDate(File file, Module... modules) throws IOException {
+			if (fingerprint(modules) == null || !file.exists() || file.length() == 0) {
+				return false;
+			}
+			try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+				if (in.readInt() != MAGIC) {
+					return false;
+				}
+				String recorded = in.readUTF();
+				return recorded.equals(fingerprint(readInstalledModuleClasses(in), modules));
+			}
+		}
+
+		/**
+		 * @return the names of the module classes installed by the recorded
+		 *         modules
+		 */
+		public static List<String> installedModuleClasses(File file) throws IOException {
+			try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+				in.readInt();
+				in.readUTF();
+				return readInstalledModuleClasses(in);
+			}
+		}
+
+		private static List<String> readInstalledModuleClasses(DataInputStream in) throws IOException {
+			int size = in.readInt();
+			List<String> classNames = new ArrayList<>();
+			for (int i = 0; i < size; ++i) {
+				classNames.add(in.readUTF());
+			}
+			return classNames;
+		}
+
+		/**
+		 * @return the sorted names of the classes of the modules, other than the
+		 *         given ones, in the module chains of the elements
+		 */
+		private static List<String> installedModuleClasses(List<Element> elements, Module... modules) {
+			Set<String> topLevel = new HashSet<>();
+			for (Module module : modules) {
+				topLevel.add(module.getClass().getName());
+			}
+			Set<String> installed = new TreeSet<>();
+			for (Element element : elements) {
+				if (element.getSource() instanceof ElementSource) {
+					for (String className : ((ElementSource) element.getSource()).getModuleClassNames()) {
+						if (!topLevel.contains(className)) {
+							installed.add(className);
+						}
+					}
+				}
+			}
+			return new ArrayList<>(installed);
+		}
+
+		/**
+		 * The SHA-256 of the bytecode of the modules' classes and of their
+		 * superclasses, or null if one of them has instance fields, or if its
+		 * bytecode cannot be found, as for the classes generated for lambdas.
+		 */
+		public static String fingerprint(Module... modules) throws IOException {
+			return fingerprint(Collections.emptyList(), modules);
+		}
+
+		private static String fingerprint(List<String> installedClassNames, Module... modules) throws IOException {
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+			List<Class<?>> classes = new ArrayList<>();
+			for (Module module : modules) {
+				classes.add(module.getClass());
+			}
+			for (String className : installedClassNames) {
+				try {
+					classes.add(Class.forName(className, false, BindingSnapshot.class.getClassLoader()));
+				} catch (ClassNotFoundException e) {
+					return null;
+				}
+			}
+			for (Class<?> moduleClass : classes) {
+				for (Class<?> c = moduleClass; c != AbstractModule.class && c != Object.class; c = c.getSuperclass()) {
+					if (hasInstanceFields(c) || !update(digest, c)) {
+						return null;
+					}
+				}
+			}
+			return BaseEncoding.base16().encode(digest.digest());
+		}
+
+		private static boolean hasInstanceFields(Class<?> c) {
+			for (Field field : c.getDeclaredFields()) {
+				if (!Modifier.isStatic(field.getModifiers())) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return false if the bytecode of the class cannot be found
+		 */
+		private static boolean update(MessageDigest digest, Class<?> c) throws IOException {
+			digest.update(c.getName().getBytes("UTF-8"));
+			ClassLoader loader = c.getClassLoader();
+			if (loader == null) {
+				return false;
+			}
+			try (InputStream bytecode = loader.getResourceAsStream(c.getName().replace('.', '/') + ".class")) {
+				if (bytecode == null) {
+					return false;
+				}
+				digest.update(ByteStreams.toByteArray(bytecode));
+			}
+			return true;
+		}
+
+		private static void write(DataOutputStream out, Element element) throws IOException {
+			if (element instanceof LinkedKeyBinding) {
+				LinkedKeyBinding<?> binding = (LinkedKeyBinding<?>) element;
+				out.writeByte(LINKED);
+				writeKey(out, binding.getKey());
+				writeKey(out, binding.getLinkedKey());
+				out.writeByte(scopeOf(binding));
+			} else if (element instanceof UntargettedBinding) {
+				UntargettedBinding<?> binding = (UntargettedBinding<?>) element;
+				out.writeByte(UNTARGETTED);
+				writeKey(out, binding.getKey());
+				out.writeByte(scopeOf(binding));
+			} else if (element instanceof InstanceBinding
+					&& isConstant(((InstanceBinding<?>) element).getInstance())) {
+				InstanceBinding<?> binding = (InstanceBinding<?>) element;
+				out.writeByte(INSTANCE);
+				writeKey(out, binding.getKey());
+				Object instance = binding.getInstance();
+				out.writeUTF(instance.getClass().getName());
+				out.writeUTF(instance.toString());
+			} else {
+				throw new IllegalArgumentException("Cannot record in a snapshot: " + element);
+			}
+		}
+
+		private static boolean isConstant(Object instance) {
+			return instance instanceof String || Primitives.isWrapperType(instance.getClass())
+					&& instance.getClass() != Character.class && instance.getClass() != Void.class;
+		}
+
+		private static byte scopeOf(Binding<?> binding) {
+			return binding.acceptScopingVisitor(new DefaultBindingScopingVisitor<Byte>() {
+				@Override
+				public Byte visitEagerSingleton() {
+					return EAGER_SINGLETON;
+				}
+
+				@Override
+				public Byte visitScope(Scope scope) {
+					return visitOther();
+				}
+
+				@Override
+				public Byte visitScopeAnnotation(Class<? extends Annotation> scopeAnnotation) {
+					return visitOther();
+				}
+
+				@Override
+				public Byte visitNoScoping() {
+					return NO_SCOPE;
+				}
+
+				@Override
+				protected Byte visitOther() {
+					if (Scopes.isSingleton(binding)) {
+						return SINGLETON;
+					}
+					throw new IllegalArgumentException("Cannot record the scope of: " + binding);
+				}
+			});
+		}
+
+		private static void writeKey(DataOutputStream out, Key<?> key) throws IOException {
+			if (!(key.getTypeLiteral().getType() instanceof Class)) {
+				throw new IllegalArgumentException("Cannot record a generic key: " + key);
+			}
+			out.writeUTF(key.getTypeLiteral().getRawType().getName());
+			if (key.getAnnotation() instanceof Named || key.getAnnotation() instanceof com.google.inject.name.Named) {
+				out.writeByte(1);
+				out.writeUTF(key.getAnnotation() instanceof Named ? ((Named) key.getAnnotation()).value()
+						: ((com.google.inject.name.Named) key.getAnnotation()).value());
+			} else if (key.getAnnotationType() != null) {
+				if (key.getAnnotation() != null
+						&& key.getAnnotation().annotationType().getDeclaredMethods().length > 0) {
+					throw new IllegalArgumentException("Cannot record the annotation of: " + key);
+				}
+				out.writeByte(2);
+				out.writeUTF(key.getAnnotationType().getName());
+			} else {
+				out.writeByte(0);
+			}
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private static void replay(File file, Binder binder) throws IOException, ClassNotFoundException {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				in.readInt();
+				in.readUTF();
+				readInstalledModuleClasses(in);
+				int size = in.readInt();
+				for (int i = 0; i < size; ++i) {
+					byte kind = in.readByte();
+					Key key = readKey(in);
+					switch (kind) {
+					case LINKED:
+						Key linkedKey = readKey(in);
+						in(binder.bind(key).to(linkedKey), in.readByte());
+						break;
+					case UNTARGETTED:
+						in(binder.bind(key), in.readByte());
+						break;
+					default:
+						Class<?> type = classFor(in.readUTF());
+						String value = in.readUTF();
+						binder.bind(key).toInstance(type == String.class ? value : valueOf(type, value));
+					}
+				}
+			}
+		}
+
+		private static Object valueOf(Class<?> wrapper, String value) {
+			try {
+				return wrapper.getMethod("valueOf", String.class).invoke(null, value);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		private static void in(ScopedBindingBuilder builder, byte scope) {
+			if (scope == SINGLETON) {
+				builder.in(Singleton.class);
+			} else if (scope == EAGER_SINGLETON) {
+				builder.asEagerSingleton();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private static Key<?> readKey(DataInputStream in) throws IOException, ClassNotFoundException {
+			Class<?> type = classFor(in.readUTF());
+			switch (in.readByte()) {
+			case 1:
+				return Key.get(type, Names.named(in.readUTF()));
+			case 2:
+				return Key.get(type, (Class<? extends Annotation>) classFor(in.readUTF()));
+			default:
+				return Key.get(type);
+			}
+		}
+
+		private static Class<?> classFor(String name) throws ClassNotFoundException {
+			for (Class<?> primitive : Primitives.allPrimitiveTypes()) {
+				if (primitive.getName().equals(name)) {
+					return primitive;
+				}
+			}
+			return Class.forName(name, false, BindingSnapshot.class.getClassLoader());
+		}
+
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testInjectorFromSnapshot() throws IOException {
+		File file = folder.newFile("bindings.snapshot");
+		BindingSnapshot.write(file, new MyModule());
+		assertTrue(BindingSnapshot.isUpToDate(file, new MyModule()));
+		int configured = MyModule.configured;
+		Injector injector = BindingSnapshot.createInjector(file, new MyModule());
+		assertEquals(configured, MyModule.configured);
+		MyClass o = injector.getInstance(MyClass.class);
+		assertEquals("MyClass [url=localhost, port=8080]", o.toString());
+		assertEquals(MyImplementation.class, injector.getInstance(MyInterface.class).getClass());
+		assertSame(injector.getInstance(MySingleton.class), injector.getInstance(MySingleton.class));
+	}
+
+	@Test
+	public void testStaleSnapshotIsNotUsed() throws IOException {
+		File file = folder.newFile("bindings.snapshot");
+		BindingSnapshot.write(file, new MyModule());
+		Module otherModule = new MyOtherModule();
+		assertNotNull(BindingSnapshot.fingerprint(otherModule));
+		assertFalse(BindingSnapshot.isUpToDate(file, otherModule));
+		Injector injector = BindingSnapshot.createInjector(file, otherModule);
+		assertNotSame(injector.getInstance(MySingleton.class), injector.getInstance(MySingleton.class));
+	}
+
+	@Test
+	public void testLambdaModulesAreNotRecorded() throws IOException {
+		File file = folder.newFile("bindings.snapshot");
+		Module lambdaModule = binder -> binder.bind(MyInterface.class).to(MyImplementation.class);
+		assertNull(BindingSnapshot.fingerprint(new MyModule(), lambdaModule));
+		assertFalse(BindingSnapshot.write(file, new MyModule(), lambdaModule));
+		assertFalse(BindingSnapshot.isUpToDate(file, new MyModule(), lambdaModule));
+		// the modules are used as usual
+		Injector injector = BindingSnapshot.createInjector(file, new MyModule(), lambdaModule);
+		assertEquals(MyImplementation.class, injector.getInstance(MyInterface.class).getClass());
+		// anonymous modules have their own class file, but they cannot be
+		// fingerprinted if they hold their enclosing instance
+		assertNotNull(BindingSnapshot.fingerprint(anonymousModule()));
+		assertNull(BindingSnapshot.fingerprint(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(MyInterface.class).to(MyImplementation.class);
+			}
+		}));
+	}
+
+	private static Module anonymousModule() {
+		return new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(MyInterface.class).to(MyImplementation.class);
+			}
+		};
+	}
+
+	@Test
+	public void testModulesWithStateAreNotRecorded() throws IOException {
+		File file = folder.newFile("bindings.snapshot");
+		assertNull(BindingSnapshot.fingerprint(new MyModuleWithState(1)));
+		assertFalse(BindingSnapshot.write(file, new MyModuleWithState(1)));
+		// otherwise the snapshot of the first one would be used for the second one
+		Injector injector = BindingSnapshot.createInjector(file, new MyModuleWithState(2));
+		assertEquals(Integer.valueOf(2), injector.getInstance(Key.get(int.class, Names.named("port"))));
+	}
+
+	@Test
+	public void testInstalledModulesArePartOfTheFingerprint() throws IOException {
+		File file = folder.newFile("bindings.snapshot");
+		assertTrue(BindingSnapshot.write(file, new MyInstallingModule()));
+		assertEquals(Arrays.asList(MyModule.class.getName()), BindingSnapshot.installedModuleClasses(file));
+		assertTrue(BindingSnapshot.isUpToDate(file, new MyInstallingModule()));
+		int configured = MyModule.configured;
+		Injector injector = BindingSnapshot.createInjector(file, new MyInstallingModule());
+		assertEquals(configured, MyModule.configured);
+		assertEquals(MyImplementation.class, injector.getInstance(MyInterface.class).getClass());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testProviderBindingsCannotBeRecorded() throws IOException {
+		BindingSnapshot.write(folder.newFile("bindings.snapshot"), new MyProviderModule());
+	}
+
+	/**
+	 * Creates an injector with {@link MyLargeModule}, from the module or from the
+	 * snapshot, and prints the time it took, in nanoseconds: run in a new JVM,
+	 * it measures a cold start.
+	 */
+	public static class ColdStart {
+
+		public static void main(String[] args) throws IOException {
+			long start = System.nanoTime();
+			Injector injector = args.length == 0 ? Guice.createInjector(new MyLargeModule())
+					: BindingSnapshot.createInjector(new File(args[0]), new MyLargeModule());
+			long nanos = System.nanoTime() - start;
+			injector.getInstance(Key.get(String.class, Names.named("key0")));
+			System.out.println(nanos);
+		}
+
+	}
+
+	/**
+	 * @return the best time, in nanoseconds, of the given number of cold starts
+	 */
+	private static long coldStart(int runs, String... args) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<>(Arrays.asList(
+			System.getProperty("java.home") + File.separator + "bin" + File.separator + "java", "-cp",
+			System.getProperty("java.class.path"), ColdStart.class.getName()));
+		Collections.addAll(command, args);
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < runs; ++i) {
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+			String output = new String(ByteStreams.toByteArray(process.getInputStream()), StandardCharsets.UTF_8);
+			assertEquals(output, 0, process.waitFor());
+			best = Math.min(best, Long.parseLong(output.trim()));
+		}
+		return best;
+	}
+
+	/**
+	 * Compares the creation of an injector with 5000 bindings from the module
+	 * and from the snapshot, each in new JVMs, so that class loading and JIT
+	 * compilation are counted as in a real start; the timings are only printed,
+	 * since they depend on the machine.
+	 */
+	@Test
+	public void testColdStartWithLargeModule() throws Exception {
+		File file = folder.newFile("bindings.snapshot");
+		assertTrue(BindingSnapshot.write(file, new MyLargeModule()));
+		long fromModuleNanos = coldStart(3);
+		long fromSnapshotNanos = coldStart(3, file.getAbsolutePath());
+		System.out.println(String.format("%d bindings, cold start: from module %d ms, from snapshot %d ms (%d bytes)",
+			MyLargeModule.BINDINGS, fromModuleNanos / 1000000, fromSnapshotNanos / 1000000, file.length()));
+	}
+
+}
@@ -0,0 +1,329 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Scope;
+import com.google.inject.ScopeAnnotation;
+import com.google.inject.Singleton;
+
+public class BulkProvisioningGuiceLearningTest {
+
+	@Target({ TYPE, METHOD })
+	@Retention(RUNTIME)
+	@ScopeAnnotation
+	static @interface FactoryParameterScoped {
+
+	}
+
+	/**
+	 * A parameter that can be injected with our factory.
+	 */
+	static interface InjectableParameter {
+
+	}
+
+	@FactoryParameterScoped
+	static class MyParam implements InjectableParameter {
+		public int i = 0;
+
+		public MyParam() {
+
+		}
+
+		public MyParam(int i) {
+			this.i = i;
+		}
+	}
+
+	static class FactoryScope implements Scope {
+
+		private final ThreadLocal<ArrayDeque<Map<Key<?>, Object>>> parametersStack = new ThreadLocal<ArrayDeque<Map<Key<?>, Object>>>() {
+			@Override
+			protected ArrayDeque<Map<Key<?>, Object>> initialValue() {
+				return new ArrayDeque<>();
+			}
+		};
+
+		@Override
+		public <T> Provider<T> scope(final Key<T> key, final Provider<T> unscoped) {
+			return new Provider<T>() {
+				@Override
+				public T get() {
+					@SuppressWarnings("unchecked")
+					T toReturn = (T) parametersStack.get().peek().get(key);
+					return toReturn;
+				}
+			};
+		}
+
+		public void enter() {
+			parametersStack.get().push(new HashMap<>());
+		}
+
+		public void leave() {
+			parametersStack.get().pop();
+		}
+
+		public void addParameter(InjectableParameter o) {
+			parametersStack.get().peek().put(Key.get(o.getClass()), o);
+		}
+
+	}
+
+	@Singleton
+	static class MySingleton {
+
+	}
+
+	static class MyClass {
+		static final AtomicInteger created = new AtomicInteger();
+
+		@Inject
+		private MySingleton mySingleton;
+
+		private MyParam myParam;
+
+		private String thread = Thread.currentThread().getName();
+
+		@Inject
+		public MyClass(MyInterface field, MyParam myParam) {
+			this.myParam = myParam;
+			created.incrementAndGet();
+		}
+
+		public MyParam getMyParam() {
+			return myParam;
+		}
+
+		public MySingleton getMySingleton() {
+			return mySingleton;
+		}
+
+		public String getThread() {
+			return thread;
+		}
+	}
+
+	static interface MyInterface {
+
+	}
+
+	static class MyImplementation implements MyInterface {
+
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			FactoryScope scope = new FactoryScope();
+			bindScope(FactoryParameterScoped.class, scope);
+			bind(FactoryScope.class).toInstance(scope);
+			bind(MyInterface.class).to(MyImplementation.class);
+		}
+
+	}
+
+	/**
+	 * Lazy streams of fresh instances of a type, created with a provider
+	 * resolved once.
+	 */
+	static class BulkProvisioning {
+
+		/**
+		 * A {@link Spliterator} creating an instance for each element of the source
+		 * of parameters, in the {@link FactoryScope} with that parameter; it splits
+		 * as the source does, so that a parallel stream creates the instances in
+		 * the threads of the common ForkJoinPool.
+		 */
+		static class ProvisioningSpliterator<T> implements Spliterator<T> {
+
+			private final Provider<T> provider;
+
+			private final FactoryScope scope;
+
+			private final Spliterator<? extends InjectableParameter> parameters;
+
+			ProvisioningSpliterator(Provider<T> provider, FactoryScope scope,
+					Spliterator<? extends InjectableParameter> parameters) {
+				this.provider = provider;
+				this.scope = scope;
+				this.parameters = parameters;
+			}
+
+			@Override
+			public boolean tryAdvance(Consumer<? super T> action) {
+				return parameters.tryAdvance(parameter -> action.accept(create(parameter)));
+			}
+
+			@Override
+			public void forEachRemaining(Consumer<? super T> action) {
+				parameters.forEachRemaining(parameter -> action.accept(create(parameter)));
+			}
+
+			private T create(InjectableParameter parameter) {
+				scope.enter();
+				try {
+					scope.addParameter(parameter);
+					return provider.get();
+				} finally {
+					scope.leave();
+				}
+			}
+
+			@Override
+			public Spliterator<T> trySplit() {
+				Spliterator<? extends InjectableParameter> prefix = parameters.trySplit();
+				return prefix == null ? null : new ProvisioningSpliterator<>(provider, scope, prefix);
+			}
+
+			@Override
+			public long estimateSize() {
+				return parameters.estimateSize();
+			}
+
+			@Override
+			public int characteristics() {
+				// instances are distinct, but not sorted as the parameters are
+				return parameters.characteristics() & (ORDERED | SIZED | SUBSIZED | IMMUTABLE | CONCURRENT);
+			}
+
+		}
+
+		/**
+		 * @return a stream with an instance of the given type for each parameter,
+		 *         which is parallel if the stream of parameters is
+		 */
+		public static <T> Stream<T> stream(Injector injector, Class<T> type,
+				Stream<? extends InjectableParameter> parameters) {
+			return StreamSupport.stream(new ProvisioningSpliterator<>(injector.getProvider(type),
+				injector.getInstance(FactoryScope.class), parameters.spliterator()), parameters.isParallel());
+		}
+
+		/**
+		 * @return a stream with the given number of instances of the given type,
+		 *         which does not need parameters
+		 */
+		public static <T> Stream<T> stream(Injector injector, Class<T> type, int count) {
+			Provider<T> provider = injector.getProvider(type);
+			return IntStream.range(0, count).mapToObj(i -> provider.get());
+		}
+
+	}
+
+	@Test
+	public void testEachInstanceGetsItsParameter() {
+		Injector injector = Guice.createInjector(new MyModule());
+		List<MyParam> params = IntStream.range(0, 100).mapToObj(MyParam::new).collect(Collectors.toList());
+		List<MyClass> instances = BulkProvisioning.stream(injector, MyClass.class, params.stream())
+			.collect(Collectors.toList());
+		assertEquals(100, instances.size());
+		for (int i = 0; i < 100; ++i) {
+			assertSame(params.get(i), instances.get(i).getMyParam());
+			assertSame(injector.getInstance(MySingleton.class), instances.get(i).getMySingleton());
+		}
+		assertNotSame(instances.get(0), instances.get(1));
+	}
+
+	@Test
+	public void testStreamIsLazy() {
+		Injector injector = Guice.createInjector(new MyModule());
+		Stream<MyClass> stream = BulkProvisioning.stream(injector, MyClass.class,
+			Stream.iterate(0, i -> i + 1).map(MyParam::new));
+		MyClass.created.set(0);
+		assertEquals(Integer.valueOf(3), stream.limit(3).map(o -> o.getMyParam().i).reduce(0, Integer::sum));
+		assertEquals(3, MyClass.created.get());
+	}
+
+	@Test
+	public void testParallelStreamPreservesOrderAndParameters() {
+		Injector injector = Guice.createInjector(new MyModule());
+		Set<String> threads = ConcurrentHashMap.newKeySet();
+		List<Integer> values = BulkProvisioning.stream(injector, MyClass.class,
+			IntStream.range(0, 10000).mapToObj(MyParam::new).collect(Collectors.toList()).parallelStream())
+			.peek(o -> threads.add(o.getThread()))
+			.map(o -> o.getMyParam().i)
+			.collect(Collectors.toList());
+		assertEquals(IntStream.range(0, 10000).boxed().collect(Collectors.toList()), values);
+		if (Runtime.getRuntime().availableProcessors() > 1) {
+			assertTrue(threads.size() > 1);
+		}
+	}
+
+	@Test
+	public void testStreamWithoutParameters() {
+		Injector injector = Guice.createInjector(new MyModule());
+		assertEquals(5, BulkProvisioning.stream(injector, MyImplementation.class, 5).distinct().count());
+	}
+
+	/**
+	 * Compares a hand-written loop around getInstance with the sequential and
+	 * the parallel stream; the timings are only printed, since they depend on
+	 * the machine.
+	 */
+	@Test
+	public void testBulkProvisioningBenchmark() {
+		Injector injector = Guice.createInjector(new MyModule());
+		FactoryScope scope = injector.getInstance(FactoryScope.class);
+		List<MyParam> params = IntStream.range(0, 200000).mapToObj(MyParam::new).collect(Collectors.toList());
+		long[] best = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		for (int run = 0; run < 5; ++run) {
+			long start = System.nanoTime();
+			List<MyClass> loop = new ArrayList<>();
+			for (MyParam param : params) {
+				scope.enter();
+				try {
+					scope.addParameter(param);
+					loop.add(injector.getInstance(MyClass.class));
+				} finally {
+					scope.leave();
+				}
+			}
+			best[0] = Math.min(best[0], System.nanoTime() - start);
+			start = System.nanoTime();
+			List<MyClass> sequential = BulkProvisioning.stream(injector, MyClass.class, params.stream())
+				.collect(Collectors.toList());
+			best[1] = Math.min(best[1], System.nanoTime() - start);
+			start = System.nanoTime();
+			List<MyClass> parallel = BulkProvisioning.stream(injector, MyClass.class, params.parallelStream())
+				.collect(Collectors.toList());
+			best[2] = Math.min(best[2], System.nanoTime() - start);
+			assertEquals(loop.size(), sequential.size());
+			assertEquals(loop.size(), parallel.size());
+		}
+		System.out.println(String.format("%d instances: loop %d ms, stream %d ms, parallel stream %d ms",
+			params.size(), best[0] / 1000000, best[1] / 1000000, best[2] / 1000000));
+	}
+
+}
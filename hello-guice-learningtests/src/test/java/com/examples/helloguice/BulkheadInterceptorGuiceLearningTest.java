@@ -0,0 +1,453 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.matcher.AbstractMatcher;
+import com.google.inject.matcher.Matchers;
+
+public class BulkheadInterceptorGuiceLearningTest {
+
+	/**
+	 * Caps the number of concurrent calls to the annotated method, or to all the
+	 * methods of the annotated class together; the cap starts at initialLimit
+	 * and is adapted, between minLimit and maxLimit, to the latency of the calls
+	 * with respect to targetLatency (in milliseconds), see {@link AimdLimiter}.
+	 */
+	@Target({ TYPE, METHOD })
+	@Retention(RUNTIME)
+	static @interface Bulkhead {
+		int initialLimit() default 10;
+
+		int minLimit() default 1;
+
+		int maxLimit() default 100;
+
+		long targetLatency() default 100;
+	}
+
+	/**
+	 * Thrown, without waiting, when the limit of concurrent calls is reached.
+	 */
+	static class BulkheadFullException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public BulkheadFullException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * An adaptive concurrency limit in the style of AIMD (additive increase,
+	 * multiplicative decrease): a call completing within the target latency
+	 * increases the limit by one, provided at least half of the limit was in
+	 * use (otherwise the limit is not what is holding calls back); a slower or
+	 * failed call decreases it by 10%.
+	 *
+	 * Acquiring and releasing only use compare-and-set, without locking.
+	 */
+	static class AimdLimiter {
+
+		private static final double BACKOFF = 0.9;
+
+		private final AtomicInteger inFlight = new AtomicInteger();
+
+		private final AtomicInteger limit;
+
+		private final int minLimit;
+
+		private final int maxLimit;
+
+		private final long targetLatencyNanos;
+
+		private final LongAdder rejected = new LongAdder();
+
+		private final LongAdder increases = new LongAdder();
+
+		private final LongAdder decreases = new LongAdder();
+
+		public AimdLimiter(int initialLimit, int minLimit, int maxLimit, long targetLatency, TimeUnit unit) {
+			this.limit = new AtomicInteger(initialLimit);
+			this.minLimit = minLimit;
+			this.maxLimit = maxLimit;
+			this.targetLatencyNanos = unit.toNanos(targetLatency);
+		}
+
+		/**
+		 * @return false if the limit is reached
+		 */
+		public boolean tryAcquire() {
+			for (;;) {
+				int current = inFlight.get();
+				if (current >= limit.get()) {
+					rejected.increment();
+					return false;
+				}
+				if (inFlight.compareAndSet(current, current + 1)) {
+					return true;
+				}
+			}
+		}
+
+		public void release(long latencyNanos, boolean success) {
+			int inFlightBefore = inFlight.getAndDecrement();
+			if (!success || latencyNanos > targetLatencyNanos) {
+				int previous = limit.getAndUpdate(l -> Math.max(minLimit, (int) (l * BACKOFF)));
+				if (previous > minLimit) {
+					decreases.increment();
+				}
+			} else if (inFlightBefore * 2 >= limit.get()) {
+				int previous = limit.getAndUpdate(l -> Math.min(maxLimit, l + 1));
+				if (previous < maxLimit) {
+					increases.increment();
+				}
+			}
+		}
+
+		public int getInFlight() {
+			return inFlight.get();
+		}
+
+		public int getLimit() {
+			return limit.get();
+		}
+
+		public long getRejected() {
+			return rejected.sum();
+		}
+
+		public long getLimitIncreases() {
+			return increases.sum();
+		}
+
+		public long getLimitDecreases() {
+			return decreases.sum();
+		}
+
+	}
+
+	/**
+	 * Uses an {@link AimdLimiter} for each annotated method, and one for each
+	 * annotated class, shared by all its methods not annotated themselves.
+	 */
+	static class BulkheadInterceptor implements MethodInterceptor {
+
+		private final ConcurrentMap<AnnotatedElement, AimdLimiter> limiters = new ConcurrentHashMap<>();
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			Method method = invocation.getMethod();
+			AimdLimiter limiter = limiterOf(method);
+			if (!limiter.tryAcquire()) {
+				throw new BulkheadFullException(method + ": limit of " + limiter.getLimit() + " concurrent calls");
+			}
+			long start = System.nanoTime();
+			boolean success = false;
+			try {
+				Object result = invocation.proceed();
+				success = true;
+				return result;
+			} finally {
+				limiter.release(System.nanoTime() - start, success);
+			}
+		}
+
+		private AimdLimiter limiterOf(Method method) {
+			AimdLimiter limiter = limiters.get(method);
+			if (limiter == null) {
+				AnnotatedElement element = annotatedElementOf(method);
+				limiter = limiters.computeIfAbsent(element, e -> {
+					Bulkhead bulkhead = e.getAnnotation(Bulkhead.class);
+					return new AimdLimiter(bulkhead.initialLimit(), bulkhead.minLimit(), bulkhead.maxLimit(),
+						bulkhead.targetLatency(), TimeUnit.MILLISECONDS);
+				});
+				limiters.putIfAbsent(method, limiter);
+			}
+			return limiter;
+		}
+
+		private static AnnotatedElement annotatedElementOf(Method method) {
+			return method.isAnnotationPresent(Bulkhead.class) ? method : method.getDeclaringClass();
+		}
+
+		/**
+		 * @return the limiter of the given annotated method or class, or null if it
+		 *         has never been called
+		 */
+		public AimdLimiter getLimiter(AnnotatedElement element) {
+			return limiters.get(element);
+		}
+
+	}
+
+	/**
+	 * Intercepts the methods annotated with {@link Bulkhead}, and the methods
+	 * declared in classes annotated with {@link Bulkhead}, except for the
+	 * overrides of the methods of {@link Object} (e.g., equals, hashCode and
+	 * toString, which are also called by collections and loggers, and should
+	 * not consume the limit of the class); the interceptor is also bound, so
+	 * that its metrics can be injected.
+	 */
+	static class BulkheadModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			BulkheadInterceptor interceptor = new BulkheadInterceptor();
+			bind(BulkheadInterceptor.class).toInstance(interceptor);
+			bindInterceptor(Matchers.any(), new AbstractMatcher<Method>() {
+				@Override
+				public boolean matches(Method method) {
+					return !method.isSynthetic() && (method.isAnnotationPresent(Bulkhead.class)
+							|| method.getDeclaringClass().isAnnotationPresent(Bulkhead.class)
+									&& !overridesObjectMethod(method));
+				}
+			}, interceptor);
+		}
+
+		static boolean overridesObjectMethod(Method method) {
+			try {
+				Object.class.getDeclaredMethod(method.getName(), method.getParameterTypes());
+				return true;
+			} catch (NoSuchMethodException e) {
+				return false;
+			}
+		}
+
+	}
+
+	/**
+	 * A dependency whose latency we control.
+	 */
+	@Bulkhead(initialLimit = 2, minLimit = 1, targetLatency = 20)
+	static class MySlowDependency {
+		volatile CountDownLatch latch = new CountDownLatch(0);
+
+		volatile long sleep;
+
+		public String call() throws InterruptedException {
+			latch.await();
+			Thread.sleep(sleep);
+			return "done";
+		}
+
+		public String otherCall() throws InterruptedException {
+			latch.await();
+			return "other";
+		}
+
+		@Override
+		public String toString() {
+			return "MySlowDependency";
+		}
+
+		@Override
+		public int hashCode() {
+			return 42;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof MySlowDependency;
+		}
+	}
+
+	static class MyService {
+		@Bulkhead(initialLimit = 5)
+		public String fast() {
+			return "fast";
+		}
+
+		public String unlimited() {
+			return "unlimited";
+		}
+	}
+
+	@Test
+	public void testAdditiveIncreaseMultiplicativeDecrease() {
+		AimdLimiter limiter = new AimdLimiter(4, 1, 5, 10, TimeUnit.MILLISECONDS);
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertEquals(2, limiter.getInFlight());
+		limiter.release(TimeUnit.MILLISECONDS.toNanos(1), true);
+		// 2 in flight of 4
+		assertEquals(5, limiter.getLimit());
+		limiter.release(TimeUnit.MILLISECONDS.toNanos(1), true);
+		// 1 in flight of 5
+		assertEquals(5, limiter.getLimit());
+		assertTrue(limiter.tryAcquire());
+		limiter.release(TimeUnit.MILLISECONDS.toNanos(11), true);
+		assertEquals(4, limiter.getLimit());
+		assertTrue(limiter.tryAcquire());
+		limiter.release(TimeUnit.MILLISECONDS.toNanos(1), false);
+		assertEquals(3, limiter.getLimit());
+		assertEquals(1, limiter.getLimitIncreases());
+		assertEquals(2, limiter.getLimitDecreases());
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(limiter.tryAcquire());
+			limiter.release(TimeUnit.SECONDS.toNanos(1), true);
+		}
+		assertEquals(1, limiter.getLimit());
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testCallsOverTheLimitAreRejected() throws Exception {
+		Injector injector = Guice.createInjector(new BulkheadModule());
+		MySlowDependency dependency = injector.getInstance(MySlowDependency.class);
+		dependency.latch = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 2; ++i) {
+			Thread thread = new Thread(() -> {
+				try {
+					dependency.call();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		AimdLimiter limiter = null;
+		while (limiter == null || limiter.getInFlight() < 2) {
+			Thread.sleep(1);
+			limiter = injector.getInstance(BulkheadInterceptor.class).getLimiter(MySlowDependency.class);
+		}
+		try {
+			// the limit is shared by the methods of the class
+			dependency.otherCall();
+			fail();
+		} catch (BulkheadFullException e) {
+			assertEquals(1, limiter.getRejected());
+		}
+		dependency.latch.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testLimitShrinksWhenTheDependencyIsSlow() throws Exception {
+		Injector injector = Guice.createInjector(new BulkheadModule());
+		MySlowDependency dependency = injector.getInstance(MySlowDependency.class);
+		dependency.sleep = 30;
+		dependency.call();
+		AimdLimiter limiter = injector.getInstance(BulkheadInterceptor.class).getLimiter(MySlowDependency.class);
+		assertEquals(1, limiter.getLimit());
+		assertEquals(1, limiter.getLimitDecreases());
+		dependency.sleep = 0;
+		dependency.call();
+		assertEquals(2, limiter.getLimit());
+		assertEquals(1, limiter.getLimitIncreases());
+	}
+
+	@Test
+	public void testAnnotatedMethodsHaveTheirOwnLimiter() throws Exception {
+		Injector injector = Guice.createInjector(new BulkheadModule());
+		MyService service = injector.getInstance(MyService.class);
+		assertEquals("fast", service.fast());
+		assertEquals("unlimited", service.unlimited());
+		BulkheadInterceptor interceptor = injector.getInstance(BulkheadInterceptor.class);
+		assertEquals(5, interceptor.getLimiter(MyService.class.getMethod("fast")).getLimit());
+		assertEquals(null, interceptor.getLimiter(MyService.class.getMethod("unlimited")));
+		assertSame(interceptor.getLimiter(MyService.class.getMethod("fast")),
+			interceptor.getLimiter(MyService.class.getMethod("fast")));
+	}
+
+	@Test
+	public void testObjectMethodsOfAnnotatedClassesAreNotIntercepted() throws Exception {
+		Injector injector = Guice.createInjector(new BulkheadModule());
+		MySlowDependency dependency = injector.getInstance(MySlowDependency.class);
+		BulkheadInterceptor interceptor = injector.getInstance(BulkheadInterceptor.class);
+		// the limit is not consumed even while all the permits are taken
+		dependency.latch = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			executor.submit(dependency::call);
+			executor.submit(dependency::call);
+			while (interceptor.getLimiter(MySlowDependency.class) == null
+					|| interceptor.getLimiter(MySlowDependency.class).getInFlight() < 2) {
+				Thread.sleep(1);
+			}
+			assertEquals("MySlowDependency", dependency.toString());
+			assertEquals(42, dependency.hashCode());
+			assertTrue(dependency.equals(dependency));
+			assertTrue(new HashSet<>(Arrays.asList(dependency)).contains(dependency));
+		} finally {
+			dependency.latch.countDown();
+			executor.shutdown();
+		}
+		assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Many threads call a dependency that becomes slow: the limit shrinks and
+	 * the calls over it are rejected at once, instead of blocking the threads.
+	 */
+	@Test
+	public void testLoadSpike() throws Exception {
+		Injector injector = Guice.createInjector(new BulkheadModule());
+		MySlowDependency dependency = injector.getInstance(MySlowDependency.class);
+		dependency.sleep = 25;
+		LongAdder completed = new LongAdder();
+		LongAdder rejected = new LongAdder();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 32; ++i) {
+			Thread thread = new Thread(() -> {
+				for (int j = 0; j < 10; ++j) {
+					try {
+						dependency.call();
+						completed.increment();
+					} catch (BulkheadFullException e) {
+						rejected.increment();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		AimdLimiter limiter = injector.getInstance(BulkheadInterceptor.class).getLimiter(MySlowDependency.class);
+		System.out.println(String.format("completed %d, rejected %d, limit %d, decreases %d, increases %d",
+			completed.sum(), rejected.sum(), limiter.getLimit(), limiter.getLimitDecreases(),
+			limiter.getLimitIncreases()));
+		assertEquals(320, completed.sum() + rejected.sum());
+		assertEquals(rejected.sum(), limiter.getRejected());
+		assertEquals(1, limiter.getLimit());
+		assertEquals(0, limiter.getInFlight());
+	}
+
+}
@@ -0,0 +1,420 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Scope;
+import com.google.inject.ScopeAnnotation;
+import com.google.inject.name.Names;
+
+public class CachedScopeGuiceLearningTest {
+
+	/**
+	 * Scope annotation for instances that are expensive to provide and that can
+	 * be reused for a while; the time to live and the maximum number of cached
+	 * instances are configured on the {@link CachedScope} bound to this
+	 * annotation.
+	 */
+	@Target({ TYPE, METHOD })
+	@Retention(RUNTIME)
+	@ScopeAnnotation
+	static @interface Cached {
+
+	}
+
+	static class MyClass1 {
+		@Inject
+		javax.inject.Provider<MyInterface> myInterfaceProvider;
+
+		public MyInterface getField() {
+			return myInterfaceProvider.get();
+		}
+
+	};
+
+	static class MyClass2 {
+		@Inject
+		@Named("first")
+		MyInterface first;
+
+		@Inject
+		@Named("second")
+		MyInterface second;
+
+	};
+
+	static interface MyInterface {
+
+	}
+
+	static class MyImplementation implements MyInterface {
+
+	};
+
+	/**
+	 * Simulates a provider hitting a slow backend: it counts how many times it is
+	 * called.
+	 */
+	static class MyCustomProvider implements javax.inject.Provider<MyInterface> {
+
+		private static final AtomicInteger calls = new AtomicInteger();
+
+		/**
+		 * If set, the backend does not answer until it is opened.
+		 */
+		private static volatile CountDownLatch gate;
+
+		@Override
+		public MyInterface get() {
+			calls.incrementAndGet();
+			CountDownLatch current = gate;
+			if (current != null) {
+				try {
+					current.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return new MyImplementation();
+		}
+
+	}
+
+	/**
+	 * A {@link Ticker} we can move forward manually, so that expiration does not
+	 * depend on the wall clock.
+	 */
+	static class FakeTicker extends Ticker {
+
+		private final AtomicLong nanos = new AtomicLong();
+
+		@Override
+		public long read() {
+			return nanos.get();
+		}
+
+		public void advance(long time, TimeUnit unit) {
+			nanos.addAndGet(unit.toNanos(time));
+		}
+
+	}
+
+	/**
+	 * Memoizes the instances provided for each {@link Key} (thus, also per
+	 * qualifier annotation) in a Guava {@link LoadingCache}, which is concurrent,
+	 * segmented and LRU bounded by size. Only one thread loads a missing entry,
+	 * the others wait for it. When an entry is older than three quarters of the
+	 * time to live it is reloaded in the background, while callers keep getting
+	 * the old value.
+	 *
+	 * The entries are keyed by the scoped provider, which holds the unscoped one,
+	 * so that a scope used by several injectors caches the instances of each
+	 * injector separately.
+	 */
+	static class CachedScope implements Scope, AutoCloseable {
+
+		/**
+		 * The provider returned for a binding, and the key of its cache entry.
+		 */
+		private class CachedProvider<T> implements Provider<T> {
+			private final Provider<T> unscoped;
+
+			CachedProvider(Provider<T> unscoped) {
+				this.unscoped = unscoped;
+			}
+
+			@Override
+			public T get() {
+				@SuppressWarnings("unchecked")
+				T toReturn = (T) cache.getUnchecked(this);
+				return toReturn;
+			}
+
+			@Override
+			public String toString() {
+				return String.format("%s[%s]", unscoped, CachedScope.this);
+			}
+		}
+
+		private final LoadingCache<CachedProvider<?>, Object> cache;
+
+		/**
+		 * The refresh executor created by this scope, shut down on
+		 * {@link #close()}; null if it was given.
+		 */
+		private final ExecutorService ownExecutor;
+
+		/**
+		 * Reloads the entries in daemon threads, so that neither the callers nor
+		 * the shutdown of the application wait for them; the threads are stopped
+		 * by {@link #close()}.
+		 */
+		public CachedScope(long ttl, TimeUnit unit, long maxSize) {
+			this(ttl, unit, maxSize, Ticker.systemTicker(), Executors.newCachedThreadPool(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cached-scope-refresh-%d").build()), true);
+		}
+
+		/**
+		 * The given executor is not shut down by {@link #close()}.
+		 */
+		public CachedScope(long ttl, TimeUnit unit, long maxSize, Ticker ticker, Executor refreshExecutor) {
+			this(ttl, unit, maxSize, ticker, refreshExecutor, false);
+		}
+
+		private CachedScope(long ttl, TimeUnit unit, long maxSize, Ticker ticker, Executor refreshExecutor,
+				boolean ownsExecutor) {
+			ownExecutor = ownsExecutor ? (ExecutorService) refreshExecutor : null;
+			CacheLoader<CachedProvider<?>, Object> loader = new CacheLoader<CachedProvider<?>, Object>() {
+				@Override
+				public Object load(CachedProvider<?> provider) {
+					return provider.unscoped.get();
+				}
+			};
+			long ttlNanos = unit.toNanos(ttl);
+			cache = CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(ttlNanos, TimeUnit.NANOSECONDS)
+				.refreshAfterWrite(ttlNanos - ttlNanos / 4, TimeUnit.NANOSECONDS)
+				.ticker(ticker)
+				.recordStats()
+				.build(CacheLoader.asyncReloading(loader, refreshExecutor));
+		}
+
+		@Override
+		public <T> Provider<T> scope(final Key<T> key, final Provider<T> unscoped) {
+			return new CachedProvider<>(unscoped);
+		}
+
+		/**
+		 * @return hit, miss and eviction counters
+		 */
+		public CacheStats getStats() {
+			return cache.stats();
+		}
+
+		/**
+		 * Stops the refresh threads created by this scope; the cached instances
+		 * are still returned, and missing ones are loaded by the callers.
+		 */
+		@Override
+		public void close() {
+			if (ownExecutor != null) {
+				ownExecutor.shutdownNow();
+			}
+		}
+
+		/**
+		 * @return true if this scope created its refresh threads and they are
+		 *         stopped
+		 */
+		public boolean isClosed() {
+			return ownExecutor != null && ownExecutor.isTerminated();
+		}
+
+		@Override
+		public String toString() {
+			return "CachedScope";
+		}
+
+	}
+
+	static class MyModule extends AbstractModule {
+
+		private CachedScope scope;
+
+		public MyModule(CachedScope scope) {
+			this.scope = scope;
+		}
+
+		@Override
+		protected void configure() {
+			bindScope(Cached.class, scope);
+			bind(CachedScope.class).toInstance(scope);
+			bind(MyInterface.class).toProvider(MyCustomProvider.class).in(Cached.class);
+			bind(MyInterface.class).annotatedWith(Names.named("first"))
+				.toProvider(MyCustomProvider.class).in(Cached.class);
+			bind(MyInterface.class).annotatedWith(Names.named("second"))
+				.toProvider(MyCustomProvider.class).in(Cached.class);
+		}
+
+	}
+
+	private FakeTicker ticker = new FakeTicker();
+
+	private Injector createInjector(long maxSize) {
+		return createInjector(maxSize, MoreExecutors.directExecutor());
+	}
+
+	private Injector createInjector(long maxSize, Executor refreshExecutor) {
+		MyCustomProvider.calls.set(0);
+		MyCustomProvider.gate = null;
+		return Guice.createInjector(new MyModule(new CachedScope(10, TimeUnit.SECONDS, maxSize, ticker, refreshExecutor)));
+	}
+
+	@Test
+	public void testProviderIsCalledOnlyOnceWithinTheTimeToLive() {
+		Injector injector = createInjector(10);
+		MyClass1 a1 = injector.getInstance(MyClass1.class);
+		MyClass1 a2 = injector.getInstance(MyClass1.class);
+		assertSame(a1.getField(), a2.getField());
+		assertSame(a1.getField(), a1.getField());
+		assertEquals(1, MyCustomProvider.calls.get());
+		CacheStats stats = injector.getInstance(CachedScope.class).getStats();
+		assertEquals(1, stats.missCount());
+		assertEquals(3, stats.hitCount());
+	}
+
+	@Test
+	public void testInstancesAreCachedPerQualifier() {
+		Injector injector = createInjector(10);
+		MyClass2 a = injector.getInstance(MyClass2.class);
+		assertNotSame(a.first, a.second);
+		assertSame(a.first, injector.getInstance(MyClass2.class).first);
+		assertSame(a.second, injector.getInstance(MyClass2.class).second);
+		assertEquals(2, MyCustomProvider.calls.get());
+	}
+
+	@Test
+	public void testEntryIsRefreshedNearExpiry() {
+		Injector injector = createInjector(10);
+		MyClass1 a = injector.getInstance(MyClass1.class);
+		MyInterface first = a.getField();
+		ticker.advance(5, TimeUnit.SECONDS);
+		assertSame(first, a.getField());
+		// after 3/4 of the time to live the value is reloaded
+		ticker.advance(3, TimeUnit.SECONDS);
+		a.getField();
+		assertNotSame(first, a.getField());
+		assertEquals(2, MyCustomProvider.calls.get());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEntriesAreEvicted() {
+		Injector injector = createInjector(1);
+		MyClass1 a = injector.getInstance(MyClass1.class);
+		MyInterface first = a.getField();
+		// the two qualified instances evict the unqualified one and each other
+		injector.getInstance(MyClass2.class);
+		assertEquals(2, injector.getInstance(CachedScope.class).getStats().evictionCount());
+		assertNotSame(first, a.getField());
+	}
+
+	@Test
+	public void testEntryIsRefreshedInTheBackground() throws Exception {
+		ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+		try {
+			Injector injector = createInjector(10, refreshExecutor);
+			MyClass1 a = injector.getInstance(MyClass1.class);
+			MyInterface first = a.getField();
+			MyCustomProvider.gate = new CountDownLatch(1);
+			ticker.advance(8, TimeUnit.SECONDS);
+			// the caller gets the old value while the backend is still reloading
+			assertSame(first, a.getField());
+			assertSame(first, a.getField());
+			MyCustomProvider.gate.countDown();
+			refreshExecutor.shutdown();
+			assertTrue(refreshExecutor.awaitTermination(5, TimeUnit.SECONDS));
+			assertNotSame(first, a.getField());
+			assertEquals(2, MyCustomProvider.calls.get());
+		} finally {
+			refreshExecutor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testInjectorsSharingTheScopeGetTheirOwnInstances() {
+		CachedScope scope = new CachedScope(10, TimeUnit.SECONDS, 10, ticker, MoreExecutors.directExecutor());
+		MyInterface other = new MyImplementation();
+		Injector first = Guice.createInjector(new MyModule(scope));
+		Injector second = Guice.createInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bindScope(Cached.class, scope);
+				bind(MyInterface.class).toProvider(() -> other).in(Cached.class);
+			}
+		});
+		MyInterface fromFirst = first.getInstance(MyInterface.class);
+		assertSame(other, second.getInstance(MyInterface.class));
+		assertSame(fromFirst, first.getInstance(MyInterface.class));
+		assertNotSame(other, fromFirst);
+	}
+
+	@Test
+	public void testCloseStopsTheRefreshThreads() throws Exception {
+		try (CachedScope scope = new CachedScope(10, TimeUnit.SECONDS, 10)) {
+			Injector injector = Guice.createInjector(new MyModule(scope));
+			injector.getInstance(MyClass1.class).getField();
+			scope.close();
+			for (int i = 0; i < 500 && !scope.isClosed(); ++i) {
+				Thread.sleep(10);
+			}
+			assertTrue(scope.isClosed());
+			// cached instances are still available
+			injector.getInstance(MyClass1.class).getField();
+		}
+	}
+
+	@Test
+	public void testOnlyOneThreadLoadsAMissingEntry() throws Exception {
+		Injector injector = createInjector(10);
+		MyClass1 a = injector.getInstance(MyClass1.class);
+		MyCustomProvider.gate = new CountDownLatch(1);
+		Set<MyInterface> results = Collections.newSetFromMap(new ConcurrentHashMap<>());
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 100; ++i) {
+			Thread thread = new Thread(() -> results.add(a.getField()));
+			threads.add(thread);
+			thread.start();
+		}
+		// the provider blocks the first thread, the others wait for it
+		while (threads.stream().anyMatch(t -> t.getState() == Thread.State.NEW
+				|| t.getState() == Thread.State.RUNNABLE)) {
+			Thread.sleep(1);
+		}
+		assertEquals(1, MyCustomProvider.calls.get());
+		MyCustomProvider.gate.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, MyCustomProvider.calls.get());
+		assertEquals(1, results.size());
+	}
+
+}
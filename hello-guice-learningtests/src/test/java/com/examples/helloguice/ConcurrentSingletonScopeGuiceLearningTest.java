@@ -0,0 +1,444 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.inject.Inject;
+
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.ProvisionException;
+import com.google.inject.Scope;
+import com.google.inject.ScopeAnnotation;
+import com.google.inject.Scopes;
+import com.google.inject.Singleton;
+import com.google.inject.name.Names;
+
+public class ConcurrentSingletonScopeGuiceLearningTest {
+
+	/**
+	 * Like {@link Singleton}, but implemented by {@link ConcurrentSingletonScope}.
+	 */
+	@Target({ TYPE, METHOD })
+	@Retention(RUNTIME)
+	@ScopeAnnotation
+	static @interface ConcurrentSingleton {
+
+	}
+
+	static interface MyInterface {
+
+	}
+
+	@ConcurrentSingleton
+	static class MySingleton implements MyInterface {
+		private static final AtomicInteger created = new AtomicInteger();
+
+		public MySingleton() throws InterruptedException {
+			created.incrementAndGet();
+			// simulate an expensive construction
+			Thread.sleep(10);
+		}
+	}
+
+	static class MyImplementation implements MyInterface {
+		public MyImplementation() throws InterruptedException {
+			// simulate an expensive construction
+			Thread.sleep(10);
+		}
+	}
+
+	// public, since the circular proxy must be able to call its methods
+	public static interface MyA {
+		MyB getB();
+	}
+
+	public static interface MyB {
+		MyA getA();
+	}
+
+	/**
+	 * If set, both constructors wait for each other, so that two threads are
+	 * creating the two ends of the cycle at the same time.
+	 */
+	static volatile CyclicBarrier bothConstructing;
+
+	private static void awaitBothConstructing() {
+		CyclicBarrier barrier = bothConstructing;
+		if (barrier != null) {
+			try {
+				barrier.await(5, TimeUnit.SECONDS);
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	static class MyAImpl implements MyA {
+		@Inject
+		private MyB b;
+
+		public MyAImpl() {
+			awaitBothConstructing();
+		}
+
+		@Override
+		public MyB getB() {
+			return b;
+		}
+	}
+
+	static class MyBImpl implements MyB {
+		@Inject
+		private MyA a;
+
+		public MyBImpl() {
+			awaitBothConstructing();
+		}
+
+		@Override
+		public MyA getA() {
+			return a;
+		}
+	}
+
+	@ConcurrentSingleton
+	static class MyCircularClass {
+		@Inject
+		public MyCircularClass(MyOtherCircularClass other) {
+		}
+	}
+
+	@ConcurrentSingleton
+	static class MyOtherCircularClass {
+		@Inject
+		public MyOtherCircularClass(MyCircularClass other) {
+		}
+	}
+
+	/**
+	 * A singleton scope where each key has its own lock, so that the construction
+	 * of a singleton never waits for the construction of unrelated singletons.
+	 *
+	 * Once the instance has been published in a volatile field, it is read
+	 * without locking.
+	 *
+	 * The lock is reentrant, so that, in case of a circular dependency, the
+	 * unscoped provider is called again on the same thread and Guice's own
+	 * circular dependency detection kicks in (creating a circular proxy for
+	 * interfaces, failing otherwise). Circular proxies are never published.
+	 *
+	 * When two threads create the two ends of a cycle at the same time, each
+	 * one holds the lock the other one needs: as Guice's SingletonScope does,
+	 * before waiting for a lock the scope walks the graph of the threads
+	 * waiting for each other, and if the owner of the lock is waiting, directly
+	 * or not, for the current thread, it does not wait, and returns a proxy
+	 * delegating to the instance being created by the other thread; this is
+	 * possible only if the key is an interface, otherwise the provision fails.
+	 * The graph is only used when the lock is contended, and each thread adds
+	 * itself before walking it, so that at least one of the threads of a cycle
+	 * sees it.
+	 */
+	static class ConcurrentSingletonScope implements Scope {
+
+		private static final Object NULL = new Object();
+
+		/**
+		 * A reentrant lock whose owner is known, so that cycles of threads
+		 * waiting for each other can be detected.
+		 */
+		@SuppressWarnings("serial")
+		private class CycleDetectingLock extends ReentrantLock {
+
+			/**
+			 * @return false, without acquiring the lock, if waiting for it would
+			 *         deadlock
+			 */
+			boolean lockOrDetectCycle() {
+				if (tryLock()) {
+					return true;
+				}
+				Thread current = Thread.currentThread();
+				waitGraph.put(current, this);
+				try {
+					// the walk is bounded, since the threads of another cycle may
+					// not have noticed it yet
+					Thread t = getOwner();
+					for (int steps = 0; t != null && steps <= waitGraph.size(); ++steps) {
+						if (t == current) {
+							return false;
+						}
+						CycleDetectingLock awaited = waitGraph.get(t);
+						t = awaited == null ? null : awaited.getOwner();
+					}
+					lockInterruptibly();
+					return true;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ProvisionException("Interrupted while waiting for a singleton", e);
+				} finally {
+					waitGraph.remove(current);
+				}
+			}
+		}
+
+		/**
+		 * The lock each thread is waiting for.
+		 */
+		private final Map<Thread, CycleDetectingLock> waitGraph = new ConcurrentHashMap<>();
+
+		@Override
+		public <T> Provider<T> scope(final Key<T> key, final Provider<T> unscoped) {
+			return new Provider<T>() {
+				private final CycleDetectingLock lock = new CycleDetectingLock();
+
+				private volatile Object instance;
+
+				@Override
+				public T get() {
+					Object result = instance;
+					if (result == null) {
+						if (!lock.lockOrDetectCycle()) {
+							return proxy();
+						}
+						try {
+							result = instance;
+							if (result == null) {
+								T provided = unscoped.get();
+								if (Scopes.isCircularProxy(provided)) {
+									return provided;
+								}
+								result = provided == null ? NULL : provided;
+								instance = result;
+							}
+						} finally {
+							lock.unlock();
+						}
+					}
+					@SuppressWarnings("unchecked")
+					T toReturn = (T) (result == NULL ? null : result);
+					return toReturn;
+				}
+
+				private T proxy() {
+					Class<? super T> type = key.getTypeLiteral().getRawType();
+					if (!type.isInterface()) {
+						throw new ProvisionException(String.format(
+							"Circular dependency between threads on %s, which is not an interface", key));
+					}
+					InvocationHandler handler = (proxy, method, args) -> {
+						if (instance == null) {
+							if (!lock.lockOrDetectCycle()) {
+								throw new IllegalStateException(String.format(
+									"The proxy of %s has been used before the instance was created", key));
+							}
+							lock.unlock();
+						}
+						try {
+							return method.invoke(get(), args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					};
+					@SuppressWarnings("unchecked")
+					T proxy = (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+					return proxy;
+				}
+
+				@Override
+				public String toString() {
+					return String.format("%s[%s]", unscoped, ConcurrentSingletonScope.this);
+				}
+			};
+		}
+
+		@Override
+		public String toString() {
+			return "ConcurrentSingletonScope";
+		}
+
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bindScope(ConcurrentSingleton.class, new ConcurrentSingletonScope());
+			bind(MyA.class).to(MyAImpl.class).in(ConcurrentSingleton.class);
+			bind(MyB.class).to(MyBImpl.class).in(ConcurrentSingleton.class);
+		}
+
+	}
+
+	private static final int THREADS = 64;
+
+	private static final int SINGLETONS = 16;
+
+	/**
+	 * Binds {@link #SINGLETONS} named {@link MyInterface} to
+	 * {@link MyImplementation} in the given scope.
+	 */
+	static class MyBenchmarkModule extends MyModule {
+
+		private Class<? extends Annotation> scopeAnnotation;
+
+		public MyBenchmarkModule(Class<? extends Annotation> scopeAnnotation) {
+			this.scopeAnnotation = scopeAnnotation;
+		}
+
+		@Override
+		protected void configure() {
+			super.configure();
+			for (int i = 0; i < SINGLETONS; ++i) {
+				bind(MyInterface.class).annotatedWith(Names.named("" + i)).to(MyImplementation.class)
+					.in(scopeAnnotation);
+			}
+		}
+
+	}
+
+	/**
+	 * All the threads start together and ask for the given keys.
+	 */
+	private void getConcurrently(Injector injector, List<Key<?>> keys, Set<Object> instances) throws Exception {
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		List<Exception> exceptions = Collections.synchronizedList(new ArrayList<>());
+		for (int i = 0; i < THREADS; ++i) {
+			final int offset = i;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < keys.size(); ++j) {
+							instances.add(injector.getInstance(keys.get((j + offset) % keys.size())));
+						}
+					} catch (Exception e) {
+						exceptions.add(e);
+					}
+				};
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (!exceptions.isEmpty()) {
+			throw exceptions.get(0);
+		}
+	}
+
+	private static List<Key<?>> namedKeys() {
+		List<Key<?>> keys = new ArrayList<>();
+		for (int i = 0; i < SINGLETONS; ++i) {
+			keys.add(Key.get(MyInterface.class, Names.named("" + i)));
+		}
+		return keys;
+	}
+
+	@Test
+	public void testExactlyOneInstanceOnConcurrentFirstAccess() throws Exception {
+		Injector injector = Guice.createInjector(new MyModule());
+		MySingleton.created.set(0);
+		Set<Object> instances = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+		getConcurrently(injector, Collections.singletonList(Key.get(MySingleton.class)), instances);
+		assertEquals(1, instances.size());
+		assertEquals(1, MySingleton.created.get());
+	}
+
+	@Test
+	public void testCircularDependencyOnInterfacesIsProxied() {
+		Injector injector = Guice.createInjector(new MyModule());
+		MyA a = injector.getInstance(MyA.class);
+		MyB b = injector.getInstance(MyB.class);
+		assertSame(b, a.getB());
+		// b received a circular proxy delegating to a
+		assertSame(b, b.getA().getB());
+		assertSame(a, injector.getInstance(MyA.class));
+	}
+
+	@Test
+	public void testCircularDependencyBetweenThreadsDoesNotDeadlock() throws Exception {
+		Injector injector = Guice.createInjector(new MyModule());
+		MyA[] a = new MyA[1];
+		MyB[] b = new MyB[1];
+		List<Throwable> exceptions = Collections.synchronizedList(new ArrayList<>());
+		bothConstructing = new CyclicBarrier(2);
+		try {
+			Thread first = new Thread(() -> a[0] = injector.getInstance(MyA.class));
+			Thread second = new Thread(() -> b[0] = injector.getInstance(MyB.class));
+			for (Thread thread : Arrays.asList(first, second)) {
+				thread.setUncaughtExceptionHandler((t, e) -> exceptions.add(e));
+				thread.start();
+			}
+			first.join(10000);
+			second.join(10000);
+			assertFalse("deadlock", first.isAlive() || second.isAlive());
+		} finally {
+			bothConstructing = null;
+		}
+		assertEquals(Collections.emptyList(), exceptions);
+		assertSame(a[0], injector.getInstance(MyA.class));
+		assertSame(b[0], injector.getInstance(MyB.class));
+		// one of them received a proxy, which delegates to the singleton
+		assertTrue(Proxy.isProxyClass(a[0].getB().getClass()) || Proxy.isProxyClass(b[0].getA().getClass()));
+		assertEquals(b[0].toString(), a[0].getB().toString());
+		assertEquals(a[0].toString(), b[0].getA().toString());
+	}
+
+	@Test(expected = ProvisionException.class)
+	public void testCircularDependencyOnClassesIsDetected() {
+		Injector injector = Guice.createInjector(new MyModule());
+		injector.getInstance(MyCircularClass.class);
+	}
+
+	/**
+	 * The concurrent first access to several singletons, with Guice's
+	 * {@link Singleton} and with our {@link ConcurrentSingleton}, gives one
+	 * instance per key.
+	 */
+	@Test
+	public void testConcurrentFirstAccessToSeveralSingletons() throws Exception {
+		for (Class<? extends Annotation> scopeAnnotation : Arrays.<Class<? extends Annotation>> asList(Singleton.class,
+				ConcurrentSingleton.class)) {
+			Injector injector = Guice.createInjector(new MyBenchmarkModule(scopeAnnotation));
+			Set<Object> instances = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+			getConcurrently(injector, namedKeys(), instances);
+			assertEquals(SINGLETONS, instances.size());
+		}
+	}
+
+}
@@ -0,0 +1,308 @@
+package com.examples.helloguice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.junit.Test;
+
+import com.examples.helloguice.GeneratedProviders.GeneratedConstructorProvider;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Names;
+
+public class ConstructorFactoryGuiceLearningTest {
+
+	static interface MyInterface {
+
+	}
+
+	static class MyImplementation implements MyInterface {
+
+	}
+
+	@Singleton
+	static class MySingleton {
+
+	}
+
+	static class MyClass {
+		private MyInterface field;
+
+		private MySingleton mySingleton;
+
+		private int port;
+
+		@Inject
+		private MyImplementation injectedField;
+
+		@Inject
+		public MyClass(MyInterface field, MySingleton mySingleton, @Named("port") int port) {
+			this.field = field;
+			this.mySingleton = mySingleton;
+			this.port = port;
+		}
+
+		public MyInterface getField() {
+			return field;
+		}
+
+		public MySingleton getMySingleton() {
+			return mySingleton;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public MyImplementation getInjectedField() {
+			return injectedField;
+		}
+	}
+
+	static class MyRecordingClass {
+		/**
+		 * The classes on the stack between Guice and this constructor.
+		 */
+		final List<String> callers = callers();
+
+		/**
+		 * The classes on the stack between Guice and the setter.
+		 */
+		List<String> setterCallers;
+
+		@Inject
+		public MyRecordingClass(MyInterface field) {
+		}
+
+		@Inject
+		public void setField(MyInterface field) {
+			setterCallers = callers();
+		}
+
+		private static List<String> callers() {
+			List<String> callers = new ArrayList<>();
+			for (StackTraceElement element : new Throwable().getStackTrace()) {
+				if (element.getClassName().startsWith("com.google.inject.")) {
+					break;
+				}
+				callers.add(element.getClassName());
+			}
+			return callers;
+		}
+	}
+
+	static class MyWideClass {
+		final List<String> values;
+
+		@Inject
+		public MyWideClass(String a, String b, String c, String d) {
+			values = Arrays.asList(a, b, c, d);
+		}
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyInterface.class).to(MyImplementation.class);
+			bindConstant().annotatedWith(Names.named("port")).to(8080);
+		}
+
+	}
+
+	/**
+	 * Generates, at runtime, a class implementing one of the ArityN interfaces
+	 * that calls the constructor directly, with {@link LambdaMetafactory}, as
+	 * the JDK does for method references like MyClass::new; constructors with
+	 * more parameters are called through a {@link MethodHandle}. In both cases
+	 * there is no reflective invocation of the constructor.
+	 */
+	static class ConstructorFactories {
+
+		static interface Arity0 {
+			Object create();
+		}
+
+		static interface Arity1 {
+			Object create(Object arg0);
+		}
+
+		static interface Arity2 {
+			Object create(Object arg0, Object arg1);
+		}
+
+		static interface Arity3 {
+			Object create(Object arg0, Object arg1, Object arg2);
+		}
+
+		private static final Class<?>[] ARITIES = { Arity0.class, Arity1.class, Arity2.class, Arity3.class };
+
+		@SuppressWarnings("unchecked")
+		public static <T> Function<Object[], T> generate(Constructor<T> constructor) {
+			try {
+				MethodHandles.Lookup lookup = MethodHandles.lookup();
+				MethodHandle handle = lookup.unreflectConstructor(constructor);
+				int arity = constructor.getParameterCount();
+				MethodType generic = MethodType.genericMethodType(arity);
+				if (arity >= ARITIES.length) {
+					MethodHandle spreader = handle.asType(generic).asSpreader(Object[].class, arity);
+					return args -> {
+						try {
+							return (T) (Object) spreader.invokeExact(args);
+						} catch (RuntimeException | Error e) {
+							throw e;
+						} catch (Throwable e) {
+							throw new IllegalStateException(e);
+						}
+					};
+				}
+				CallSite site = LambdaMetafactory.metafactory(lookup, "create", MethodType.methodType(ARITIES[arity]),
+					generic, handle, handle.type().wrap().changeReturnType(constructor.getDeclaringClass()));
+				Object factory = site.getTarget().invoke();
+				switch (arity) {
+				case 0:
+					Arity0 arity0 = (Arity0) factory;
+					return args -> (T) arity0.create();
+				case 1:
+					Arity1 arity1 = (Arity1) factory;
+					return args -> (T) arity1.create(args[0]);
+				case 2:
+					Arity2 arity2 = (Arity2) factory;
+					return args -> (T) arity2.create(args[0], args[1]);
+				default:
+					Arity3 arity3 = (Arity3) factory;
+					return args -> (T) arity3.create(args[0], args[1], args[2]);
+				}
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new IllegalStateException("cannot generate a factory for " + constructor, e);
+			}
+		}
+
+	}
+
+	/**
+	 * Binds the given classes to a {@link GeneratedConstructorProvider}, calling
+	 * the factory generated by {@link ConstructorFactories}, in the
+	 * scope specified by their scope annotation, if any; bindings to these
+	 * classes, e.g., MyInterface to MyImplementation, use them as well. Only the
+	 * given classes are concerned: the other ones, e.g., the ones bound just in
+	 * time, are still constructed by Guice.
+	 *
+	 * As with any provider binding, Guice cannot apply method interceptors to
+	 * the created instances, nor proxy them to break circular dependencies.
+	 */
+	static class ConstructorFactoryModule extends AbstractModule {
+
+		private final Class<?>[] types;
+
+		public ConstructorFactoryModule(Class<?>... types) {
+			this.types = types;
+		}
+
+		@Override
+		protected void configure() {
+			for (Class<?> type : types) {
+				bindToFactory(type);
+			}
+		}
+
+		private <T> void bindToFactory(Class<T> type) {
+			GeneratedConstructorProvider<T> provider = new GeneratedConstructorProvider<>(type,
+				ConstructorFactories::generate);
+			Class<? extends Annotation> scope = GeneratedProviders.scopeAnnotationOf(type);
+			if (scope == null) {
+				bind(type).toProvider(provider);
+			} else {
+				bind(type).toProvider(provider).in(scope);
+			}
+		}
+
+	}
+
+	@Test
+	public void testStockGuiceCallsTheConstructorReflectively() {
+		Injector injector = Guice.createInjector(new MyModule());
+		assertTrue(injector.getInstance(MyRecordingClass.class).callers.stream()
+			.anyMatch(GeneratedProviders::isReflective));
+	}
+
+	@Test
+	public void testGeneratedFactoryCallsTheConstructorDirectly() {
+		Injector injector = Guice.createInjector(new MyModule(),
+			new ConstructorFactoryModule(MyClass.class, MyImplementation.class, MySingleton.class,
+				MyRecordingClass.class));
+		MyRecordingClass recording = injector.getInstance(MyRecordingClass.class);
+		assertFalse(recording.callers.stream().anyMatch(GeneratedProviders::isReflective));
+		// the members are still injected by Guice, e.g., the injected field of
+		// MyClass is set with Field.set
+		assertTrue(recording.setterCallers.stream().anyMatch(GeneratedProviders::isReflective));
+		MyClass o = injector.getInstance(MyClass.class);
+		assertEquals(MyImplementation.class, o.getField().getClass());
+		assertEquals(8080, o.getPort());
+		assertEquals(MyImplementation.class, o.getInjectedField().getClass());
+		assertSame(o.getMySingleton(), injector.getInstance(MyClass.class).getMySingleton());
+		assertNotSame(o, injector.getInstance(MyClass.class));
+	}
+
+	@Test
+	public void testConstructorsWithManyParameters() {
+		@SuppressWarnings("unchecked")
+		Function<Object[], MyWideClass> factory = ConstructorFactories
+			.generate((Constructor<MyWideClass>) MyWideClass.class.getConstructors()[0]);
+		assertEquals(Arrays.asList("a", "b", "c", "d"), factory.apply(new Object[] { "a", "b", "c", "d" }).values);
+	}
+
+	/**
+	 * Compares the time to provide an unscoped MyClass with stock Guice and with
+	 * the generated factories, after a warm-up; the timings are only printed,
+	 * since they depend on the machine.
+	 */
+	@Test
+	public void testConstructorFactoryBenchmark() {
+		Provider<MyClass> stock = Guice.createInjector(new MyModule()).getProvider(MyClass.class);
+		Provider<MyClass> generated = Guice.createInjector(new MyModule(),
+			new ConstructorFactoryModule(MyClass.class, MyImplementation.class, MySingleton.class))
+			.getProvider(MyClass.class);
+		int iterations = 200000;
+		benchmark(stock, iterations);
+		benchmark(generated, iterations);
+		long stockNanos = benchmark(stock, iterations);
+		long generatedNanos = benchmark(generated, iterations);
+		System.out.println(String.format("provisioning of MyClass: stock Guice %d ns, generated factory %d ns",
+			stockNanos / iterations, generatedNanos / iterations));
+	}
+
+	private static long benchmark(Provider<MyClass> provider, int iterations) {
+		long start = System.nanoTime();
+		long sink = 0;
+		for (int i = 0; i < iterations; ++i) {
+			sink += provider.get().getPort();
+		}
+		assertEquals(8080L * iterations, sink);
+		return System.nanoTime() - start;
+	}
+
+}
@@ -0,0 +1,341 @@
+package com.examples.helloguice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.junit.Test;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.BindingAnnotation;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Scopes;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.name.Names;
+import com.google.inject.spi.InjectionListener;
+import com.google.inject.spi.InstanceBinding;
+import com.google.inject.spi.ProvisionListener;
+import com.google.inject.spi.TypeEncounter;
+import com.google.inject.spi.TypeListener;
+
+public class FastProviderGuiceLearningTest {
+
+	static interface MyInterface {
+
+	}
+
+	static class MyImplementation implements MyInterface {
+
+	}
+
+	@Singleton
+	static class MySingleton {
+
+	}
+
+	static class MyClass {
+		@Inject
+		javax.inject.Provider<MyInterface> myInterfaceProvider;
+
+		@Inject
+		Provider<MySingleton> mySingletonProvider;
+
+		@Inject
+		@Named("unscoped")
+		javax.inject.Provider<MyInterface> unscopedProvider;
+
+		public MyInterface getField() {
+			return myInterfaceProvider.get();
+		}
+	}
+
+	// the fixed instance always returned
+	static private MyInterface fixed = new MyImplementation();
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyInterface.class).toInstance(fixed);
+			bind(MyInterface.class).annotatedWith(Names.named("unscoped")).to(MyImplementation.class);
+		}
+
+	}
+
+	/**
+	 * Replaces, after injection, the injected Provider fields whose key is bound
+	 * to an instance, or to a singleton, with a provider returning the reference
+	 * directly, without the context Guice sets up at each call.
+	 *
+	 * For a singleton, the first call still goes through Guice, and the result
+	 * is cached if it is not a circular proxy: Guice calls the provision
+	 * listeners only when a singleton is created, and never for instance
+	 * bindings, so they are notified exactly as without this module. The
+	 * providers of other bindings are not changed.
+	 *
+	 * The listener is inherited by child injectors, which can bind the same key
+	 * differently, so the providers are cached by binding, not by key; the
+	 * bindings are weakly referenced, so that discarded injectors are
+	 * collected.
+	 */
+	static class FastProviderModule extends AbstractModule {
+
+		/**
+		 * A provider for an instance binding, or for an already resolved singleton.
+		 */
+		static class ResolvedProvider<T> implements Provider<T> {
+			private final Provider<T> delegate;
+
+			private volatile T instance;
+
+			ResolvedProvider(Provider<T> delegate, T instance) {
+				this.delegate = delegate;
+				this.instance = instance;
+			}
+
+			@Override
+			public T get() {
+				T result = instance;
+				if (result == null) {
+					result = delegate.get();
+					if (!Scopes.isCircularProxy(result)) {
+						instance = result;
+					}
+				}
+				return result;
+			}
+		}
+
+		private final Cache<Binding<?>, Provider<?>> providers = CacheBuilder.newBuilder().weakKeys().build();
+
+		@Override
+		protected void configure() {
+			bindListener(Matchers.any(), new TypeListener() {
+				@Override
+				public <I> void hear(TypeLiteral<I> type, TypeEncounter<I> encounter) {
+					List<Field> fields = new ArrayList<>();
+					List<Key<?>> keys = new ArrayList<>();
+					for (Class<?> c = type.getRawType(); c != Object.class && c != null; c = c.getSuperclass()) {
+						for (Field field : c.getDeclaredFields()) {
+							Key<?> key = providedKeyOf(type, field);
+							if (key != null) {
+								field.setAccessible(true);
+								fields.add(field);
+								keys.add(key);
+							}
+						}
+					}
+					if (fields.isEmpty()) {
+						return;
+					}
+					Provider<Injector> injectorProvider = encounter.getProvider(Injector.class);
+					encounter.register((InjectionListener<I>) instance -> {
+						for (int i = 0; i < fields.size(); ++i) {
+							Provider<?> provider = fastProviderOf(injectorProvider.get(), keys.get(i));
+							if (provider != null) {
+								try {
+									fields.get(i).set(instance, provider);
+								} catch (IllegalAccessException e) {
+									throw new IllegalStateException(e);
+								}
+							}
+						}
+					});
+				}
+			});
+		}
+
+		/**
+		 * @return the key provided by the field, if it is an injected Provider
+		 */
+		private static Key<?> providedKeyOf(TypeLiteral<?> type, Field field) {
+			if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())
+					|| (!field.isAnnotationPresent(Inject.class)
+							&& !field.isAnnotationPresent(com.google.inject.Inject.class))
+					|| (field.getType() != Provider.class && field.getType() != javax.inject.Provider.class)) {
+				return null;
+			}
+			Type fieldType = type.getFieldType(field).getType();
+			if (!(fieldType instanceof ParameterizedType)) {
+				return null;
+			}
+			Type providedType = ((ParameterizedType) fieldType).getActualTypeArguments()[0];
+			for (Annotation annotation : field.getAnnotations()) {
+				Class<? extends Annotation> annotationType = annotation.annotationType();
+				if (annotationType.isAnnotationPresent(BindingAnnotation.class)
+						|| annotationType.isAnnotationPresent(javax.inject.Qualifier.class)) {
+					return Key.get(providedType, annotation);
+				}
+			}
+			return Key.get(providedType);
+		}
+
+		/**
+		 * @return null if the binding of the key is neither an instance binding nor
+		 *         a singleton
+		 */
+		private Provider<?> fastProviderOf(Injector injector, Key<?> key) {
+			Binding<?> binding = injector.getBinding(key);
+			Provider<?> provider = providers.getIfPresent(binding);
+			if (provider == null) {
+				if (binding instanceof InstanceBinding) {
+					provider = new ResolvedProvider<>(null, ((InstanceBinding<?>) binding).getInstance());
+				} else if (Scopes.isSingleton(binding)) {
+					provider = new ResolvedProvider<>(binding.getProvider(), null);
+				} else {
+					return null;
+				}
+				Provider<?> previous = providers.asMap().putIfAbsent(binding, provider);
+				if (previous != null) {
+					provider = previous;
+				}
+			}
+			return provider;
+		}
+
+	}
+
+	@Test
+	public void testResolvedBindingsGetTheFastProvider() {
+		Injector injector = Guice.createInjector(new MyModule(), new FastProviderModule());
+		MyClass o = injector.getInstance(MyClass.class);
+		assertSame(fixed, o.getField());
+		assertTrue(o.myInterfaceProvider instanceof FastProviderModule.ResolvedProvider);
+		assertTrue(o.mySingletonProvider instanceof FastProviderModule.ResolvedProvider);
+		assertSame(injector.getInstance(MySingleton.class), o.mySingletonProvider.get());
+		// unscoped bindings keep the provider of Guice
+		assertTrue(!(o.unscopedProvider instanceof FastProviderModule.ResolvedProvider));
+		assertNotSame(o.unscopedProvider.get(), o.unscopedProvider.get());
+		// the same provider is shared among the instances
+		assertSame(o.mySingletonProvider, injector.getInstance(MyClass.class).mySingletonProvider);
+	}
+
+	static class MyOtherImplementation implements MyInterface {
+
+	}
+
+	/**
+	 * Sibling children of an injector with the module bind the same keys
+	 * differently, and each gets the provider of its own binding.
+	 */
+	@Test
+	public void testSiblingChildInjectorsGetTheirOwnProviders() {
+		Injector parent = Guice.createInjector(new FastProviderModule());
+		MyInterface first = new MyImplementation();
+		MyInterface second = new MyOtherImplementation();
+		Injector firstChild = parent.createChildInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(MyInterface.class).toInstance(first);
+				bind(MyInterface.class).annotatedWith(Names.named("unscoped")).to(MyImplementation.class);
+				bind(MySingleton.class);
+			}
+		});
+		Injector secondChild = parent.createChildInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(MyInterface.class).toInstance(second);
+				bind(MyInterface.class).annotatedWith(Names.named("unscoped")).to(MyOtherImplementation.class);
+				bind(MySingleton.class);
+			}
+		});
+		MyClass firstObject = firstChild.getInstance(MyClass.class);
+		MyClass secondObject = secondChild.getInstance(MyClass.class);
+		assertSame(first, firstObject.getField());
+		assertSame(second, secondObject.getField());
+		assertTrue(firstObject.mySingletonProvider instanceof FastProviderModule.ResolvedProvider);
+		assertTrue(secondObject.mySingletonProvider instanceof FastProviderModule.ResolvedProvider);
+		assertSame(firstChild.getInstance(MySingleton.class), firstObject.mySingletonProvider.get());
+		assertSame(secondChild.getInstance(MySingleton.class), secondObject.mySingletonProvider.get());
+		assertNotSame(firstObject.mySingletonProvider.get(), secondObject.mySingletonProvider.get());
+	}
+
+	@Test
+	public void testProvisionListenersAreNotifiedAsWithoutTheModule() {
+		for (boolean fast : new boolean[] { false, true }) {
+			AtomicInteger singletons = new AtomicInteger();
+			AtomicInteger unscoped = new AtomicInteger();
+			AbstractModule listenerModule = new AbstractModule() {
+				@Override
+				protected void configure() {
+					bindListener(Matchers.any(), new ProvisionListener() {
+						@Override
+						public <T> void onProvision(ProvisionInvocation<T> provision) {
+							Class<?> type = provision.getBinding().getKey().getTypeLiteral().getRawType();
+							if (type == MySingleton.class) {
+								singletons.incrementAndGet();
+							} else if (type == MyImplementation.class) {
+								unscoped.incrementAndGet();
+							}
+						}
+					});
+				}
+			};
+			Injector injector = fast
+					? Guice.createInjector(new MyModule(), listenerModule, new FastProviderModule())
+					: Guice.createInjector(new MyModule(), listenerModule);
+			for (int i = 0; i < 3; ++i) {
+				MyClass o = injector.getInstance(MyClass.class);
+				o.mySingletonProvider.get();
+				o.unscopedProvider.get();
+			}
+			assertEquals(1, singletons.get());
+			assertEquals(3, unscoped.get());
+		}
+	}
+
+	/**
+	 * Compares the time of Provider.get() for an instance binding with stock
+	 * Guice, with the fast provider, and a plain field read, after a warm-up;
+	 * the timings are only printed, since they depend on the machine.
+	 */
+	@Test
+	public void testFastProviderBenchmark() {
+		MyClass stock = Guice.createInjector(new MyModule()).getInstance(MyClass.class);
+		MyClass fast = Guice.createInjector(new MyModule(), new FastProviderModule()).getInstance(MyClass.class);
+		int iterations = 10000000;
+		benchmark(stock.myInterfaceProvider, iterations);
+		benchmark(fast.myInterfaceProvider, iterations);
+		long stockNanos = benchmark(stock.myInterfaceProvider, iterations);
+		long fastNanos = benchmark(fast.myInterfaceProvider, iterations);
+		MyInterface[] field = { fixed };
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i) {
+			assertSame(fixed, field[0]);
+		}
+		long fieldNanos = System.nanoTime() - start;
+		System.out.println(String.format("Provider.get() of an instance binding: stock Guice %.1f ns, "
+				+ "fast provider %.1f ns, field read %.1f ns", (double) stockNanos / iterations,
+			(double) fastNanos / iterations, (double) fieldNanos / iterations));
+	}
+
+	private static long benchmark(javax.inject.Provider<MyInterface> provider, int iterations) {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i) {
+			assertSame(fixed, provider.get());
+		}
+		return System.nanoTime() - start;
+	}
+
+}
@@ -0,0 +1,404 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.Scope;
+import com.google.inject.ScopeAnnotation;
+import com.google.inject.Singleton;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.spi.DefaultBindingScopingVisitor;
+import com.google.inject.spi.ProvisionListener;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Java Flight Recorder events are available in OpenJDK 8 since 8u262; with
+ * older JDKs, this test is not compiled, see the no-jfr profile in the pom.
+ */
+public class FlightRecorderGuiceLearningTest {
+
+	@Name("com.examples.helloguice.Provision")
+	@Label("Guice Provision")
+	@Category("Guice")
+	static class ProvisionEvent extends Event {
+		@Label("Key")
+		String key;
+
+		@Label("Binding Source")
+		String source;
+
+		@Label("Scope")
+		String scope;
+
+		@Label("Nesting Depth")
+		int depth;
+	}
+
+	@Name("com.examples.helloguice.FactoryScope")
+	@Label("Guice Factory Scope")
+	@Category("Guice")
+	static class FactoryScopeEvent extends Event {
+		@Label("Parameters")
+		int parameters;
+
+		@Label("Nesting Depth")
+		int depth;
+	}
+
+	@Name("com.examples.helloguice.ChildInjector")
+	@Label("Guice Child Injector Creation")
+	@Category("Guice")
+	static class ChildInjectorEvent extends Event {
+		@Label("Modules")
+		String modules;
+	}
+
+	@Target({ TYPE, METHOD })
+	@Retention(RUNTIME)
+	@ScopeAnnotation
+	static @interface FactoryParameterScoped {
+
+	}
+
+	@FactoryParameterScoped
+	static class MyParam {
+
+	}
+
+	@Singleton
+	static class MySingleton {
+
+	}
+
+	static interface MyInterface {
+
+	}
+
+	static class MyImplementation implements MyInterface {
+
+	}
+
+	static class MyClass {
+		private MyParam myParam;
+
+		@Inject
+		public MyClass(MyInterface field, MySingleton mySingleton, MyParam myParam) {
+			this.myParam = myParam;
+		}
+
+		public MyParam getMyParam() {
+			return myParam;
+		}
+	}
+
+	/**
+	 * Like the FactoryScope of {@link CustomScopeGuiceLearningTest}, but
+	 * recording a {@link FactoryScopeEvent} from enter() to leave().
+	 */
+	static class FactoryScope implements Scope {
+
+		private static class Parameters extends HashMap<Key<?>, Object> {
+
+			private static final long serialVersionUID = -2391563214287451237L;
+
+			private final FactoryScopeEvent event = new FactoryScopeEvent();
+
+		}
+
+		private final ThreadLocal<ArrayDeque<Parameters>> parametersStack = new ThreadLocal<ArrayDeque<Parameters>>() {
+			@Override
+			protected ArrayDeque<Parameters> initialValue() {
+				return new ArrayDeque<>();
+			}
+		};
+
+		@Override
+		public <T> Provider<T> scope(final Key<T> key, final Provider<T> unscoped) {
+			return new Provider<T>() {
+				@Override
+				public T get() {
+					@SuppressWarnings("unchecked")
+					T toReturn = (T) parametersStack.get().peek().get(key);
+					return toReturn;
+				}
+			};
+		}
+
+		public void enter() {
+			Parameters parameters = new Parameters();
+			parameters.event.begin();
+			parametersStack.get().push(parameters);
+		}
+
+		public void leave() {
+			ArrayDeque<Parameters> stack = parametersStack.get();
+			Parameters parameters = stack.pop();
+			FactoryScopeEvent event = parameters.event;
+			event.end();
+			if (event.shouldCommit()) {
+				event.parameters = parameters.size();
+				event.depth = stack.size();
+				event.commit();
+			}
+		}
+
+		public void addParameter(Object o) {
+			parametersStack.get().peek().put(Key.get(o.getClass()), o);
+		}
+
+	}
+
+	/**
+	 * Records a {@link ProvisionEvent} for each provision; the event is disabled
+	 * by default, and the key, source and scope are turned into strings only when
+	 * the event is actually recorded, so that the overhead is small when no
+	 * recording is running.
+	 */
+	static class FlightRecorderModule extends AbstractModule {
+
+		private static final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[1];
+			}
+		};
+
+		@Override
+		protected void configure() {
+			bindListener(Matchers.any(), new ProvisionListener() {
+				@Override
+				public <T> void onProvision(ProvisionInvocation<T> provision) {
+					ProvisionEvent event = new ProvisionEvent();
+					if (!event.isEnabled()) {
+						provision.provision();
+						return;
+					}
+					int[] currentDepth = depth.get();
+					event.begin();
+					currentDepth[0]++;
+					try {
+						provision.provision();
+					} finally {
+						currentDepth[0]--;
+						event.end();
+						if (event.shouldCommit()) {
+							Binding<T> binding = provision.getBinding();
+							event.key = binding.getKey().toString();
+							event.source = String.valueOf(binding.getSource());
+							event.scope = scopeOf(binding);
+							event.depth = currentDepth[0];
+							event.commit();
+						}
+					}
+				}
+			});
+		}
+
+		private static String scopeOf(Binding<?> binding) {
+			return binding.acceptScopingVisitor(new DefaultBindingScopingVisitor<String>() {
+				@Override
+				public String visitEagerSingleton() {
+					return "EagerSingleton";
+				}
+
+				@Override
+				public String visitScope(Scope scope) {
+					return scope.toString();
+				}
+
+				@Override
+				public String visitScopeAnnotation(Class<? extends Annotation> scopeAnnotation) {
+					return "@" + scopeAnnotation.getSimpleName();
+				}
+
+				@Override
+				public String visitNoScoping() {
+					return "NoScope";
+				}
+			});
+		}
+
+		/**
+		 * @return an injector delegating to the given one, whose createChildInjector
+		 *         methods record a {@link ChildInjectorEvent} and return injectors
+		 *         instrumented in the same way; child injectors created through
+		 *         the Injector that Guice injects are not recorded, since Guice
+		 *         offers no hook for their creation.
+		 */
+		public static Injector recordChildInjectors(Injector injector) {
+			InvocationHandler handler = (proxy, method, args) -> {
+				if (!method.getName().equals("createChildInjector")) {
+					try {
+						return method.invoke(injector, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				}
+				ChildInjectorEvent event = new ChildInjectorEvent();
+				event.begin();
+				Injector child;
+				try {
+					child = (Injector) method.invoke(injector, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+				event.end();
+				if (event.shouldCommit()) {
+					Iterable<?> modules = args[0] instanceof Module[] ? Arrays.asList((Module[]) args[0])
+							: (Iterable<?>) args[0];
+					List<String> names = new ArrayList<>();
+					for (Object module : modules) {
+						names.add(module.getClass().getName());
+					}
+					event.modules = String.join(", ", names);
+					event.commit();
+				}
+				return recordChildInjectors(child);
+			};
+			return (Injector) Proxy.newProxyInstance(Injector.class.getClassLoader(), new Class<?>[] { Injector.class },
+				handler);
+		}
+
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			FactoryScope scope = new FactoryScope();
+			bindScope(FactoryParameterScoped.class, scope);
+			bind(FactoryScope.class).toInstance(scope);
+			bind(MyInterface.class).to(MyImplementation.class);
+			install(new FlightRecorderModule());
+		}
+
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private List<RecordedEvent> record(Runnable runnable) throws IOException {
+		File file = folder.newFile("guice.jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(ProvisionEvent.class).withThreshold(java.time.Duration.ZERO);
+			recording.enable(FactoryScopeEvent.class).withThreshold(java.time.Duration.ZERO);
+			recording.enable(ChildInjectorEvent.class).withThreshold(java.time.Duration.ZERO);
+			recording.start();
+			runnable.run();
+			recording.stop();
+			recording.dump(file.toPath());
+		}
+		return RecordingFile.readAllEvents(file.toPath());
+	}
+
+	private static List<RecordedEvent> eventsNamed(List<RecordedEvent> events, String name) {
+		List<RecordedEvent> result = new ArrayList<>();
+		for (RecordedEvent event : events) {
+			if (event.getEventType().getName().equals(name)) {
+				result.add(event);
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void testProvisionAndScopeEvents() throws IOException {
+		Injector injector = Guice.createInjector(new MyModule());
+		FactoryScope scope = injector.getInstance(FactoryScope.class);
+		List<RecordedEvent> events = record(() -> {
+			scope.enter();
+			try {
+				scope.addParameter(new MyParam());
+				injector.getInstance(MyClass.class);
+			} finally {
+				scope.leave();
+			}
+		});
+		List<RecordedEvent> provisions = eventsNamed(events, "com.examples.helloguice.Provision");
+		RecordedEvent myClass = null;
+		for (RecordedEvent event : provisions) {
+			if (event.getString("key").contains("MyClass")) {
+				myClass = event;
+			}
+		}
+		assertNotNull(myClass);
+		assertEquals(0, myClass.getInt("depth"));
+		assertEquals("NoScope", myClass.getString("scope"));
+		assertEquals(Thread.currentThread().getName(), myClass.getThread().getJavaName());
+		RecordedEvent mySingleton = null;
+		for (RecordedEvent event : provisions) {
+			if (event.getString("key").contains("MySingleton")) {
+				mySingleton = event;
+			}
+		}
+		assertNotNull(mySingleton);
+		assertEquals(1, mySingleton.getInt("depth"));
+		assertEquals("Scopes.SINGLETON", mySingleton.getString("scope"));
+		List<RecordedEvent> scopes = eventsNamed(events, "com.examples.helloguice.FactoryScope");
+		assertEquals(1, scopes.size());
+		assertEquals(1, scopes.get(0).getInt("parameters"));
+	}
+
+	@Test
+	public void testChildInjectorEvent() throws IOException {
+		Injector injector = FlightRecorderModule.recordChildInjectors(Guice.createInjector(new MyModule()));
+		Module paramModule = new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(MyParam.class).toInstance(new MyParam());
+			}
+		};
+		Module singletonModule = binder -> binder.bind(MySingleton.class);
+		List<RecordedEvent> events = record(() -> injector.createChildInjector(paramModule)
+			.createChildInjector(Arrays.asList(singletonModule)));
+		List<RecordedEvent> children = eventsNamed(events, "com.examples.helloguice.ChildInjector");
+		assertEquals(2, children.size());
+		assertTrue(children.get(0).getDuration().toNanos() > 0);
+		Set<String> modules = new HashSet<>();
+		for (RecordedEvent child : children) {
+			modules.add(child.getString("modules"));
+		}
+		assertEquals(new HashSet<>(Arrays.asList(paramModule.getClass().getName(), singletonModule.getClass().getName())),
+			modules);
+	}
+
+}
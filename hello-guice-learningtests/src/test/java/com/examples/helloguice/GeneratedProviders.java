@@ -0,0 +1,129 @@
+package com.examples.helloguice;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.MembersInjector;
+import com.google.inject.Provider;
+import com.google.inject.ScopeAnnotation;
+import com.google.inject.spi.Dependency;
+import com.google.inject.spi.InjectionPoint;
+import com.google.inject.spi.ProviderWithDependencies;
+
+/**
+ * What {@link ConstructorFactoryGuiceLearningTest} and
+ * {@link MembersInjectorGuiceLearningTest} share to provide instances without
+ * the reflective construction of Guice.
+ */
+class GeneratedProviders {
+
+	private GeneratedProviders() {
+	}
+
+	/**
+	 * Provides instances with the factory generated for the injectable
+	 * constructor, getting the arguments from the providers of the injector; the
+	 * fields and methods to inject, if any, are then injected by the
+	 * {@link MembersInjector} of Guice, thus still reflectively.
+	 *
+	 * Since it declares its dependencies, they are validated when the injector
+	 * is created, as for constructor bindings.
+	 *
+	 * Subclasses can inject the members differently.
+	 */
+	static class GeneratedConstructorProvider<T> implements ProviderWithDependencies<T> {
+
+		private final Class<T> type;
+
+		private final Function<Object[], T> factory;
+
+		private final List<Dependency<?>> parameters;
+
+		private Provider<?>[] parameterProviders;
+
+		private MembersInjector<T> membersInjector;
+
+		/**
+		 * @param generator creates the factory calling the given constructor with
+		 *        the given arguments
+		 */
+		@SuppressWarnings("unchecked")
+		public GeneratedConstructorProvider(Class<T> type,
+				Function<Constructor<T>, Function<Object[], T>> generator) {
+			this.type = type;
+			InjectionPoint injectionPoint = InjectionPoint.forConstructorOf(type);
+			factory = generator.apply((Constructor<T>) injectionPoint.getMember());
+			parameters = injectionPoint.getDependencies();
+		}
+
+		@Inject
+		void initialize(Injector injector) {
+			parameterProviders = new Provider<?>[parameters.size()];
+			for (Dependency<?> parameter : parameters) {
+				parameterProviders[parameter.getParameterIndex()] = injector.getProvider(parameter.getKey());
+			}
+			if (!InjectionPoint.forInstanceMethodsAndFields(type).isEmpty()) {
+				membersInjector = membersInjectorOf(injector, type);
+			}
+		}
+
+		protected MembersInjector<T> membersInjectorOf(Injector injector, Class<T> type) {
+			return injector.getMembersInjector(type);
+		}
+
+		@Override
+		public T get() {
+			Object[] args = new Object[parameterProviders.length];
+			for (int i = 0; i < args.length; ++i) {
+				args[i] = parameterProviders[i].get();
+			}
+			T instance = factory.apply(args);
+			if (membersInjector != null) {
+				membersInjector.injectMembers(instance);
+			}
+			return instance;
+		}
+
+		@Override
+		public Set<Dependency<?>> getDependencies() {
+			Set<Dependency<?>> dependencies = new HashSet<>(parameters);
+			dependencies.add(Dependency.get(Key.get(Injector.class)));
+			return dependencies;
+		}
+
+	}
+
+
+	/**
+	 * @return the scope annotation of the type, e.g., {@link javax.inject.Singleton},
+	 *         or null
+	 */
+	static Class<? extends Annotation> scopeAnnotationOf(Class<?> type) {
+		for (Annotation annotation : type.getAnnotations()) {
+			Class<? extends Annotation> annotationType = annotation.annotationType();
+			if (annotationType.isAnnotationPresent(ScopeAnnotation.class)
+					|| annotationType.isAnnotationPresent(javax.inject.Scope.class)) {
+				return annotationType;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the class, found on a stack trace, invokes a member
+	 *         reflectively
+	 */
+	static boolean isReflective(String className) {
+		return className.startsWith("java.lang.reflect.") || className.startsWith("sun.reflect.")
+				|| className.startsWith("jdk.internal.reflect.") || className.contains("FastClass");
+	}
+
+}
@@ -0,0 +1,506 @@
+package com.examples.helloguice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.junit.Test;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.PrivateModule;
+import com.google.inject.Scope;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.name.Names;
+import com.google.inject.spi.ConstructorBinding;
+import com.google.inject.spi.DefaultBindingScopingVisitor;
+import com.google.inject.spi.DefaultBindingTargetVisitor;
+import com.google.inject.spi.DefaultElementVisitor;
+import com.google.inject.spi.DisableCircularProxiesOption;
+import com.google.inject.spi.Element;
+import com.google.inject.spi.Elements;
+import com.google.inject.spi.InjectionRequest;
+import com.google.inject.spi.InstanceBinding;
+import com.google.inject.spi.InterceptorBinding;
+import com.google.inject.spi.LinkedKeyBinding;
+import com.google.inject.spi.MembersInjectorLookup;
+import com.google.inject.spi.ModuleAnnotatedMethodScannerBinding;
+import com.google.inject.spi.PrivateElements;
+import com.google.inject.spi.ProviderInstanceBinding;
+import com.google.inject.spi.ProviderKeyBinding;
+import com.google.inject.spi.ProviderLookup;
+import com.google.inject.spi.ProvisionListener;
+import com.google.inject.spi.ProvisionListenerBinding;
+import com.google.inject.spi.RequireAtInjectOnConstructorsOption;
+import com.google.inject.spi.RequireExactBindingAnnotationsOption;
+import com.google.inject.spi.RequireExplicitBindingsOption;
+import com.google.inject.spi.ScopeBinding;
+import com.google.inject.spi.StaticInjectionRequest;
+import com.google.inject.spi.TypeConverterBinding;
+import com.google.inject.spi.TypeListenerBinding;
+import com.google.inject.spi.UntargettedBinding;
+
+public class InjectorCacheGuiceLearningTest {
+
+	static class MyClass1 {
+		@Inject
+		@Named("URL")
+		private String url;
+
+		@Inject
+		@Named("port")
+		private int port;
+
+		@Override
+		public String toString() {
+			return "MyClass1 [url=" + url + ", port=" + port + "]";
+		}
+	};
+
+	static class MyLocalHostModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(String.class).
+				annotatedWith(Names.named("URL")).
+				toInstance("localhost");
+			bind(int.class).
+				annotatedWith(Names.named("port")).
+				toInstance(8080);
+		}
+
+	}
+
+	static class MyGoogleModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(String.class).
+				annotatedWith(Names.named("URL")).
+				toInstance("www.google.com");
+			bind(int.class).
+				annotatedWith(Names.named("port")).
+				toInstance(80);
+		}
+
+	}
+
+	/**
+	 * A tenant configured at runtime.
+	 */
+	static class MyTenantModule extends AbstractModule {
+
+		private final String url;
+
+		private final int port;
+
+		public MyTenantModule(String url, int port) {
+			this.url = url;
+			this.port = port;
+		}
+
+		@Override
+		protected void configure() {
+			bind(String.class).annotatedWith(Names.named("URL")).toInstance(url);
+			bind(int.class).annotatedWith(Names.named("port")).toInstance(port);
+		}
+
+	}
+
+	/**
+	 * Reuses injectors created from modules with the same elements, identified
+	 * by a fingerprint of their content: for bindings, keys, targets, instance
+	 * values and scopes; the class of the modules does not matter.
+	 *
+	 * The fingerprint is a list, compared with equals: instance values are
+	 * compared with their equals and hashCode, while objects which may hold any
+	 * state, such as providers, listeners and interceptors, are compared by
+	 * identity, so that two tenants share an injector only if their elements
+	 * are equal, not just their string representations.
+	 *
+	 * The cache is bounded by a budget expressed in number of bindings,
+	 * evicting the least recently used injectors, and also the ones that have
+	 * been idle for too long.
+	 */
+	static class InjectorCache {
+
+		private final Cache<List<Object>, Injector> cache;
+
+		private final AtomicLong reusedBindings = new AtomicLong();
+
+		public InjectorCache(long maxBindings, long maxIdle, TimeUnit unit) {
+			cache = CacheBuilder.newBuilder()
+				.maximumWeight(maxBindings)
+				.weigher((List<Object> fingerprint, Injector injector) -> injector.getAllBindings().size())
+				.expireAfterAccess(maxIdle, unit)
+				.recordStats()
+				.build();
+		}
+
+		public Injector getInjector(Module... modules) {
+			List<Element> elements = Elements.getElements(modules);
+			AtomicBoolean created = new AtomicBoolean();
+			try {
+				Injector injector = cache.get(fingerprint(elements), () -> {
+					created.set(true);
+					return Guice.createInjector(Elements.getModule(elements));
+				});
+				if (!created.get()) {
+					reusedBindings.addAndGet(injector.getAllBindings().size());
+				}
+				return injector;
+			} catch (ExecutionException | UncheckedExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+
+		public static List<Object> fingerprint(List<Element> elements) {
+			List<Object> fingerprint = new ArrayList<>(elements.size());
+			for (Element element : elements) {
+				fingerprint.add(element.acceptVisitor(new ElementDescription()));
+			}
+			return fingerprint;
+		}
+
+		/**
+		 * Compares the wrapped object by identity.
+		 */
+		private static final class Identity {
+			private final Object object;
+
+			Identity(Object object) {
+				this.object = object;
+			}
+
+			@Override
+			public boolean equals(Object obj) {
+				return obj instanceof Identity && ((Identity) obj).object == object;
+			}
+
+			@Override
+			public int hashCode() {
+				return System.identityHashCode(object);
+			}
+		}
+
+		private static List<Object> identities(List<?> objects) {
+			List<Object> identities = new ArrayList<>(objects.size());
+			for (Object object : objects) {
+				identities.add(new Identity(object));
+			}
+			return identities;
+		}
+
+		private static class ElementDescription extends DefaultElementVisitor<Object> {
+			@Override
+			public <T> Object visit(Binding<T> binding) {
+				return Arrays.asList("binding", binding.getKey(), binding.acceptTargetVisitor(new TargetDescription()),
+					binding.acceptScopingVisitor(new ScopeDescription()));
+			}
+
+			@Override
+			public Object visit(InterceptorBinding binding) {
+				return Arrays.asList("interceptor", binding.getClassMatcher(), binding.getMethodMatcher(),
+					identities(binding.getInterceptors()));
+			}
+
+			@Override
+			public Object visit(ScopeBinding binding) {
+				return Arrays.asList("scope", binding.getAnnotationType(), new Identity(binding.getScope()));
+			}
+
+			@Override
+			public Object visit(TypeConverterBinding binding) {
+				return Arrays.asList("type converter", binding.getTypeMatcher(),
+					new Identity(binding.getTypeConverter()));
+			}
+
+			@Override
+			public Object visit(InjectionRequest<?> request) {
+				return Arrays.asList("injection", new Identity(request.getInstance()));
+			}
+
+			@Override
+			public Object visit(StaticInjectionRequest request) {
+				return Arrays.asList("static injection", request.getType());
+			}
+
+			@Override
+			public <T> Object visit(ProviderLookup<T> lookup) {
+				return Arrays.asList("provider lookup", lookup.getDependency());
+			}
+
+			@Override
+			public <T> Object visit(MembersInjectorLookup<T> lookup) {
+				return Arrays.asList("members injector lookup", lookup.getType());
+			}
+
+			@Override
+			public Object visit(PrivateElements privateElements) {
+				return Arrays.asList("private", fingerprint(privateElements.getElements()),
+					privateElements.getExposedKeys());
+			}
+
+			@Override
+			public Object visit(TypeListenerBinding binding) {
+				return Arrays.asList("type listener", binding.getTypeMatcher(), new Identity(binding.getListener()));
+			}
+
+			@Override
+			public Object visit(ProvisionListenerBinding binding) {
+				return Arrays.asList("provision listener", binding.getBindingMatcher(),
+					identities(binding.getListeners()));
+			}
+
+			@Override
+			public Object visit(RequireExplicitBindingsOption option) {
+				return "require explicit bindings";
+			}
+
+			@Override
+			public Object visit(DisableCircularProxiesOption option) {
+				return "disable circular proxies";
+			}
+
+			@Override
+			public Object visit(RequireAtInjectOnConstructorsOption option) {
+				return "require @Inject on constructors";
+			}
+
+			@Override
+			public Object visit(RequireExactBindingAnnotationsOption option) {
+				return "require exact binding annotations";
+			}
+
+			@Override
+			public Object visit(ModuleAnnotatedMethodScannerBinding binding) {
+				return Arrays.asList("scanner", new Identity(binding.getScanner()));
+			}
+
+			@Override
+			protected Object visitOther(Element element) {
+				// e.g., messages: never shared
+				return new Identity(element);
+			}
+		}
+
+		private static class TargetDescription extends DefaultBindingTargetVisitor<Object, Object> {
+			@Override
+			public Object visit(InstanceBinding<?> binding) {
+				// compared with equals, which is identity unless the class says otherwise
+				return Arrays.asList("instance", binding.getInstance());
+			}
+
+			@Override
+			public Object visit(LinkedKeyBinding<?> binding) {
+				return Arrays.asList("linked", binding.getLinkedKey());
+			}
+
+			@Override
+			public Object visit(ProviderKeyBinding<?> binding) {
+				return Arrays.asList("provider", binding.getProviderKey());
+			}
+
+			@Override
+			public Object visit(ProviderInstanceBinding<?> binding) {
+				// a provider instance may hold any state
+				return Arrays.asList("provider instance", new Identity(binding.getUserSuppliedProvider()));
+			}
+
+			@Override
+			public Object visit(ConstructorBinding<?> binding) {
+				return Arrays.asList("constructor", binding.getConstructor());
+			}
+
+			@Override
+			public Object visit(UntargettedBinding<?> binding) {
+				return "untargetted";
+			}
+
+			@Override
+			protected Object visitOther(Binding<?> binding) {
+				return new Identity(binding);
+			}
+		}
+
+		private static class ScopeDescription extends DefaultBindingScopingVisitor<Object> {
+			@Override
+			public Object visitEagerSingleton() {
+				return "eager singleton";
+			}
+
+			@Override
+			public Object visitScope(Scope scope) {
+				return new Identity(scope);
+			}
+
+			@Override
+			public Object visitScopeAnnotation(Class<? extends Annotation> scopeAnnotation) {
+				return scopeAnnotation;
+			}
+
+			@Override
+			public Object visitNoScoping() {
+				return "no scope";
+			}
+		}
+
+		/**
+		 * @return hits, misses and evictions
+		 */
+		public CacheStats getStats() {
+			return cache.stats();
+		}
+
+		/**
+		 * @return the number of bindings of the injectors returned from the cache,
+		 *         instead of being created again; it is a count of bindings, not a
+		 *         measure of memory
+		 */
+		public long getReusedBindingCount() {
+			return reusedBindings.get();
+		}
+
+	}
+
+	/**
+	 * Different values with the same string representation.
+	 */
+	static class MyPort {
+		private final int port;
+
+		public MyPort(int port) {
+			this.port = port;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof MyPort && ((MyPort) obj).port == port;
+		}
+
+		@Override
+		public int hashCode() {
+			return port;
+		}
+
+		@Override
+		public String toString() {
+			return "MyPort";
+		}
+	}
+
+	static class MyProvisionListener implements ProvisionListener {
+		@Override
+		public <T> void onProvision(ProvisionInvocation<T> provision) {
+			provision.provision();
+		}
+	}
+
+	static class MyStaticallyInjected1 {
+		@Inject
+		static Injector injector;
+	}
+
+	static class MyStaticallyInjected2 {
+		@Inject
+		static Injector injector;
+	}
+
+	@Test
+	public void testTenantsWithTheSameConfigurationShareTheInjector() {
+		InjectorCache cache = new InjectorCache(1000, 1, TimeUnit.HOURS);
+		Injector tenant1 = cache.getInjector(new MyLocalHostModule());
+		Injector tenant2 = cache.getInjector(new MyTenantModule("localhost", 8080));
+		Injector tenant3 = cache.getInjector(new MyGoogleModule());
+		assertSame(tenant1, tenant2);
+		assertNotSame(tenant1, tenant3);
+		assertEquals("MyClass1 [url=www.google.com, port=80]", tenant3.getInstance(MyClass1.class).toString());
+		assertEquals(1.0 / 3, cache.getStats().hitRate(), 0.001);
+		assertEquals(tenant1.getAllBindings().size(), cache.getReusedBindingCount());
+	}
+
+	@Test
+	public void testFingerprintDependsOnInstanceValues() {
+		assertEquals(InjectorCache.fingerprint(Elements.getElements(new MyLocalHostModule())),
+			InjectorCache.fingerprint(Elements.getElements(new MyTenantModule("localhost", 8080))));
+		assertNotEquals(InjectorCache.fingerprint(Elements.getElements(new MyLocalHostModule())),
+			InjectorCache.fingerprint(Elements.getElements(new MyTenantModule("localhost", 8081))));
+	}
+
+	@Test
+	public void testInstancesAreComparedWithEqualsNotWithToString() {
+		Module port80 = binder -> binder.bind(MyPort.class).toInstance(new MyPort(80));
+		Module otherPort80 = binder -> binder.bind(MyPort.class).toInstance(new MyPort(80));
+		Module port8080 = binder -> binder.bind(MyPort.class).toInstance(new MyPort(8080));
+		assertEquals(InjectorCache.fingerprint(Elements.getElements(port80)),
+			InjectorCache.fingerprint(Elements.getElements(otherPort80)));
+		assertNotEquals(InjectorCache.fingerprint(Elements.getElements(port80)),
+			InjectorCache.fingerprint(Elements.getElements(port8080)));
+		InjectorCache cache = new InjectorCache(1000, 1, TimeUnit.HOURS);
+		assertNotSame(cache.getInjector(port80), cache.getInjector(port8080));
+	}
+
+	@Test
+	public void testFingerprintDependsOnTheContentOfNonBindingElements() {
+		assertNotEquals(
+			InjectorCache.fingerprint(Elements.getElements(
+				binder -> binder.requestStaticInjection(MyStaticallyInjected1.class))),
+			InjectorCache.fingerprint(Elements.getElements(
+				binder -> binder.requestStaticInjection(MyStaticallyInjected2.class))));
+		assertNotEquals(
+			InjectorCache.fingerprint(Elements.getElements(new PrivateModule() {
+				@Override
+				protected void configure() {
+					bind(String.class).toInstance("localhost");
+					expose(String.class);
+				}
+			})),
+			InjectorCache.fingerprint(Elements.getElements(new PrivateModule() {
+				@Override
+				protected void configure() {
+					bind(String.class).toInstance("www.google.com");
+					expose(String.class);
+				}
+			})));
+		// listeners may hold any state, so they are compared by identity
+		ProvisionListener listener = new MyProvisionListener();
+		Module withListener = binder -> binder.bindListener(Matchers.any(), listener);
+		assertEquals(InjectorCache.fingerprint(Elements.getElements(withListener)),
+			InjectorCache.fingerprint(Elements.getElements(withListener)));
+		assertNotEquals(InjectorCache.fingerprint(Elements.getElements(withListener)),
+			InjectorCache.fingerprint(Elements.getElements(
+				binder -> binder.bindListener(Matchers.any(), new MyProvisionListener()))));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedInjectorsAreEvictedWhenOverBudget() {
+		Injector probe = Guice.createInjector(new MyLocalHostModule());
+		// room for just one injector
+		InjectorCache cache = new InjectorCache(probe.getAllBindings().size(), 1, TimeUnit.HOURS);
+		Injector localhost = cache.getInjector(new MyLocalHostModule());
+		cache.getInjector(new MyGoogleModule());
+		assertEquals(1, cache.getStats().evictionCount());
+		assertNotSame(localhost, cache.getInjector(new MyLocalHostModule()));
+	}
+
+}
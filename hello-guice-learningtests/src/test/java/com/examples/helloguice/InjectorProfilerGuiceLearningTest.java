@@ -0,0 +1,467 @@
+package com.examples.helloguice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Scopes;
+import com.google.inject.Stage;
+import com.google.inject.TypeLiteral;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.name.Names;
+import com.google.inject.spi.Dependency;
+import com.google.inject.spi.Element;
+import com.google.inject.spi.Elements;
+import com.google.inject.spi.HasDependencies;
+import com.google.inject.spi.InstanceBinding;
+import com.google.inject.spi.LinkedKeyBinding;
+import com.google.inject.spi.ProvisionListener;
+import com.google.inject.spi.TypeEncounter;
+import com.google.inject.spi.TypeListener;
+import com.google.inject.spi.TypeListenerBinding;
+
+public class InjectorProfilerGuiceLearningTest {
+
+	static interface MyInterface {
+
+	}
+
+	@Singleton
+	static class MyImplementation implements MyInterface {
+		@Inject
+		public MyImplementation() throws InterruptedException {
+			// simulate an expensive singleton
+			Thread.sleep(20);
+		}
+	}
+
+	static class MyClass {
+		@Inject
+		@Named("URL")
+		private String url;
+
+		@Inject
+		private MyInterface field;
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyInterface.class).to(MyImplementation.class);
+		}
+
+	}
+
+	static class MyLocalHostModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(String.class).annotatedWith(Names.named("URL")).toInstance("localhost");
+			bind(int.class).annotatedWith(Names.named("port")).toInstance(8080);
+		}
+
+	}
+
+	static class MyOtherImplementation implements MyInterface {
+
+	}
+
+	/**
+	 * Holds a module with the same simple name as {@link MyModule}.
+	 */
+	static class MyOtherModules {
+
+		static class MyModule extends AbstractModule {
+
+			@Override
+			protected void configure() {
+				bind(MyInterface.class).annotatedWith(Names.named("other")).to(MyOtherImplementation.class);
+			}
+
+		}
+
+	}
+
+	/**
+	 * A module with a (slow) {@link TypeListener}, like the one for @AfterInject
+	 * in {@link CustomInjectionGuiceLearningTest}.
+	 */
+	static class MyTypeListenerModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bindListener(Matchers.any(), new TypeListener() {
+				@Override
+				public <I> void hear(TypeLiteral<I> type, TypeEncounter<I> encounter) {
+					type.getRawType().getMethods();
+				}
+			});
+		}
+
+	}
+
+	/**
+	 * Creates an injector measuring, for each module, the time spent in
+	 * configure(), the number of bindings, the number of just-in-time bindings
+	 * its bindings required, the time spent in the type listeners it registers,
+	 * and the time spent building its eager singletons.
+	 *
+	 * To do that, the elements of each module are recorded first (which runs
+	 * configure()), and then replayed, wrapping type listeners with timed
+	 * ones; singletons are timed with a {@link ProvisionListener}, counting
+	 * only the outermost provision on each thread, so that nested singletons
+	 * are not counted twice. A just-in-time binding is attributed to the first
+	 * module whose bindings depend on it, directly or not.
+	 *
+	 * Modules are profiled per instance; they are named after their class,
+	 * with an index if the same class is used more than once. Guice does not
+	 * allow removing the provision listener, so once the injector has been
+	 * created the listener only checks a volatile flag.
+	 */
+	static class InjectorProfiler {
+
+		static class ModuleProfile {
+			private final String name;
+			private long configureNanos;
+			private int bindings;
+			private int jitBindings;
+			private final AtomicLong typeListenerNanos = new AtomicLong();
+			private final AtomicLong eagerSingletonNanos = new AtomicLong();
+
+			ModuleProfile(String name) {
+				this.name = name;
+			}
+
+			public String getName() {
+				return name;
+			}
+
+			public long getConfigureNanos() {
+				return configureNanos;
+			}
+
+			public int getBindings() {
+				return bindings;
+			}
+
+			public int getJitBindings() {
+				return jitBindings;
+			}
+
+			public long getTypeListenerNanos() {
+				return typeListenerNanos.get();
+			}
+
+			public long getEagerSingletonNanos() {
+				return eagerSingletonNanos.get();
+			}
+		}
+
+		private static class TimedTypeListener implements TypeListener {
+			private final TypeListener delegate;
+			private final ModuleProfile profile;
+
+			TimedTypeListener(TypeListener delegate, ModuleProfile profile) {
+				this.delegate = delegate;
+				this.profile = profile;
+			}
+
+			@Override
+			public <I> void hear(TypeLiteral<I> type, TypeEncounter<I> encounter) {
+				long start = System.nanoTime();
+				try {
+					delegate.hear(type, encounter);
+				} finally {
+					profile.typeListenerNanos.addAndGet(System.nanoTime() - start);
+				}
+			}
+		}
+
+		private final Map<Module, ModuleProfile> profiles = new IdentityHashMap<>();
+
+		private final List<ModuleProfile> profilesInOrder = new ArrayList<>();
+
+		private final Map<Class<?>, Integer> moduleClasses = new HashMap<>();
+
+		private final Map<Key<?>, ModuleProfile> bindingModules = new HashMap<>();
+
+		private final ThreadLocal<int[]> provisionDepth = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[1];
+			}
+		};
+
+		private volatile boolean creating;
+
+		private long creationNanos;
+
+		private int jitBindings;
+
+		public Injector createInjector(Stage stage, Module... modules) {
+			List<Module> profiledModules = new ArrayList<>();
+			for (Module module : modules) {
+				profiledModules.add(profile(stage, module));
+			}
+			profiledModules.add(binder -> binder.bindListener(Matchers.any(), new ProvisionListener() {
+				@Override
+				public <T> void onProvision(ProvisionInvocation<T> provision) {
+					if (!creating) {
+						provision.provision();
+						return;
+					}
+					Binding<T> binding = provision.getBinding();
+					int[] depth = provisionDepth.get();
+					if (depth[0] > 0 || !Scopes.isSingleton(binding) || binding instanceof InstanceBinding) {
+						depth[0]++;
+						try {
+							provision.provision();
+						} finally {
+							depth[0]--;
+						}
+						return;
+					}
+					long start = System.nanoTime();
+					depth[0]++;
+					try {
+						provision.provision();
+					} finally {
+						depth[0]--;
+						ModuleProfile profile = bindingModules.get(binding.getKey());
+						if (profile != null) {
+							profile.eagerSingletonNanos.addAndGet(System.nanoTime() - start);
+						}
+					}
+				}
+			}));
+			creating = true;
+			long start = System.nanoTime();
+			try {
+				Injector injector = Guice.createInjector(stage, profiledModules);
+				creationNanos = System.nanoTime() - start;
+				jitBindings = injector.getAllBindings().size() - injector.getBindings().size();
+				attributeJitBindings(injector);
+				return injector;
+			} finally {
+				creating = false;
+			}
+		}
+
+		/**
+		 * Follows the dependencies of the bindings of each module, in order, and
+		 * attributes the just-in-time bindings it reaches to it, unless they have
+		 * already been attributed to a previous module.
+		 */
+		private void attributeJitBindings(Injector injector) {
+			Map<Key<?>, Binding<?>> explicitBindings = injector.getBindings();
+			Set<Key<?>> seen = new HashSet<>();
+			for (ModuleProfile profile : profilesInOrder) {
+				ArrayDeque<Key<?>> toVisit = new ArrayDeque<>();
+				bindingModules.forEach((key, owner) -> {
+					if (owner == profile && explicitBindings.containsKey(key)) {
+						toVisit.add(key);
+					}
+				});
+				while (!toVisit.isEmpty()) {
+					Key<?> key = toVisit.poll();
+					Binding<?> binding = injector.getExistingBinding(key);
+					if (binding == null || !seen.add(key)) {
+						continue;
+					}
+					if (!explicitBindings.containsKey(key)) {
+						profile.jitBindings++;
+					}
+					if (binding instanceof LinkedKeyBinding) {
+						toVisit.add(((LinkedKeyBinding<?>) binding).getLinkedKey());
+					}
+					if (binding instanceof HasDependencies) {
+						for (Dependency<?> dependency : ((HasDependencies) binding).getDependencies()) {
+							toVisit.add(dependency.getKey());
+						}
+					}
+				}
+			}
+		}
+
+		private Module profile(Stage stage, Module module) {
+			Class<?> moduleClass = module.getClass();
+			int index = moduleClasses.merge(moduleClass, 1, Integer::sum);
+			String name = index == 1 ? moduleClass.getName() : moduleClass.getName() + "#" + index;
+			ModuleProfile profile = new ModuleProfile(name);
+			profiles.put(module, profile);
+			profilesInOrder.add(profile);
+			long start = System.nanoTime();
+			List<Element> elements = Elements.getElements(stage, module);
+			profile.configureNanos = System.nanoTime() - start;
+			for (Element element : elements) {
+				if (element instanceof Binding) {
+					profile.bindings++;
+					bindingModules.put(((Binding<?>) element).getKey(), profile);
+				}
+				if (element instanceof LinkedKeyBinding) {
+					// the target, possibly bound just in time, is what gets provisioned
+					bindingModules.putIfAbsent(((LinkedKeyBinding<?>) element).getLinkedKey(), profile);
+				}
+			}
+			return binder -> {
+				for (Element element : elements) {
+					if (element instanceof TypeListenerBinding) {
+						TypeListenerBinding typeListenerBinding = (TypeListenerBinding) element;
+						binder.withSource(typeListenerBinding.getSource()).bindListener(
+							typeListenerBinding.getTypeMatcher(),
+							new TimedTypeListener(typeListenerBinding.getListener(), profile));
+					} else {
+						element.applyTo(binder);
+					}
+				}
+			};
+		}
+
+		public ModuleProfile getProfile(Module module) {
+			return profiles.get(module);
+		}
+
+		/**
+		 * @return the number of just-in-time bindings created so far
+		 */
+		public int getJitBindings() {
+			return jitBindings;
+		}
+
+		public String getReport() {
+			StringBuilder report = new StringBuilder();
+			int width = profilesInOrder.stream().mapToInt(profile -> profile.name.length()).max().orElse(0);
+			String format = "%-" + Math.max(width, 6) + "s %12s %8s %8s %14s %14s%n";
+			report.append(String.format(format, "module", "configure ms", "bindings", "JIT", "listeners ms",
+				"singletons ms"));
+			for (ModuleProfile profile : profilesInOrder) {
+				report.append(String.format(format, profile.name, String.format("%.3f", profile.configureNanos / 1e6),
+					profile.bindings, profile.jitBindings, String.format("%.3f", profile.getTypeListenerNanos() / 1e6),
+					String.format("%.3f", profile.getEagerSingletonNanos() / 1e6)));
+			}
+			report.append(String.format("injector created in %.3f ms, %d JIT bindings%n", creationNanos / 1e6,
+				jitBindings));
+			return report.toString();
+		}
+
+		/**
+		 * Writes the profile as tab-separated values, one line per module, so that
+		 * it can be compared across builds; the totals of the injector are written
+		 * by {@link #writeInjectorTo(File)}.
+		 */
+		public void writeTo(File file) throws IOException {
+			List<String> lines = new ArrayList<>();
+			lines.add("module\tconfigureNanos\tbindings\tjitBindings\ttypeListenerNanos\teagerSingletonNanos");
+			for (ModuleProfile profile : profilesInOrder) {
+				lines.add(profile.name + "\t" + profile.configureNanos + "\t" + profile.bindings + "\t"
+						+ profile.jitBindings + "\t" + profile.getTypeListenerNanos() + "\t"
+						+ profile.getEagerSingletonNanos());
+			}
+			Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Writes the totals of the injector as tab-separated values, in a file
+		 * with its own columns.
+		 */
+		public void writeInjectorTo(File file) throws IOException {
+			Files.write(file.toPath(),
+				Arrays.asList("creationNanos\tjitBindings", creationNanos + "\t" + jitBindings),
+				StandardCharsets.UTF_8);
+		}
+
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testProfilePerModule() {
+		InjectorProfiler profiler = new InjectorProfiler();
+		MyModule myModule = new MyModule();
+		MyLocalHostModule myLocalHostModule = new MyLocalHostModule();
+		MyTypeListenerModule myTypeListenerModule = new MyTypeListenerModule();
+		Injector injector = profiler.createInjector(Stage.PRODUCTION, myModule, myLocalHostModule,
+			myTypeListenerModule);
+		assertEquals(1, profiler.getProfile(myModule).getBindings());
+		assertEquals(2, profiler.getProfile(myLocalHostModule).getBindings());
+		assertEquals(0, profiler.getProfile(myTypeListenerModule).getBindings());
+		assertTrue(profiler.getProfile(myModule).getEagerSingletonNanos() >= 20000000);
+		assertEquals(0, profiler.getProfile(myLocalHostModule).getEagerSingletonNanos());
+		assertTrue(profiler.getProfile(myTypeListenerModule).getTypeListenerNanos() > 0);
+		// MyImplementation is bound just in time, because of MyModule
+		assertEquals(1, profiler.getJitBindings());
+		assertEquals(1, profiler.getProfile(myModule).getJitBindings());
+		assertEquals(0, profiler.getProfile(myLocalHostModule).getJitBindings());
+		injector.getInstance(MyClass.class);
+	}
+
+	@Test
+	public void testModulesWithTheSameNameAreProfiledSeparately() {
+		InjectorProfiler profiler = new InjectorProfiler();
+		MyModule myModule = new MyModule();
+		MyOtherModules.MyModule otherModule = new MyOtherModules.MyModule();
+		Module first = binder -> binder.bind(String.class).annotatedWith(Names.named("first")).toInstance("1");
+		Module second = binder -> binder.bind(String.class).annotatedWith(Names.named("second")).toInstance("2");
+		profiler.createInjector(Stage.DEVELOPMENT, myModule, otherModule, first, second);
+		assertEquals(MyModule.class.getName(), profiler.getProfile(myModule).getName());
+		assertEquals(MyOtherModules.MyModule.class.getName(), profiler.getProfile(otherModule).getName());
+		assertEquals(1, profiler.getProfile(otherModule).getJitBindings());
+		assertEquals(1, profiler.getProfile(first).getBindings());
+		assertEquals(1, profiler.getProfile(second).getBindings());
+		assertNotEquals(profiler.getProfile(first).getName(), profiler.getProfile(second).getName());
+	}
+
+	@Test
+	public void testTextReportAndFile() throws IOException {
+		InjectorProfiler profiler = new InjectorProfiler();
+		profiler.createInjector(Stage.PRODUCTION, new MyModule(), new MyLocalHostModule());
+		String report = profiler.getReport();
+		assertTrue(report.contains(MyModule.class.getName()));
+		assertTrue(report.contains(MyLocalHostModule.class.getName()));
+		File file = folder.newFile("injector-profile.tsv");
+		profiler.writeTo(file);
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		assertEquals(3, lines.size());
+		assertTrue(lines.get(2).startsWith(MyLocalHostModule.class.getName() + "\t"));
+		assertEquals("2", lines.get(2).split("\t")[2]);
+		assertEquals("1", lines.get(1).split("\t")[3]);
+		File injectorFile = folder.newFile("injector-totals.tsv");
+		profiler.writeInjectorTo(injectorFile);
+		List<String> totals = Files.readAllLines(injectorFile.toPath(), StandardCharsets.UTF_8);
+		assertEquals(Arrays.asList("creationNanos", "jitBindings"), Arrays.asList(totals.get(0).split("\t")));
+		assertTrue(Long.parseLong(totals.get(1).split("\t")[0]) > 0);
+		assertEquals("1", totals.get(1).split("\t")[1]);
+	}
+
+}
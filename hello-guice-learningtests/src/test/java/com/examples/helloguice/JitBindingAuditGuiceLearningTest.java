@@ -0,0 +1,467 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Retention;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.function.Consumer;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.BindingAnnotation;
+import com.google.inject.ConfigurationException;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.MembersInjector;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+import com.google.inject.spi.ConvertedConstantBinding;
+import com.google.inject.spi.TypeEncounter;
+import com.google.inject.spi.TypeListener;
+
+public class JitBindingAuditGuiceLearningTest {
+
+	@Singleton
+	static class MyParam {
+
+	}
+
+	static class MyClass {
+		private MyParam myParam;
+
+		@Inject
+		public MyClass(MyInterface field, MyParam myParam) {
+			this.myParam = myParam;
+		}
+
+		public MyParam getMyParam() {
+			return myParam;
+		}
+	}
+
+	static class MyOtherClass {
+		@Inject
+		private Provider<MyClass> myClassProvider;
+
+		public MyClass getMyClass() {
+			return myClassProvider.get();
+		}
+	}
+
+	static interface MyInterface {
+
+	}
+
+	static class MyImplementation implements MyInterface {
+
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyInterface.class).to(MyImplementation.class);
+		}
+
+	}
+
+	/**
+	 * Records the just-in-time bindings that Guice created in injectors used,
+	 * e.g., in a training run or in a test suite, and turns them into a module
+	 * that declares them explicitly, or into the Java source of such a module.
+	 *
+	 * The injectors are either given explicitly, or found by the
+	 * {@link #listener()} module, which is inherited by child injectors, so that
+	 * their bindings are recorded too; the bindings Guice creates for Provider,
+	 * MembersInjector and TypeLiteral keys, and for converted constants, are
+	 * allowed also with requireExplicitBindings(), so they are not recorded.
+	 */
+	static class JitBindingRecorder {
+
+		private final Set<Key<?>> keys = new LinkedHashSet<>();
+
+		private final List<Provider<Injector>> listened = new ArrayList<>();
+
+		private final Set<Injector> injectors = Collections.newSetFromMap(new IdentityHashMap<>());
+
+		public synchronized void record(Injector injector) {
+			Map<Key<?>, Binding<?>> explicitBindings = injector.getBindings();
+			for (Binding<?> binding : injector.getAllBindings().values()) {
+				Key<?> key = binding.getKey();
+				if (!explicitBindings.containsKey(key) && !isBuiltIn(binding)) {
+					keys.add(key);
+				}
+			}
+		}
+
+		private static boolean isBuiltIn(Binding<?> binding) {
+			Class<?> type = binding.getKey().getTypeLiteral().getRawType();
+			return type == Provider.class || type == javax.inject.Provider.class || type == MembersInjector.class
+					|| type == TypeLiteral.class || binding instanceof ConvertedConstantBinding;
+		}
+
+		/**
+		 * @return a module remembering each injector, or child injector, in which
+		 *         a type is injected, so that its bindings are recorded when the
+		 *         keys are requested
+		 */
+		public Module listener() {
+			return binder -> binder.bindListener(Matchers.any(), new TypeListener() {
+				@Override
+				public <I> void hear(TypeLiteral<I> type, TypeEncounter<I> encounter) {
+					synchronized (JitBindingRecorder.this) {
+						listened.add(encounter.getProvider(Injector.class));
+					}
+				}
+			});
+		}
+
+		/**
+		 * @return the recorded keys, sorted by their string representation
+		 */
+		public synchronized List<Key<?>> getKeys() {
+			listened.forEach(provider -> injectors.add(provider.get()));
+			listened.clear();
+			injectors.forEach(this::record);
+			List<Key<?>> sorted = new ArrayList<>(keys);
+			sorted.sort(Comparator.comparing(Key::toString));
+			return sorted;
+		}
+
+		/**
+		 * @return a module with an untargetted binding for each recorded key, so
+		 *         that Guice creates the same bindings (including the scopes and
+		 *         the implementations specified by annotations) when the injector
+		 *         is created
+		 */
+		public Module toModule() {
+			List<Key<?>> recorded = getKeys();
+			return binder -> recorded.forEach(binder::bind);
+		}
+
+		/**
+		 * @return the source of a module like {@link #toModule()}, to be added to
+		 *         the code base; the keys whose type, or annotation, cannot be named
+		 *         in the given package (e.g., private classes) are only
+		 *         reported in a comment
+		 */
+		public String toSource(String packageName, String className) {
+			return toSource(getKeys(), packageName, className);
+		}
+
+		static String toSource(List<Key<?>> keys, String packageName, String className) {
+			StringBuilder source = new StringBuilder();
+			source.append("package ").append(packageName).append(";\n\n");
+			source.append("import com.google.inject.AbstractModule;\n");
+			source.append("import com.google.inject.TypeLiteral;\n\n");
+			source.append("/**\n * Declares the bindings created just in time during a training run.\n */\n");
+			source.append("public class ").append(className).append(" extends AbstractModule {\n\n");
+			source.append("\t@Override\n\tprotected void configure() {\n");
+			for (Key<?> key : keys) {
+				TypeLiteral<?> type = key.getTypeLiteral();
+				String typeName = sourceNameOf(type.getType(), packageName);
+				String annotation = annotationSourceOf(key, packageName);
+				if (typeName == null || annotation == null) {
+					source.append("\t\t// cannot be named in ").append(packageName).append(": ").append(key).append("\n");
+				} else if (type.getRawType() == type.getType()) {
+					source.append("\t\tbind(").append(typeName).append(".class)").append(annotation).append(";\n");
+				} else {
+					source.append("\t\tbind(new TypeLiteral<").append(typeName).append(">() {})").append(annotation)
+						.append(";\n");
+				}
+			}
+			source.append("\t}\n\n}\n");
+			return source.toString();
+		}
+
+		/**
+		 * @return the annotatedWith call for the annotation of the key, which is
+		 *         empty without annotation, or null if the annotation cannot be
+		 *         written in the source
+		 */
+		private static String annotationSourceOf(Key<?> key, String packageName) {
+			if (key.getAnnotationType() == null) {
+				return "";
+			}
+			String annotationType = sourceNameOf(key.getAnnotationType(), packageName);
+			if (annotationType == null) {
+				return null;
+			}
+			Annotation annotation = key.getAnnotation();
+			if (annotation == null || annotation.annotationType().getDeclaredMethods().length == 0) {
+				return ".annotatedWith(" + annotationType + ".class)";
+			}
+			if (annotation instanceof Named) {
+				return ".annotatedWith(com.google.inject.name.Names.named(\""
+						+ ((Named) annotation).value().replace("\\", "\\\\").replace("\"", "\\\"") + "\"))";
+			}
+			// other annotation instances with attributes cannot be created in the
+			// source
+			return null;
+		}
+
+		/**
+		 * @return the name of the type in the source of a class of the given
+		 *         package, or null if it cannot be named there
+		 */
+		private static String sourceNameOf(Type type, String packageName) {
+			if (type instanceof Class) {
+				Class<?> c = (Class<?>) type;
+				if (c.isArray()) {
+					String component = sourceNameOf(c.getComponentType(), packageName);
+					return component == null ? null : component + "[]";
+				}
+				if (c.isPrimitive()) {
+					return c.getName();
+				}
+				for (Class<?> enclosing = c; enclosing != null; enclosing = enclosing.getEnclosingClass()) {
+					int modifiers = enclosing.getModifiers();
+					if (Modifier.isPrivate(modifiers) || (!Modifier.isPublic(modifiers)
+							&& !enclosing.getPackage().getName().equals(packageName))) {
+						return null;
+					}
+				}
+				// null for anonymous and local classes
+				return c.getCanonicalName();
+			}
+			if (type instanceof ParameterizedType) {
+				ParameterizedType parameterized = (ParameterizedType) type;
+				StringJoiner arguments = new StringJoiner(", ", "<", ">");
+				for (Type argument : parameterized.getActualTypeArguments()) {
+					String name = sourceNameOf(argument, packageName);
+					if (name == null) {
+						return null;
+					}
+					arguments.add(name);
+				}
+				String raw = sourceNameOf(parameterized.getRawType(), packageName);
+				return raw == null ? null : raw + arguments;
+			}
+			if (type instanceof GenericArrayType) {
+				String component = sourceNameOf(((GenericArrayType) type).getGenericComponentType(), packageName);
+				return component == null ? null : component + "[]";
+			}
+			if (type instanceof WildcardType) {
+				WildcardType wildcard = (WildcardType) type;
+				if (wildcard.getLowerBounds().length > 0) {
+					String bound = sourceNameOf(wildcard.getLowerBounds()[0], packageName);
+					return bound == null ? null : "? super " + bound;
+				}
+				Type upperBound = wildcard.getUpperBounds()[0];
+				if (upperBound == Object.class) {
+					return "?";
+				}
+				String bound = sourceNameOf(upperBound, packageName);
+				return bound == null ? null : "? extends " + bound;
+			}
+			return null;
+		}
+
+	}
+
+	/**
+	 * Cannot be named outside this class.
+	 */
+	private static class MyPrivateClass {
+		@Inject
+		MyPrivateClass() {
+
+		}
+	}
+
+	@BindingAnnotation
+	@Retention(RUNTIME)
+	private static @interface MyPrivateAnnotation {
+
+	}
+
+	@BindingAnnotation
+	@Retention(RUNTIME)
+	static @interface MyMarker {
+
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final Consumer<Injector> TRAINING_RUN = injector -> {
+		injector.getInstance(MyOtherClass.class).getMyClass();
+	};
+
+	@Test
+	public void testJitBindingsAreRecorded() {
+		JitBindingRecorder recorder = new JitBindingRecorder();
+		Injector injector = Guice.createInjector(new MyModule());
+		TRAINING_RUN.accept(injector);
+		recorder.record(injector);
+		assertEquals(Arrays.asList(Key.get(MyClass.class), Key.get(MyImplementation.class), Key.get(MyOtherClass.class),
+			Key.get(MyParam.class)), recorder.getKeys());
+	}
+
+	@Test
+	public void testRequireExplicitBindingsWithTheRecordedModule() {
+		Module requireExplicitBindings = binder -> binder.requireExplicitBindings();
+		try {
+			Guice.createInjector(new MyModule(), requireExplicitBindings).getInstance(MyOtherClass.class);
+			fail();
+		} catch (ConfigurationException e) {
+			assertTrue(e.getMessage().contains("Explicit bindings are required"));
+		}
+		JitBindingRecorder recorder = new JitBindingRecorder();
+		Injector training = Guice.createInjector(new MyModule());
+		TRAINING_RUN.accept(training);
+		recorder.record(training);
+		Injector injector = Guice.createInjector(new MyModule(), recorder.toModule(), requireExplicitBindings);
+		MyClass myClass = injector.getInstance(MyOtherClass.class).getMyClass();
+		// the scope annotation is still honored
+		assertSame(myClass.getMyParam(), injector.getInstance(MyClass.class).getMyParam());
+		// no binding has been created just in time
+		JitBindingRecorder check = new JitBindingRecorder();
+		check.record(injector);
+		assertEquals(0, check.getKeys().size());
+	}
+
+	@Test
+	public void testChildInjectorsAreRecordedByTheListener() {
+		JitBindingRecorder recorder = new JitBindingRecorder();
+		Injector parent = Guice.createInjector(new MyModule(), recorder.listener());
+		parent.getInstance(MyImplementation.class);
+		Injector child = parent.createChildInjector(binder -> binder.bind(MyParam.class).toInstance(new MyParam()));
+		// MyClass depends on the binding of the child, so it is created there
+		child.getInstance(MyClass.class);
+		assertEquals(Arrays.asList(Key.get(MyClass.class), Key.get(MyImplementation.class)), recorder.getKeys());
+		assertTrue(child.getAllBindings().containsKey(Key.get(MyClass.class)));
+	}
+
+	@Test
+	public void testGeneratedSource() throws IOException {
+		JitBindingRecorder recorder = new JitBindingRecorder();
+		Injector injector = Guice.createInjector(new MyModule(), recorder.listener());
+		TRAINING_RUN.accept(injector);
+		injector.getInstance(MyPrivateClass.class);
+		String source = recorder.toSource("com.examples.helloguice", "MyExplicitBindingsModule");
+		assertTrue(source.startsWith("package com.examples.helloguice;\n"));
+		assertTrue(source.contains("public class MyExplicitBindingsModule extends AbstractModule {"));
+		assertTrue(source.contains(
+			"\t\tbind(com.examples.helloguice.JitBindingAuditGuiceLearningTest.MyClass.class);\n"));
+		assertTrue(source.contains(
+			"\t\tbind(com.examples.helloguice.JitBindingAuditGuiceLearningTest.MyParam.class);\n"));
+		assertTrue(source.contains("\t\t// cannot be named in com.examples.helloguice: " + Key.get(MyPrivateClass.class)));
+		assertEquals("", compile("com.examples.helloguice", "MyExplicitBindingsModule", source));
+		// package-private classes cannot be named in other packages
+		String otherPackage = recorder.toSource("com.examples.other", "MyExplicitBindingsModule");
+		assertTrue(otherPackage.contains("\t\t// cannot be named in com.examples.other: " + Key.get(MyClass.class)));
+		assertEquals("", compile("com.examples.other", "MyExplicitBindingsModule", otherPackage));
+	}
+
+	@Test
+	public void testGeneratedSourceWithAnnotatedAndGenericKeys() throws IOException {
+		// such keys are not bound just in time, but the source is valid for them
+		String source = JitBindingRecorder.toSource(Arrays.asList(Key.get(MyImplementation.class, MyMarker.class),
+			Key.get(MyImplementation.class, Names.named("a \"quoted\" name")),
+			Key.get(new TypeLiteral<List<? extends MyInterface>>() {}, Names.named("list")),
+			Key.get(MyImplementation.class, MyPrivateAnnotation.class)),
+			"com.examples.helloguice", "MyAnnotatedBindingsModule");
+		assertTrue(source.contains("\t\tbind(com.examples.helloguice.JitBindingAuditGuiceLearningTest.MyImplementation.class)"
+				+ ".annotatedWith(com.examples.helloguice.JitBindingAuditGuiceLearningTest.MyMarker.class);\n"));
+		assertTrue(source.contains("\t\tbind(com.examples.helloguice.JitBindingAuditGuiceLearningTest.MyImplementation.class)"
+				+ ".annotatedWith(com.google.inject.name.Names.named(\"a \\\"quoted\\\" name\"));\n"));
+		assertTrue(source.contains("\t\tbind(new TypeLiteral<java.util.List<? extends "
+				+ "com.examples.helloguice.JitBindingAuditGuiceLearningTest.MyInterface>>() {})"
+				+ ".annotatedWith(com.google.inject.name.Names.named(\"list\"));\n"));
+		assertTrue(source.contains("\t\t// cannot be named in com.examples.helloguice: "
+				+ Key.get(MyImplementation.class, MyPrivateAnnotation.class)));
+		assertEquals("", compile("com.examples.helloguice", "MyAnnotatedBindingsModule", source));
+	}
+
+	/**
+	 * @return the diagnostics of the compilation of the given source, against
+	 *         the class path of the tests
+	 */
+	private String compile(String packageName, String className, String source) throws IOException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		JavaFileObject file = new SimpleJavaFileObject(
+			URI.create("string:///" + packageName.replace('.', '/') + "/" + className + Kind.SOURCE.extension),
+			Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+		StringWriter diagnostics = new StringWriter();
+		boolean compiled = compiler.getTask(diagnostics, null, null,
+			Arrays.asList("-classpath", System.getProperty("java.class.path"), "-d",
+				folder.newFolder().getAbsolutePath()),
+			null, Collections.singletonList(file)).call();
+		assertTrue(diagnostics.toString(), compiled);
+		return diagnostics.toString();
+	}
+
+	/**
+	 * Compares the best time, over fresh injectors, of the first request of
+	 * MyOtherClass, when the bindings are created just in time and when they are
+	 * declared; the timings are only printed, since they depend on the machine.
+	 */
+	@Test
+	public void testFirstRequestLatency() {
+		JitBindingRecorder recorder = new JitBindingRecorder();
+		Injector training = Guice.createInjector(new MyModule());
+		TRAINING_RUN.accept(training);
+		recorder.record(training);
+		Module declared = recorder.toModule();
+		long jitNanos = Long.MAX_VALUE;
+		long declaredNanos = Long.MAX_VALUE;
+		for (int i = 0; i < 200; ++i) {
+			jitNanos = Math.min(jitNanos, firstRequest(Guice.createInjector(new MyModule())));
+			declaredNanos = Math.min(declaredNanos, firstRequest(Guice.createInjector(new MyModule(), declared)));
+		}
+		System.out.println(String.format("first request: %d us with JIT bindings, %d us with declared bindings",
+			jitNanos / 1000, declaredNanos / 1000));
+	}
+
+	private static long firstRequest(Injector injector) {
+		long start = System.nanoTime();
+		TRAINING_RUN.accept(injector);
+		return System.nanoTime() - start;
+	}
+
+}
@@ -0,0 +1,402 @@
+package com.examples.helloguice;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.ConfigurationException;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Names;
+import com.google.inject.spi.Dependency;
+import com.google.inject.spi.Element;
+import com.google.inject.spi.Elements;
+import com.google.inject.spi.HasDependencies;
+import com.google.inject.spi.InjectionPoint;
+import com.google.inject.spi.LinkedKeyBinding;
+import com.google.inject.spi.UntargettedBinding;
+
+public class LazyModulesGuiceLearningTest {
+
+	static interface MyInterface {
+
+	}
+
+	static class MyImplementation implements MyInterface {
+
+	}
+
+	static interface MyPlugin {
+		MyInterface getField();
+	}
+
+	static interface MyOtherPlugin {
+
+	}
+
+	@Singleton
+	static class MyPluginImpl implements MyPlugin {
+		private MyInterface field;
+
+		@Inject
+		public MyPluginImpl(MyInterface field) {
+			this.field = field;
+		}
+
+		@Override
+		public MyInterface getField() {
+			return field;
+		}
+	}
+
+	static class MyOtherPluginImpl implements MyOtherPlugin {
+
+	}
+
+	static class MyClass {
+		@Inject
+		private MyPlugin plugin;
+
+		public MyPlugin getPlugin() {
+			return plugin;
+		}
+	}
+
+	/**
+	 * A module that is configured only the first time one of the keys it
+	 * declares is requested.
+	 */
+	static interface LazyModule extends Module {
+		Set<Key<?>> provides();
+	}
+
+	static class MyPluginModule extends AbstractModule implements LazyModule {
+
+		static final AtomicInteger configured = new AtomicInteger();
+
+		@Override
+		public Set<Key<?>> provides() {
+			return new HashSet<>(asList(Key.get(MyPlugin.class), Key.get(MyOtherPlugin.class)));
+		}
+
+		@Override
+		protected void configure() {
+			configured.incrementAndGet();
+			bind(MyPlugin.class).to(MyPluginImpl.class);
+			bind(MyOtherPlugin.class).to(MyOtherPluginImpl.class);
+		}
+
+	}
+
+	static class MyUnusedPluginModule extends AbstractModule implements LazyModule {
+
+		static final AtomicInteger configured = new AtomicInteger();
+
+		@Override
+		public Set<Key<?>> provides() {
+			return Collections.<Key<?>> singleton(Key.get(Runnable.class));
+		}
+
+		@Override
+		protected void configure() {
+			configured.incrementAndGet();
+			bind(Runnable.class).toInstance(() -> {});
+		}
+
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyInterface.class).to(MyImplementation.class);
+		}
+
+	}
+
+	/**
+	 * Creates an injector where the keys of the {@link LazyModule}s are bound to
+	 * providers that, the first time they are used, configure the lazy module in
+	 * a child injector of the injector of the eager modules, and from then on
+	 * simply delegate to the child injector.
+	 *
+	 * The returned injector is itself a child of the injector of the eager
+	 * modules, since a child injector cannot bind keys already bound by its
+	 * parent; thus, lazy modules can depend on the eager modules, but not on
+	 * each other.
+	 *
+	 * The types needed by a lazy module which are not bound explicitly, e.g.,
+	 * the implementation of a linked binding, would be bound just in time by
+	 * the eager parent, when all their dependencies are in the parent, and
+	 * shared among all the lazy modules, which then could not bind them, just
+	 * like in
+	 * {@link CustomFactoryGuiceLearningTest#testMyFactoryFailsBecauseParentHasAJustInTimeBinding()};
+	 * thus, they are bound explicitly in the child injector of the lazy module,
+	 * unless the parent already has a binding for them, explicit or just in time.
+	 */
+	static class LazyModules {
+
+		private static class LazyInjector {
+			private final Injector parent;
+			private final Module module;
+			private volatile Injector injector;
+
+			LazyInjector(Injector parent, Module module) {
+				this.parent = parent;
+				this.module = module;
+			}
+
+			Injector get() {
+				Injector result = injector;
+				if (result == null) {
+					synchronized (this) {
+						result = injector;
+						if (result == null) {
+							List<Element> elements = Elements.getElements(module);
+							Set<Key<?>> justInTimeKeys = justInTimeKeys(parent, elements);
+							result = parent.createChildInjector(Elements.getModule(elements), binder -> {
+								for (Key<?> key : justInTimeKeys) {
+									binder.bind(key);
+								}
+							});
+							injector = result;
+						}
+					}
+				}
+				return result;
+			}
+		}
+
+		private static class LazyProvider<T> implements Provider<T> {
+			private final LazyInjector lazyInjector;
+			private final Key<T> key;
+			private volatile Provider<T> delegate;
+
+			LazyProvider(LazyInjector lazyInjector, Key<T> key) {
+				this.lazyInjector = lazyInjector;
+				this.key = key;
+			}
+
+			@Override
+			public T get() {
+				Provider<T> result = delegate;
+				if (result == null) {
+					result = lazyInjector.get().getProvider(key);
+					delegate = result;
+				}
+				return result.get();
+			}
+		}
+
+		public static Injector createInjector(List<Module> modules, List<LazyModule> lazyModules) {
+			Injector parent = Guice.createInjector(modules);
+			return parent.createChildInjector(new AbstractModule() {
+				@Override
+				protected void configure() {
+					for (LazyModule lazyModule : lazyModules) {
+						LazyInjector lazyInjector = new LazyInjector(parent, lazyModule);
+						for (Key<?> key : lazyModule.provides()) {
+							bindLazily(key, lazyInjector);
+						}
+					}
+				}
+
+				private <T> void bindLazily(Key<T> key, LazyInjector lazyInjector) {
+					bind(key).toProvider(new LazyProvider<>(lazyInjector, key));
+				}
+			});
+		}
+
+		/**
+		 * @return the concrete types that the bindings of the lazy module need,
+		 *         directly or transitively, and that are bound neither by the lazy
+		 *         module nor by the parent (or its ancestors), explicitly or just
+		 *         in time
+		 */
+		static Set<Key<?>> justInTimeKeys(Injector parent, List<Element> elements) {
+			Set<Key<?>> bound = new HashSet<>();
+			Deque<Key<?>> toVisit = new ArrayDeque<>();
+			for (Element element : elements) {
+				if (element instanceof Binding) {
+					Binding<?> binding = (Binding<?>) element;
+					bound.add(binding.getKey());
+					if (binding instanceof LinkedKeyBinding) {
+						toVisit.add(((LinkedKeyBinding<?>) binding).getLinkedKey());
+					} else if (binding instanceof UntargettedBinding) {
+						addDependencies(binding.getKey().getTypeLiteral(), toVisit);
+					} else if (binding instanceof HasDependencies) {
+						for (Dependency<?> dependency : ((HasDependencies) binding).getDependencies()) {
+							toVisit.add(dependency.getKey());
+						}
+					}
+				}
+			}
+			Set<Key<?>> justInTimeKeys = new LinkedHashSet<>();
+			while (!toVisit.isEmpty()) {
+				Key<?> key = withoutProvider(toVisit.poll());
+				if (bound.contains(key) || justInTimeKeys.contains(key) || parent.getExistingBinding(key) != null
+						|| !isConcrete(key)) {
+					continue;
+				}
+				justInTimeKeys.add(key);
+				addDependencies(key.getTypeLiteral(), toVisit);
+			}
+			return justInTimeKeys;
+		}
+
+		private static Key<?> withoutProvider(Key<?> key) {
+			Class<?> rawType = key.getTypeLiteral().getRawType();
+			if ((rawType == Provider.class || rawType == javax.inject.Provider.class)
+					&& key.getTypeLiteral().getType() instanceof ParameterizedType) {
+				return key.ofType(((ParameterizedType) key.getTypeLiteral().getType()).getActualTypeArguments()[0]);
+			}
+			return key;
+		}
+
+		private static boolean isConcrete(Key<?> key) {
+			Class<?> rawType = key.getTypeLiteral().getRawType();
+			// annotated keys are never bound just in time
+			return key.getAnnotationType() == null && !rawType.isInterface() && !rawType.isPrimitive()
+					&& !Modifier.isAbstract(rawType.getModifiers());
+		}
+
+		private static void addDependencies(TypeLiteral<?> type, Deque<Key<?>> toVisit) {
+			try {
+				List<InjectionPoint> injectionPoints = new ArrayList<>();
+				injectionPoints.add(InjectionPoint.forConstructorOf(type));
+				injectionPoints.addAll(InjectionPoint.forInstanceMethodsAndFields(type));
+				for (InjectionPoint injectionPoint : injectionPoints) {
+					for (Dependency<?> dependency : injectionPoint.getDependencies()) {
+						toVisit.add(dependency.getKey());
+					}
+				}
+			} catch (ConfigurationException e) {
+				// the child injector will report it
+			}
+		}
+
+	}
+
+	static class MySecondPluginModule extends AbstractModule implements LazyModule {
+
+		@Override
+		public Set<Key<?>> provides() {
+			return Collections.<Key<?>> singleton(Key.get(MyPlugin.class, Names.named("second")));
+		}
+
+		@Override
+		protected void configure() {
+			bind(MyPlugin.class).annotatedWith(Names.named("second")).to(MyPluginImpl.class);
+		}
+
+	}
+
+	/**
+	 * Binds explicitly a type that another lazy module needs.
+	 */
+	static class MyOtherPluginImplModule extends AbstractModule implements LazyModule {
+
+		@Override
+		public Set<Key<?>> provides() {
+			return Collections.<Key<?>> singleton(Key.get(MyOtherPluginImpl.class));
+		}
+
+		@Override
+		protected void configure() {
+			bind(MyOtherPluginImpl.class);
+		}
+
+	}
+
+	/**
+	 * Links a key to a type that the eager parent already bound just in time.
+	 */
+	static class MyLinkedPluginModule extends AbstractModule implements LazyModule {
+
+		@Override
+		public Set<Key<?>> provides() {
+			return Collections.<Key<?>> singleton(Key.get(MyInterface.class, Names.named("lazy")));
+		}
+
+		@Override
+		protected void configure() {
+			bind(MyInterface.class).annotatedWith(Names.named("lazy")).to(MyImplementation.class);
+		}
+
+	}
+
+	@Test
+	public void testLazyModuleIsConfiguredOnlyOnFirstUse() {
+		MyPluginModule.configured.set(0);
+		MyUnusedPluginModule.configured.set(0);
+		Injector injector = LazyModules.createInjector(asList(new MyModule()),
+			asList(new MyPluginModule(), new MyUnusedPluginModule()));
+		assertEquals(0, MyPluginModule.configured.get());
+		MyClass o = injector.getInstance(MyClass.class);
+		assertEquals(1, MyPluginModule.configured.get());
+		assertEquals(MyImplementation.class, o.getPlugin().getField().getClass());
+		// the module stays resident
+		assertSame(o.getPlugin(), injector.getInstance(MyPlugin.class));
+		injector.getInstance(MyOtherPlugin.class);
+		assertEquals(1, MyPluginModule.configured.get());
+		assertEquals(0, MyUnusedPluginModule.configured.get());
+	}
+
+	@Test
+	public void testJustInTimeBindingsOfLazyModulesAreNotCreatedInTheParent() {
+		Injector injector = LazyModules.createInjector(asList(new MyModule()),
+			asList(new MyPluginModule(), new MySecondPluginModule(), new MyOtherPluginImplModule()));
+		injector.getInstance(MyOtherPlugin.class);
+		Injector eager = injector.getParent();
+		assertNull(eager.getExistingBinding(Key.get(MyOtherPluginImpl.class)));
+		// so another lazy module can still bind the type explicitly
+		assertEquals(MyOtherPluginImpl.class, injector.getInstance(MyOtherPluginImpl.class).getClass());
+		// and each lazy module has its own singleton, with the dependencies of the
+		// parent
+		MyPlugin plugin = injector.getInstance(MyPlugin.class);
+		MyPlugin secondPlugin = injector.getInstance(Key.get(MyPlugin.class, Names.named("second")));
+		assertNull(eager.getExistingBinding(Key.get(MyPluginImpl.class)));
+		assertNotSame(plugin, secondPlugin);
+		assertSame(plugin, injector.getInstance(MyPlugin.class));
+		assertSame(eager.getInstance(MyInterface.class).getClass(), secondPlugin.getField().getClass());
+	}
+
+	@Test
+	public void testJustInTimeBindingsOfTheParentAreReused() {
+		Injector injector = LazyModules.createInjector(asList(new MyModule()), asList(new MyLinkedPluginModule()));
+		Injector eager = injector.getParent();
+		// bound just in time by the linked binding of MyModule
+		Binding<MyImplementation> binding = eager.getExistingBinding(Key.get(MyImplementation.class));
+		assertNotNull(binding);
+		assertEquals(MyImplementation.class,
+			injector.getInstance(Key.get(MyInterface.class, Names.named("lazy"))).getClass());
+		assertSame(binding, injector.getExistingBinding(Key.get(MyImplementation.class)));
+	}
+
+}
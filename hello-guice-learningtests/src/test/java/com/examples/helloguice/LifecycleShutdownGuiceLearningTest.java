@@ -0,0 +1,600 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Scopes;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.spi.Dependency;
+import com.google.inject.spi.HasDependencies;
+import com.google.inject.spi.InjectionListener;
+import com.google.inject.spi.ProvisionListener;
+import com.google.inject.spi.TypeEncounter;
+import com.google.inject.spi.TypeListener;
+
+public class LifecycleShutdownGuiceLearningTest {
+
+	/**
+	 * Stands for javax.annotation.PreDestroy, which the JDK no longer includes
+	 * since Java 11, and which is not a dependency here; methods are matched by
+	 * the simple name of their annotations, so javax.annotation.PreDestroy and
+	 * jakarta.annotation.PreDestroy are recognized as well.
+	 */
+	@Target(METHOD)
+	@Retention(RUNTIME)
+	static @interface PreDestroy {
+
+	}
+
+	/**
+	 * The order in which instances are disposed.
+	 */
+	static final List<String> disposed = Collections.synchronizedList(new ArrayList<>());
+
+	/**
+	 * Fails to be disposed while its users are not closed, whatever the timing
+	 * of the shutdown.
+	 */
+	@Singleton
+	static class MySingleton {
+		private final Set<Object> users = ConcurrentHashMap.newKeySet();
+
+		void use(Object user) {
+			users.add(user);
+		}
+
+		void release(Object user) {
+			users.remove(user);
+		}
+
+		@PreDestroy
+		void preDestroy() {
+			if (!users.isEmpty()) {
+				throw new IllegalStateException("Still used by " + users);
+			}
+			disposed.add("MySingleton");
+		}
+	}
+
+	static class MyClass {
+		@Inject
+		MySingleton mySingleton;
+	}
+
+	@Singleton
+	static class MyService implements AutoCloseable {
+		@Inject
+		MyClass myClass;
+
+		@Inject
+		void init() {
+			myClass.mySingleton.use(this);
+		}
+
+		@Override
+		public void close() {
+			disposed.add("MyService");
+			myClass.mySingleton.release(this);
+		}
+	}
+
+	/**
+	 * Slow to close, so that MySingleton would still be used if it were
+	 * disposed in parallel.
+	 */
+	@Singleton
+	static class MyOtherService implements AutoCloseable {
+		@Inject
+		MySingleton mySingleton;
+
+		@Inject
+		void init() {
+			mySingleton.use(this);
+		}
+
+		@Override
+		public void close() throws InterruptedException {
+			Thread.sleep(50);
+			disposed.add("MyOtherService");
+			mySingleton.release(this);
+		}
+	}
+
+	/**
+	 * Not a singleton, thus not managed.
+	 */
+	static class MyUnscopedResource implements AutoCloseable {
+
+		@Override
+		public void close() {
+			disposed.add("MyUnscopedResource");
+		}
+	}
+
+	@Singleton
+	static class MyChildService implements AutoCloseable {
+		@Inject
+		MyService myService;
+
+		@Override
+		public void close() {
+			disposed.add("MyChildService");
+		}
+	}
+
+	/**
+	 * Both are closed only if their close() runs concurrently.
+	 */
+	static final CountDownLatch bothClosing = new CountDownLatch(2);
+
+	@Singleton
+	static class MyParallelResource1 implements AutoCloseable {
+
+		@Override
+		public void close() throws InterruptedException {
+			bothClosing.countDown();
+			if (!bothClosing.await(5, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("not closed in parallel");
+			}
+		}
+	}
+
+	@Singleton
+	static class MyParallelResource2 extends MyParallelResource1 {
+
+	}
+
+	@Singleton
+	static class MyHangingResource implements AutoCloseable {
+		@Inject
+		MySingleton mySingleton;
+
+		@Override
+		public void close() throws InterruptedException {
+			Thread.sleep(60000);
+		}
+	}
+
+	@Singleton
+	static class MyFailingResource implements AutoCloseable {
+
+		@Override
+		public void close() throws Exception {
+			throw new Exception("cannot close");
+		}
+	}
+
+	/**
+	 * The outcome of the disposal of a managed instance.
+	 */
+	static class Disposal {
+		final Key<?> key;
+
+		final long nanos;
+
+		/**
+		 * null if the instance has been disposed successfully; a
+		 * {@link TimeoutException} if it took too long.
+		 */
+		final Throwable failure;
+
+		Disposal(Key<?> key, long nanos, Throwable failure) {
+			this.key = key;
+			this.nanos = nanos;
+			this.failure = failure;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %.1f ms%s", key, nanos / 1e6, failure == null ? "" : " (" + failure + ")");
+		}
+	}
+
+	/**
+	 * Keeps track of the singletons that are AutoCloseable or have
+	 * {@link PreDestroy} methods, created by the injector where its
+	 * {@link LifecycleModule} is installed and by its child injectors, which
+	 * inherit the provision listener.
+	 *
+	 * The dependencies among them are the provisions nested in their own
+	 * provision, and the singletons, already created, that their binding depends
+	 * on; both are followed through unscoped instances, while an instance
+	 * requested later through a Provider is not a dependency. The keys of the
+	 * dependencies are resolved in the injector that injected the instance,
+	 * which its {@link InjectionListener} records. On {@link #shutdown(long, TimeUnit)}
+	 * an instance is disposed after all the instances depending on it, and
+	 * independent instances are disposed in parallel; if an instance fails or
+	 * takes longer than the timeout, the shutdown goes on anyway.
+	 */
+	static class LifecycleManager {
+
+		static class Managed {
+			final Key<?> key;
+
+			final Object instance;
+
+			final Collection<Managed> dependencies;
+
+			Managed(Key<?> key, Object instance, Collection<Managed> dependencies) {
+				this.key = key;
+				this.instance = instance;
+				this.dependencies = dependencies;
+			}
+		}
+
+		/**
+		 * A provision in progress.
+		 */
+		static class Provision {
+			final Set<Managed> dependencies = new LinkedHashSet<>();
+
+			/**
+			 * The injector of the instance, if it has been injected.
+			 */
+			Injector injector;
+		}
+
+		private final ConcurrentLinkedQueue<Managed> managed = new ConcurrentLinkedQueue<>();
+
+		private final Map<Object, Managed> managedInstances = Collections.synchronizedMap(new IdentityHashMap<>());
+
+		/**
+		 * The provisions in progress in the current thread.
+		 */
+		private final ThreadLocal<ArrayDeque<Provision>> provisions = new ThreadLocal<ArrayDeque<Provision>>() {
+			@Override
+			protected ArrayDeque<Provision> initialValue() {
+				return new ArrayDeque<>();
+			}
+		};
+
+		private final Map<Class<?>, List<Method>> preDestroyMethods = new ConcurrentHashMap<>();
+
+		private final AtomicBoolean shutdown = new AtomicBoolean();
+
+		final ProvisionListener listener = new ProvisionListener() {
+			@Override
+			public <T> void onProvision(ProvisionInvocation<T> provision) {
+				ArrayDeque<Provision> stack = provisions.get();
+				Provision current = new Provision();
+				stack.push(current);
+				T instance;
+				try {
+					instance = provision.provision();
+				} finally {
+					stack.pop();
+				}
+				Provision enclosing = stack.peek();
+				if (current.injector != null) {
+					addDependencies(provision.getBinding(), current.injector, new HashSet<>(), current.dependencies);
+				}
+				if (isManaged(provision.getBinding(), instance)) {
+					Managed m = new Managed(provision.getBinding().getKey(), instance, current.dependencies);
+					managed.add(m);
+					managedInstances.put(instance, m);
+					if (enclosing != null) {
+						enclosing.dependencies.add(m);
+					}
+				} else if (enclosing != null) {
+					enclosing.dependencies.addAll(current.dependencies);
+				}
+			}
+		};
+
+		/**
+		 * Records the injector of the instance being provisioned.
+		 */
+		final TypeListener injectorListener = new TypeListener() {
+			@Override
+			public <I> void hear(TypeLiteral<I> type, TypeEncounter<I> encounter) {
+				Provider<Injector> injector = encounter.getProvider(Injector.class);
+				encounter.register((InjectionListener<I>) instance -> {
+					Provision current = provisions.get().peek();
+					if (current != null && current.injector == null) {
+						current.injector = injector.get();
+					}
+				});
+			}
+		};
+
+		/**
+		 * Adds the managed singletons the binding depends on, walking through the
+		 * bindings of the other instances.
+		 */
+		private void addDependencies(Binding<?> binding, Injector injector, Set<Binding<?>> visited,
+				Set<Managed> dependencies) {
+			if (!(binding instanceof HasDependencies)) {
+				return;
+			}
+			for (Dependency<?> dependency : ((HasDependencies) binding).getDependencies()) {
+				Class<?> type = dependency.getKey().getTypeLiteral().getRawType();
+				if (type == Provider.class || type == javax.inject.Provider.class || type == Injector.class) {
+					continue;
+				}
+				Binding<?> dependencyBinding = injector.getExistingBinding(dependency.getKey());
+				if (dependencyBinding == null || !visited.add(dependencyBinding)) {
+					continue;
+				}
+				Managed m = Scopes.isSingleton(dependencyBinding)
+						? managedInstances.get(dependencyBinding.getProvider().get())
+						: null;
+				if (m != null) {
+					dependencies.add(m);
+				} else {
+					addDependencies(dependencyBinding, injector, visited, dependencies);
+				}
+			}
+		}
+
+		private boolean isManaged(Binding<?> binding, Object instance) {
+			return instance != null && !Scopes.isCircularProxy(instance) && Scopes.isSingleton(binding)
+					&& (instance instanceof AutoCloseable || !preDestroyMethodsOf(instance.getClass()).isEmpty());
+		}
+
+		private List<Method> preDestroyMethodsOf(Class<?> type) {
+			return preDestroyMethods.computeIfAbsent(type, t -> {
+				List<Method> methods = new ArrayList<>();
+				for (Class<?> c = t; c != Object.class && c != null; c = c.getSuperclass()) {
+					for (Method method : c.getDeclaredMethods()) {
+						if (isPreDestroy(method) && method.getParameterCount() == 0
+								&& !Modifier.isStatic(method.getModifiers())) {
+							method.setAccessible(true);
+							methods.add(method);
+						}
+					}
+				}
+				return methods;
+			});
+		}
+
+		private static boolean isPreDestroy(Method method) {
+			for (Annotation annotation : method.getAnnotations()) {
+				if (annotation.annotationType().getSimpleName().equals("PreDestroy")) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return the number of managed instances
+		 */
+		public int size() {
+			return managed.size();
+		}
+
+		/**
+		 * Disposes the managed instances, at most once.
+		 *
+		 * @return the outcome for each instance, in the order of completion
+		 */
+		public List<Disposal> shutdown(long timeout, TimeUnit unit) {
+			if (!shutdown.compareAndSet(false, true)) {
+				throw new IllegalStateException("Already shut down");
+			}
+			List<Managed> instances = new ArrayList<>(managed);
+			Map<Managed, List<Managed>> dependents = new HashMap<>();
+			for (Managed m : instances) {
+				dependents.put(m, new ArrayList<>());
+			}
+			for (Managed m : instances) {
+				for (Managed dependency : m.dependencies) {
+					dependents.get(dependency).add(m);
+				}
+			}
+			ExecutorService executor = Executors.newCachedThreadPool(daemon());
+			ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(daemon());
+			ConcurrentLinkedQueue<Disposal> disposals = new ConcurrentLinkedQueue<>();
+			try {
+				Map<Managed, CompletableFuture<Void>> disposed = new HashMap<>();
+				// dependents are created after their dependencies
+				for (int i = instances.size() - 1; i >= 0; --i) {
+					Managed m = instances.get(i);
+					CompletableFuture<?>[] before = dependents.get(m).stream().map(disposed::get)
+						.toArray(CompletableFuture<?>[]::new);
+					disposed.put(m, CompletableFuture.allOf(before)
+						.thenCompose(ignored -> dispose(m, executor, scheduler, timeout, unit, disposals)));
+				}
+				CompletableFuture.allOf(disposed.values().toArray(new CompletableFuture<?>[0])).join();
+			} finally {
+				executor.shutdownNow();
+				scheduler.shutdownNow();
+			}
+			return new ArrayList<>(disposals);
+		}
+
+		private CompletableFuture<Void> dispose(Managed m, ExecutorService executor, ScheduledExecutorService scheduler,
+				long timeout, TimeUnit unit, ConcurrentLinkedQueue<Disposal> disposals) {
+			CompletableFuture<Void> done = new CompletableFuture<>();
+			AtomicBoolean completed = new AtomicBoolean();
+			long start = System.nanoTime();
+			Future<?> task = executor.submit(() -> {
+				Throwable failure = null;
+				try {
+					dispose(m.instance);
+				} catch (Throwable e) {
+					failure = e;
+				}
+				if (completed.compareAndSet(false, true)) {
+					disposals.add(new Disposal(m.key, System.nanoTime() - start, failure));
+					done.complete(null);
+				}
+			});
+			scheduler.schedule(() -> {
+				if (completed.compareAndSet(false, true)) {
+					task.cancel(true);
+					disposals.add(new Disposal(m.key, System.nanoTime() - start,
+						new TimeoutException("Not disposed within " + timeout + " " + unit)));
+					done.complete(null);
+				}
+			}, timeout, unit);
+			return done;
+		}
+
+		private void dispose(Object instance) throws Exception {
+			try {
+				for (Method method : preDestroyMethodsOf(instance.getClass())) {
+					method.invoke(instance);
+				}
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			}
+			if (instance instanceof AutoCloseable) {
+				((AutoCloseable) instance).close();
+			}
+		}
+
+		private static ThreadFactory daemon() {
+			return runnable -> {
+				Thread thread = new Thread(runnable, "lifecycle-shutdown");
+				thread.setDaemon(true);
+				return thread;
+			};
+		}
+
+	}
+
+	static class LifecycleModule extends AbstractModule {
+
+		private final LifecycleManager manager = new LifecycleManager();
+
+		@Override
+		protected void configure() {
+			bind(LifecycleManager.class).toInstance(manager);
+			bindListener(Matchers.any(), manager.listener);
+			bindListener(Matchers.any(), manager.injectorListener);
+		}
+
+	}
+
+	@Before
+	public void clearDisposed() {
+		disposed.clear();
+	}
+
+	private static List<String> simpleNamesOf(List<Disposal> disposals) {
+		return disposals.stream().map(d -> d.key.getTypeLiteral().getRawType().getSimpleName())
+			.collect(Collectors.toList());
+	}
+
+	@Test
+	public void testSingletonsAreDisposedAfterTheirDependents() {
+		Injector injector = Guice.createInjector(new LifecycleModule());
+		Injector child = injector.createChildInjector(binder -> binder.bind(MyChildService.class));
+		child.getInstance(MyChildService.class);
+		injector.getInstance(MyOtherService.class);
+		injector.getInstance(MyUnscopedResource.class);
+		LifecycleManager manager = injector.getInstance(LifecycleManager.class);
+		assertEquals(4, manager.size());
+		List<Disposal> disposals = manager.shutdown(1, TimeUnit.SECONDS);
+		assertEquals(4, disposals.size());
+		disposals.forEach(d -> assertNull(d.failure));
+		List<String> order = new ArrayList<>(disposed);
+		// the dependency through the unscoped MyClass is tracked as well
+		assertTrue(order.indexOf("MyChildService") < order.indexOf("MyService"));
+		assertTrue(order.indexOf("MyService") < order.indexOf("MySingleton"));
+		// MySingleton already existed when MyOtherService was created
+		assertTrue(order.indexOf("MyOtherService") < order.indexOf("MySingleton"));
+		assertEquals(new HashSet<>(order), new HashSet<>(simpleNamesOf(disposals)));
+		assertTrue(!order.contains("MyUnscopedResource"));
+	}
+
+	@Test
+	public void testDependenciesOnExistingSingletonsThroughUnscopedInstances() {
+		Injector injector = Guice.createInjector(new LifecycleModule());
+		injector.getInstance(MySingleton.class);
+		injector.getInstance(MyService.class);
+		injector.getInstance(MyOtherService.class);
+		List<Disposal> disposals = injector.getInstance(LifecycleManager.class).shutdown(1, TimeUnit.SECONDS);
+		disposals.forEach(d -> assertNull(d.failure));
+		assertEquals("MySingleton", disposed.get(2));
+	}
+
+	@Test
+	public void testIndependentInstancesAreDisposedInParallel() {
+		Injector injector = Guice.createInjector(new LifecycleModule());
+		injector.getInstance(MyParallelResource1.class);
+		injector.getInstance(MyParallelResource2.class);
+		List<Disposal> disposals = injector.getInstance(LifecycleManager.class).shutdown(10, TimeUnit.SECONDS);
+		assertEquals(2, disposals.size());
+		disposals.forEach(d -> assertNull(d.failure));
+	}
+
+	@Test
+	public void testTimeoutsAndFailuresDoNotStopTheShutdown() {
+		Injector injector = Guice.createInjector(new LifecycleModule());
+		injector.getInstance(MyHangingResource.class);
+		injector.getInstance(MyFailingResource.class);
+		List<Disposal> disposals = injector.getInstance(LifecycleManager.class).shutdown(100, TimeUnit.MILLISECONDS);
+		Map<String, Disposal> byName = new HashMap<>();
+		disposals.forEach(d -> byName.put(d.key.getTypeLiteral().getRawType().getSimpleName(), d));
+		assertEquals(new HashSet<>(Arrays.asList("MyHangingResource", "MyFailingResource", "MySingleton")),
+			byName.keySet());
+		assertTrue(byName.get("MyHangingResource").failure instanceof TimeoutException);
+		assertEquals("cannot close", byName.get("MyFailingResource").failure.getMessage());
+		// disposed after the timeout of its dependent
+		assertNull(byName.get("MySingleton").failure);
+		assertEquals(Arrays.asList("MySingleton"), disposed);
+		assertSame(byName.get("MySingleton"), disposals.get(disposals.size() - 1));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testShutdownOnlyOnce() {
+		LifecycleManager manager = Guice.createInjector(new LifecycleModule()).getInstance(LifecycleManager.class);
+		manager.shutdown(1, TimeUnit.SECONDS);
+		manager.shutdown(1, TimeUnit.SECONDS);
+	}
+
+}
@@ -0,0 +1,445 @@
+package com.examples.helloguice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+
+import org.junit.Test;
+
+import com.examples.helloguice.GeneratedProviders.GeneratedConstructorProvider;
+import com.google.inject.AbstractModule;
+import com.google.inject.ConfigurationException;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.MembersInjector;
+import com.google.inject.Provider;
+import com.google.inject.spi.Dependency;
+import com.google.inject.spi.InjectionPoint;
+
+public class MembersInjectorGuiceLearningTest {
+
+	static interface MyInterface {
+
+	}
+
+	static class MyImplementation implements MyInterface {
+
+	}
+
+	static class MyParam {
+
+	}
+
+	/**
+	 * Only injected in an optional member, so nothing else binds it.
+	 */
+	static class MyOptionalParam {
+
+	}
+
+	static class MyFieldClass {
+		@Inject
+		private MyInterface field;
+
+		public MyInterface getField() {
+			return field;
+		}
+	}
+
+	static class MySetterClass {
+		private MyInterface field;
+
+		public MyInterface getField() {
+			return field;
+		}
+
+		@Inject
+		public void setField(MyInterface field) {
+			this.field = field;
+		}
+	}
+
+	static class MyRecordingSetterClass {
+		private MyInterface field;
+
+		/**
+		 * The classes on the stack between the injector and this setter.
+		 */
+		final List<String> callers = new ArrayList<>();
+
+		public MyInterface getField() {
+			return field;
+		}
+
+		@Inject
+		public void setField(MyInterface field) {
+			this.field = field;
+			for (StackTraceElement element : new Throwable().getStackTrace()) {
+				String className = element.getClassName();
+				if (className.startsWith("com.google.inject.")
+						|| className.equals(MethodHandleMembersInjector.class.getName())) {
+					break;
+				}
+				callers.add(className);
+			}
+		}
+	}
+
+	static class MyMethodClass {
+		private MyInterface field;
+		private MyParam myParam;
+
+		@Inject
+		private void init(MyInterface field, MyParam myParam) {
+			this.field = field;
+			this.myParam = myParam;
+		}
+
+		public MyInterface getField() {
+			return field;
+		}
+
+		public MyParam getMyParam() {
+			return myParam;
+		}
+	}
+
+	static class MyConstructorClass {
+		private MyInterface field;
+
+		@Inject
+		public MyConstructorClass(MyInterface field) {
+			this.field = field;
+		}
+
+		public MyInterface getField() {
+			return field;
+		}
+	}
+
+	/**
+	 * Members of the superclass are injected first.
+	 */
+	static class MyDerivedClass extends MyFieldClass {
+		private MyInterface fieldSeenBySetter;
+
+		@com.google.inject.Inject(optional = true)
+		private Runnable notBound;
+
+		@com.google.inject.Inject(optional = true)
+		private MyOptionalParam justInTime;
+
+		@Inject
+		public void setOther(MyParam myParam) {
+			fieldSeenBySetter = getField();
+		}
+
+		public MyInterface getFieldSeenBySetter() {
+			return fieldSeenBySetter;
+		}
+
+		public Runnable getNotBound() {
+			return notBound;
+		}
+
+		public MyOptionalParam getJustInTime() {
+			return justInTime;
+		}
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyInterface.class).to(MyImplementation.class);
+		}
+
+	}
+
+	/**
+	 * Injects the fields and the methods of a type, in the same order as Guice,
+	 * through {@link MethodHandle}s created once per member, instead of
+	 * Field.set and Method.invoke; each one is adapted to the signature
+	 * (Object, Object[])void, so that all the members are injected in the same
+	 * way.
+	 *
+	 * Optional members are skipped when one of their keys cannot be bound, not
+	 * even just in time, as Guice does.
+	 */
+	static class MethodHandleMembersInjector<T> implements MembersInjector<T> {
+
+		private static final MethodType INJECTION_TYPE = MethodType.methodType(void.class, Object.class,
+			Object[].class);
+
+		private final MethodHandle[] handles;
+
+		private final Provider<?>[][] providers;
+
+		public MethodHandleMembersInjector(Class<T> type, Injector injector) {
+			List<MethodHandle> handleList = new ArrayList<>();
+			List<Provider<?>[]> providerList = new ArrayList<>();
+			for (InjectionPoint injectionPoint : InjectionPoint.forInstanceMethodsAndFields(type)) {
+				List<Dependency<?>> dependencies = injectionPoint.getDependencies();
+				if (injectionPoint.isOptional() && !dependencies.stream().allMatch(d -> canBind(injector, d.getKey()))) {
+					continue;
+				}
+				Provider<?>[] memberProviders = new Provider<?>[dependencies.size()];
+				for (int i = 0; i < memberProviders.length; ++i) {
+					memberProviders[i] = injector.getProvider(dependencies.get(i).getKey());
+				}
+				handleList.add(handleOf(injectionPoint));
+				providerList.add(memberProviders);
+			}
+			handles = handleList.toArray(new MethodHandle[0]);
+			providers = providerList.toArray(new Provider<?>[0][]);
+		}
+
+		private static boolean canBind(Injector injector, Key<?> key) {
+			try {
+				injector.getBinding(key);
+				return true;
+			} catch (ConfigurationException e) {
+				return false;
+			}
+		}
+
+		private static MethodHandle handleOf(InjectionPoint injectionPoint) {
+			AccessibleObject member = (AccessibleObject) injectionPoint.getMember();
+			member.setAccessible(true);
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			try {
+				MethodHandle handle;
+				int arity;
+				if (member instanceof Field) {
+					handle = lookup.unreflectSetter((Field) member);
+					arity = 1;
+				} else {
+					handle = lookup.unreflect((Method) member);
+					arity = ((Method) member).getParameterCount();
+				}
+				return handle.asType(MethodType.genericMethodType(arity + 1).changeReturnType(void.class))
+					.asSpreader(Object[].class, arity)
+					.asType(INJECTION_TYPE);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public void injectMembers(T instance) {
+			for (int i = 0; i < handles.length; ++i) {
+				Provider<?>[] memberProviders = providers[i];
+				Object[] args = new Object[memberProviders.length];
+				for (int j = 0; j < args.length; ++j) {
+					args[j] = memberProviders[j].get();
+				}
+				try {
+					handles[i].invokeExact((Object) instance, args);
+				} catch (RuntimeException | Error e) {
+					throw e;
+				} catch (Throwable e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * The {@link MethodHandleMembersInjector}s, created once per type, to inject
+	 * existing instances, like {@link Injector#injectMembers(Object)}.
+	 */
+	static class MethodHandleMembersInjectors {
+
+		private final Map<Class<?>, MethodHandleMembersInjector<?>> injectors = new ConcurrentHashMap<>();
+
+		@Inject
+		private Injector injector;
+
+		@SuppressWarnings("unchecked")
+		public <T> MembersInjector<T> getMembersInjector(Class<T> type) {
+			MethodHandleMembersInjector<?> membersInjector = injectors.get(type);
+			if (membersInjector == null) {
+				membersInjector = injectors.computeIfAbsent(type,
+					t -> new MethodHandleMembersInjector<>(t, injector));
+			}
+			return (MembersInjector<T>) membersInjector;
+		}
+
+		@SuppressWarnings("unchecked")
+		public void injectMembers(Object instance) {
+			getMembersInjector((Class<Object>) instance.getClass()).injectMembers(instance);
+		}
+
+	}
+
+	/**
+	 * The {@link GeneratedConstructorProvider} calling the injectable
+	 * constructor through a {@link MethodHandle}, and injecting the members with
+	 * a {@link MethodHandleMembersInjector}.
+	 */
+	static class MethodHandleProvider<T> extends GeneratedConstructorProvider<T> {
+
+		public MethodHandleProvider(Class<T> type) {
+			super(type, MethodHandleProvider::factoryOf);
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <T> Function<Object[], T> factoryOf(Constructor<T> member) {
+			member.setAccessible(true);
+			int arity = member.getParameterCount();
+			MethodHandle constructor;
+			try {
+				constructor = MethodHandles.lookup().unreflectConstructor(member)
+					.asType(MethodType.genericMethodType(arity))
+					.asSpreader(Object[].class, arity);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+			return args -> {
+				try {
+					return (T) (Object) constructor.invokeExact(args);
+				} catch (RuntimeException | Error e) {
+					throw e;
+				} catch (Throwable e) {
+					throw new IllegalStateException(e);
+				}
+			};
+		}
+
+		@Override
+		protected MembersInjector<T> membersInjectorOf(Injector injector, Class<T> type) {
+			return injector.getInstance(MethodHandleMembersInjectors.class).getMembersInjector(type);
+		}
+
+	}
+
+	/**
+	 * Binds the given classes to a {@link MethodHandleProvider}, in the scope
+	 * specified by their scope annotation, if any, and binds
+	 * {@link MethodHandleMembersInjectors} to inject existing instances.
+	 */
+	static class MethodHandleInjectionModule extends AbstractModule {
+
+		private final Class<?>[] types;
+
+		public MethodHandleInjectionModule(Class<?>... types) {
+			this.types = types;
+		}
+
+		@Override
+		protected void configure() {
+			bind(MethodHandleMembersInjectors.class).toInstance(new MethodHandleMembersInjectors());
+			for (Class<?> type : types) {
+				bindToProvider(type);
+			}
+		}
+
+		private <T> void bindToProvider(Class<T> type) {
+			Class<? extends Annotation> scope = GeneratedProviders.scopeAnnotationOf(type);
+			if (scope == null) {
+				bind(type).toProvider(new MethodHandleProvider<>(type));
+			} else {
+				bind(type).toProvider(new MethodHandleProvider<>(type)).in(scope);
+			}
+		}
+
+	}
+
+	private static final Class<?>[] TYPES = { MyFieldClass.class, MySetterClass.class, MyMethodClass.class,
+			MyConstructorClass.class, MyDerivedClass.class, MyRecordingSetterClass.class };
+
+	@Test
+	public void testAllInjectionStyles() {
+		Injector injector = Guice.createInjector(new MyModule(), new MethodHandleInjectionModule(TYPES));
+		assertEquals(MyImplementation.class, injector.getInstance(MyFieldClass.class).getField().getClass());
+		assertEquals(MyImplementation.class, injector.getInstance(MySetterClass.class).getField().getClass());
+		MyMethodClass myMethodClass = injector.getInstance(MyMethodClass.class);
+		assertEquals(MyImplementation.class, myMethodClass.getField().getClass());
+		assertNotNull(myMethodClass.getMyParam());
+		assertEquals(MyImplementation.class, injector.getInstance(MyConstructorClass.class).getField().getClass());
+		MyDerivedClass myDerivedClass = injector.getInstance(MyDerivedClass.class);
+		assertEquals(MyImplementation.class, myDerivedClass.getFieldSeenBySetter().getClass());
+		assertNull(myDerivedClass.getNotBound());
+		// as with Guice, optional members are injected when they can be bound
+		// just in time
+		assertNotNull(myDerivedClass.getJustInTime());
+		assertNotNull(Guice.createInjector(new MyModule()).getInstance(MyDerivedClass.class).getJustInTime());
+	}
+
+	@Test
+	public void testInjectMembersOfExistingInstances() {
+		Injector injector = Guice.createInjector(new MyModule(), new MethodHandleInjectionModule());
+		MyMethodClass o = new MyMethodClass();
+		injector.getInstance(MethodHandleMembersInjectors.class).injectMembers(o);
+		assertEquals(MyImplementation.class, o.getField().getClass());
+		MethodHandleMembersInjectors membersInjectors = injector.getInstance(MethodHandleMembersInjectors.class);
+		assertSame(membersInjectors.getMembersInjector(MyMethodClass.class),
+			membersInjectors.getMembersInjector(MyMethodClass.class));
+	}
+
+	@Test
+	public void testSettersAreNotCalledReflectively() {
+		Injector stock = Guice.createInjector(new MyModule());
+		assertTrue(stock.getInstance(MyRecordingSetterClass.class).callers.stream()
+			.anyMatch(GeneratedProviders::isReflective));
+		Injector injector = Guice.createInjector(new MyModule(), new MethodHandleInjectionModule(TYPES));
+		MyRecordingSetterClass o = injector.getInstance(MyRecordingSetterClass.class);
+		assertEquals(MyImplementation.class, o.getField().getClass());
+		assertFalse(o.callers.isEmpty());
+		assertFalse(o.callers.stream().anyMatch(GeneratedProviders::isReflective));
+	}
+
+	/**
+	 * Compares the time to provide an instance with each injection style with
+	 * stock Guice and with the method handles, after a warm-up; the timings are
+	 * only printed, since they depend on the machine.
+	 */
+	@Test
+	public void testInjectionStylesBenchmark() {
+		Injector stock = Guice.createInjector(new MyModule());
+		Injector methodHandles = Guice.createInjector(new MyModule(), new MethodHandleInjectionModule(TYPES));
+		int iterations = 200000;
+		StringBuilder report = new StringBuilder();
+		for (Class<?> type : new Class<?>[] { MyFieldClass.class, MySetterClass.class, MyMethodClass.class,
+				MyConstructorClass.class }) {
+			Provider<?> stockProvider = stock.getProvider(type);
+			Provider<?> methodHandleProvider = methodHandles.getProvider(type);
+			benchmark(stockProvider, iterations);
+			benchmark(methodHandleProvider, iterations);
+			report.append(String.format("%s: stock Guice %d ns, method handles %d ns%n", type.getSimpleName(),
+				benchmark(stockProvider, iterations) / iterations,
+				benchmark(methodHandleProvider, iterations) / iterations));
+		}
+		System.out.print(report);
+	}
+
+	private static long benchmark(Provider<?> provider, int iterations) {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i) {
+			assertNotNull(provider.get());
+		}
+		return System.nanoTime() - start;
+	}
+
+}
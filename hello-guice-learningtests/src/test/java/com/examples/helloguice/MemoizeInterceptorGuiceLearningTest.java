@@ -0,0 +1,466 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.matcher.AbstractMatcher;
+import com.google.inject.matcher.Matchers;
+
+public class MemoizeInterceptorGuiceLearningTest {
+
+	/**
+	 * The results of the annotated method are cached by {@link MemoizeModule},
+	 * for each instance, by arguments, so the method must only depend on the
+	 * state of the instance and on the arguments; at most maxSize results are
+	 * kept for each instance, each one for ttl milliseconds at most.
+	 */
+	@Target(METHOD)
+	@Retention(RUNTIME)
+	static @interface Memoize {
+		long maxSize() default 1000;
+
+		long ttl() default Long.MAX_VALUE;
+	}
+
+	static interface MyInterface {
+		long compute(int value);
+	}
+
+	/**
+	 * Counts how many times its methods are actually executed; if the gate is
+	 * set, compute waits for it to open.
+	 */
+	static class MyImplementation implements MyInterface {
+		static final AtomicInteger calls = new AtomicInteger();
+
+		static volatile CountDownLatch gate;
+
+		@Memoize(maxSize = 2)
+		@Override
+		public long compute(int value) {
+			calls.incrementAndGet();
+			CountDownLatch current = gate;
+			if (current != null) {
+				try {
+					current.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return value * 2L;
+		}
+
+		@Memoize
+		public int sum(int[] values) {
+			calls.incrementAndGet();
+			return Arrays.stream(values).sum();
+		}
+
+		@Memoize(ttl = 1000)
+		public String concat(String s1, String s2) {
+			calls.incrementAndGet();
+			return s1 == null ? null : s1 + s2;
+		}
+
+		@Memoize
+		public int fail(int value) {
+			calls.incrementAndGet();
+			throw new IllegalArgumentException("value " + value);
+		}
+	}
+
+	/**
+	 * A service we cannot annotate.
+	 */
+	static class MyService {
+		static final AtomicInteger calls = new AtomicInteger();
+
+		public String lookup(String name) {
+			calls.incrementAndGet();
+			return "result of " + name;
+		}
+	}
+
+	static class MyClass {
+		@Inject
+		private MyService service;
+
+		public MyService getService() {
+			return service;
+		}
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyInterface.class).to(MyImplementation.class);
+		}
+
+	}
+
+	/**
+	 * A {@link Ticker} we can move forward manually, so that expiration does not
+	 * depend on the wall clock.
+	 */
+	static class FakeTicker extends Ticker {
+
+		private final AtomicLong nanos = new AtomicLong();
+
+		@Override
+		public long read() {
+			return nanos.get();
+		}
+
+		public void advance(long time, TimeUnit unit) {
+			nanos.addAndGet(unit.toNanos(time));
+		}
+
+	}
+
+	/**
+	 * Caches the results of the intercepted methods in a Guava {@link Cache} for
+	 * each method and each instance, which is concurrent and LRU bounded by
+	 * size; only one thread executes the method for a missing entry, the others
+	 * wait for its result. The caches of the instances of a method are in a
+	 * cache with weak keys, compared by identity, so that they do not keep the
+	 * instances alive.
+	 *
+	 * The key of a single-argument method is the argument itself (a primitive
+	 * argument is already boxed by the interception), so that no tuple is
+	 * allocated for the lookup; otherwise, or when the argument is an array, it
+	 * is an {@link ArgumentsKey}, comparing arrays by content. Methods not
+	 * annotated with {@link Memoize} use the default maxSize and ttl of the
+	 * interceptor.
+	 */
+	static class MemoizeInterceptor implements MethodInterceptor {
+
+		private static final Object NULL = new Object();
+
+		private static final Object NO_ARGUMENTS = new Object();
+
+		private final ConcurrentMap<Method, Cache<Object, Cache<Object, Object>>> caches = new ConcurrentHashMap<>();
+
+		private final long defaultMaxSize;
+
+		private final long defaultTtl;
+
+		private final Ticker ticker;
+
+		public MemoizeInterceptor(long defaultMaxSize, long defaultTtl, Ticker ticker) {
+			this.defaultMaxSize = defaultMaxSize;
+			this.defaultTtl = defaultTtl;
+			this.ticker = ticker;
+		}
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			Cache<Object, Object> cache = cacheOf(invocation.getMethod(), invocation.getThis());
+			try {
+				Object result = cache.get(keyOf(invocation.getArguments()), () -> {
+					try {
+						Object value = invocation.proceed();
+						return value == null ? NULL : value;
+					} catch (Throwable e) {
+						throw new InvocationFailure(e);
+					}
+				});
+				return result == NULL ? null : result;
+			} catch (ExecutionException | UncheckedExecutionException e) {
+				// failures are not cached
+				Throwable cause = e.getCause();
+				throw cause instanceof InvocationFailure ? cause.getCause() : cause;
+			}
+		}
+
+		private static Object keyOf(Object[] arguments) {
+			if (arguments.length == 0) {
+				return NO_ARGUMENTS;
+			}
+			if (arguments.length == 1) {
+				if (arguments[0] == null) {
+					return NULL;
+				}
+				if (!arguments[0].getClass().isArray()) {
+					return arguments[0];
+				}
+			}
+			// several arguments, or a single array
+			return new ArgumentsKey(arguments.clone());
+		}
+
+		/**
+		 * The arguments of a call, compared with {@link Arrays#deepEquals}, so that
+		 * arrays are compared by content; the arrays must not be modified
+		 * afterwards.
+		 */
+		private static final class ArgumentsKey {
+			private final Object[] arguments;
+
+			private final int hashCode;
+
+			ArgumentsKey(Object[] arguments) {
+				this.arguments = arguments;
+				this.hashCode = Arrays.deepHashCode(arguments);
+			}
+
+			@Override
+			public boolean equals(Object obj) {
+				return obj instanceof ArgumentsKey && Arrays.deepEquals(arguments, ((ArgumentsKey) obj).arguments);
+			}
+
+			@Override
+			public int hashCode() {
+				return hashCode;
+			}
+		}
+
+		private Cache<Object, Object> cacheOf(Method method, Object instance) throws ExecutionException {
+			Cache<Object, Cache<Object, Object>> instanceCaches = caches.get(method);
+			if (instanceCaches == null) {
+				instanceCaches = caches.computeIfAbsent(method,
+					m -> CacheBuilder.newBuilder().weakKeys().<Object, Cache<Object, Object>> build());
+			}
+			Cache<Object, Object> cache = instanceCaches.getIfPresent(instance);
+			if (cache == null) {
+				cache = instanceCaches.get(instance, () -> createCache(method));
+			}
+			return cache;
+		}
+
+		private Cache<Object, Object> createCache(Method method) {
+			Memoize memoize = method.getAnnotation(Memoize.class);
+			long maxSize = memoize != null ? memoize.maxSize() : defaultMaxSize;
+			long ttl = memoize != null ? memoize.ttl() : defaultTtl;
+			CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.ticker(ticker)
+				.recordStats();
+			if (ttl != Long.MAX_VALUE) {
+				builder.expireAfterWrite(ttl, TimeUnit.MILLISECONDS);
+			}
+			return builder.build();
+		}
+
+		/**
+		 * @return hits, misses and evictions of the given method, summed over the
+		 *         instances still alive, or null if it has never been called
+		 */
+		public CacheStats getStats(Method method) {
+			Cache<Object, Cache<Object, Object>> instanceCaches = caches.get(method);
+			if (instanceCaches == null) {
+				return null;
+			}
+			CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+			for (Cache<Object, Object> cache : instanceCaches.asMap().values()) {
+				stats = stats.plus(cache.stats());
+			}
+			return stats;
+		}
+
+		private static class InvocationFailure extends Exception {
+			private static final long serialVersionUID = 1L;
+
+			InvocationFailure(Throwable cause) {
+				super(cause);
+			}
+		}
+
+	}
+
+	/**
+	 * Memoizes the methods annotated with {@link Memoize}, and, through
+	 * {@link #memoize(Class, String)}, methods of classes that cannot be
+	 * annotated; the interceptor is also bound, so that its statistics can be
+	 * injected.
+	 */
+	static class MemoizeModule extends AbstractModule {
+
+		private final MemoizeInterceptor interceptor;
+
+		private final List<Runnable> memoized = new ArrayList<>();
+
+		public MemoizeModule() {
+			this(Ticker.systemTicker());
+		}
+
+		public MemoizeModule(Ticker ticker) {
+			interceptor = new MemoizeInterceptor(1000, Long.MAX_VALUE, ticker);
+		}
+
+		/**
+		 * Memoizes the methods with the given name of the given class and its
+		 * subclasses, with the default maxSize and ttl.
+		 */
+		public MemoizeModule memoize(Class<?> type, String methodName) {
+			memoized.add(() -> bindInterceptor(Matchers.subclassesOf(type), new AbstractMatcher<Method>() {
+				@Override
+				public boolean matches(Method method) {
+					return method.getName().equals(methodName) && !method.isSynthetic();
+				}
+			}, interceptor));
+			return this;
+		}
+
+		@Override
+		protected void configure() {
+			bind(MemoizeInterceptor.class).toInstance(interceptor);
+			bindInterceptor(Matchers.any(), Matchers.annotatedWith(Memoize.class), interceptor);
+			memoized.forEach(Runnable::run);
+		}
+
+	}
+
+	@Test
+	public void testResultsAreMemoizedByArguments() throws Exception {
+		Injector injector = Guice.createInjector(new MyModule(), new MemoizeModule());
+		MyImplementation o = (MyImplementation) injector.getInstance(MyInterface.class);
+		MyImplementation.calls.set(0);
+		assertEquals(4, o.compute(2));
+		assertEquals(4, o.compute(2));
+		assertEquals("ab", o.concat("a", "b"));
+		assertEquals("ab", o.concat("a", "b"));
+		assertEquals("ba", o.concat("b", "a"));
+		assertNull(o.concat(null, "a"));
+		assertNull(o.concat(null, "a"));
+		assertEquals(4, MyImplementation.calls.get());
+		MemoizeInterceptor interceptor = injector.getInstance(MemoizeInterceptor.class);
+		CacheStats stats = interceptor.getStats(MyImplementation.class.getMethod("concat", String.class, String.class));
+		assertEquals(2, stats.hitCount());
+		assertEquals(3, stats.missCount());
+		// another instance has its own cache
+		assertEquals(4, injector.getInstance(MyInterface.class).compute(2));
+		assertEquals(5, MyImplementation.calls.get());
+		assertEquals(4, o.compute(2));
+		assertEquals(5, MyImplementation.calls.get());
+	}
+
+	@Test
+	public void testArraysAreComparedByContent() {
+		Injector injector = Guice.createInjector(new MyModule(), new MemoizeModule());
+		MyImplementation o = (MyImplementation) injector.getInstance(MyInterface.class);
+		MyImplementation.calls.set(0);
+		assertEquals(3, o.sum(new int[] { 1, 2 }));
+		assertEquals(3, o.sum(new int[] { 1, 2 }));
+		assertEquals(1, MyImplementation.calls.get());
+		assertEquals(4, o.sum(new int[] { 1, 3 }));
+		assertEquals(2, MyImplementation.calls.get());
+	}
+
+	@Test
+	public void testEvictionBySizeAndTtl() throws Exception {
+		FakeTicker ticker = new FakeTicker();
+		Injector injector = Guice.createInjector(new MyModule(), new MemoizeModule(ticker));
+		MyImplementation o = (MyImplementation) injector.getInstance(MyInterface.class);
+		MyImplementation.calls.set(0);
+		o.compute(1);
+		o.compute(2);
+		o.compute(3);
+		MemoizeInterceptor interceptor = injector.getInstance(MemoizeInterceptor.class);
+		assertEquals(1, interceptor.getStats(MyImplementation.class.getMethod("compute", int.class)).evictionCount());
+		o.compute(1);
+		assertEquals(4, MyImplementation.calls.get());
+		o.concat("a", "b");
+		ticker.advance(999, TimeUnit.MILLISECONDS);
+		o.concat("a", "b");
+		assertEquals(5, MyImplementation.calls.get());
+		ticker.advance(1, TimeUnit.MILLISECONDS);
+		o.concat("a", "b");
+		assertEquals(6, MyImplementation.calls.get());
+	}
+
+	@Test
+	public void testExceptionsArePropagatedAndNotCached() {
+		Injector injector = Guice.createInjector(new MyModule(), new MemoizeModule());
+		MyImplementation o = (MyImplementation) injector.getInstance(MyInterface.class);
+		MyImplementation.calls.set(0);
+		for (int i = 0; i < 2; ++i) {
+			try {
+				o.fail(1);
+			} catch (IllegalArgumentException e) {
+				assertEquals("value 1", e.getMessage());
+			}
+		}
+		assertEquals(2, MyImplementation.calls.get());
+	}
+
+	@Test
+	public void testOnlyOneThreadComputesAMissingEntry() throws InterruptedException {
+		Injector injector = Guice.createInjector(new MyModule(), new MemoizeModule());
+		MyInterface o = injector.getInstance(MyInterface.class);
+		MyImplementation.calls.set(0);
+		MyImplementation.gate = new CountDownLatch(1);
+		try {
+			List<Long> results = Collections.synchronizedList(new ArrayList<>());
+			List<Thread> threads = new ArrayList<>();
+			for (int i = 0; i < 16; ++i) {
+				Thread thread = new Thread(() -> results.add(o.compute(42)));
+				threads.add(thread);
+				thread.start();
+			}
+			// the method blocks the first thread, the others wait for it
+			while (threads.stream().anyMatch(t -> t.getState() == Thread.State.NEW
+					|| t.getState() == Thread.State.RUNNABLE)) {
+				Thread.sleep(1);
+			}
+			assertEquals(1, MyImplementation.calls.get());
+			MyImplementation.gate.countDown();
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			assertEquals(1, MyImplementation.calls.get());
+			assertEquals(Collections.nCopies(16, 84L), results);
+		} finally {
+			MyImplementation.gate = null;
+		}
+	}
+
+	@Test
+	public void testMemoizeWithoutAnnotatingTheTargetClass() throws Exception {
+		Injector injector = Guice.createInjector(new MemoizeModule().memoize(MyService.class, "lookup"));
+		MyClass o = injector.getInstance(MyClass.class);
+		MyService.calls.set(0);
+		assertEquals("result of a", o.getService().lookup("a"));
+		assertEquals("result of a", o.getService().lookup("a"));
+		assertEquals(1, MyService.calls.get());
+		assertSame(MyService.class, o.getService().getClass().getSuperclass());
+		// another instance of the service has its own cache
+		assertEquals("result of a", injector.getInstance(MyClass.class).getService().lookup("a"));
+		assertEquals(2, MyService.calls.get());
+		assertEquals(1, injector.getInstance(MemoizeInterceptor.class)
+			.getStats(MyService.class.getMethod("lookup", String.class)).hitCount());
+	}
+
+}
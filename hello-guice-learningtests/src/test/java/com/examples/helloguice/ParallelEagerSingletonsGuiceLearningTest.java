@@ -0,0 +1,328 @@
+package com.examples.helloguice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.ConfigurationException;
+import com.google.inject.CreationException;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.ProvisionException;
+import com.google.inject.Scopes;
+import com.google.inject.Singleton;
+import com.google.inject.Stage;
+import com.google.inject.spi.Dependency;
+import com.google.inject.spi.HasDependencies;
+import com.google.inject.spi.InstanceBinding;
+import com.google.inject.spi.Message;
+
+public class ParallelEagerSingletonsGuiceLearningTest {
+
+	// independent singletons, which can only be built if they are built in
+	// parallel; reset before each test
+	private static volatile CountDownLatch bothStarted;
+
+	private static final AtomicBoolean notInParallel = new AtomicBoolean();
+
+	private static final List<Class<?>> built = Collections.synchronizedList(new ArrayList<>());
+
+	private static void waitForTheOtherOne() throws InterruptedException {
+		CountDownLatch latch = bothStarted;
+		latch.countDown();
+		if (!latch.await(5, TimeUnit.SECONDS)) {
+			notInParallel.set(true);
+		}
+	}
+
+	@Singleton
+	static class MyFirstService {
+		@Inject
+		public MyFirstService() throws InterruptedException {
+			waitForTheOtherOne();
+			built.add(getClass());
+		}
+	}
+
+	@Singleton
+	static class MySecondService {
+		@Inject
+		public MySecondService() throws InterruptedException {
+			waitForTheOtherOne();
+			built.add(getClass());
+		}
+	}
+
+	static class MyClass {
+		private MySecondService second;
+
+		@Inject
+		public MyClass(MySecondService second) {
+			this.second = second;
+		}
+
+		public MySecondService getSecond() {
+			return second;
+		}
+	}
+
+	/**
+	 * Depends on both the services, directly or through an unscoped class.
+	 */
+	@Singleton
+	static class MyDependentService {
+		private MyClass myClass;
+
+		@Inject
+		public MyDependentService(MyFirstService first, MyClass myClass) {
+			this.myClass = myClass;
+			built.add(getClass());
+		}
+
+		public MyClass getMyClass() {
+			return myClass;
+		}
+	}
+
+	@Singleton
+	static class MyFailingService {
+		@Inject
+		public MyFailingService() {
+			throw new IllegalStateException("intentional");
+		}
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyDependentService.class);
+			bind(MyFirstService.class);
+			bind(MySecondService.class);
+		}
+
+	}
+
+	/**
+	 * Creates an injector in {@link Stage#DEVELOPMENT}, so that Guice does not
+	 * build singletons one after the other, and then builds them on a
+	 * {@link ForkJoinPool}: a singleton is built only after the singletons it
+	 * depends on (also through unscoped bindings) have been built, while
+	 * independent singletons are built in parallel.
+	 *
+	 * Provisioning errors, and any other exception thrown while building a
+	 * singleton, are reported as a {@link CreationException}, like Guice does in
+	 * {@link Stage#PRODUCTION}; after the first failure no other singleton is
+	 * built.
+	 *
+	 * Note that, since Guice has no stage-independent eager step, the modules
+	 * see {@link Stage#DEVELOPMENT} as the current stage, and so does anything
+	 * injected with the Stage; bindings with asEagerSingleton() are still built
+	 * by Guice itself.
+	 */
+	static class ParallelEagerSingletons {
+
+		private final Injector injector;
+
+		private final ForkJoinPool pool;
+
+		private final Map<Key<?>, CompletableFuture<Void>> futures = new HashMap<>();
+
+		private final List<Message> errors = Collections.synchronizedList(new ArrayList<>());
+
+		private ParallelEagerSingletons(Injector injector, ForkJoinPool pool) {
+			this.injector = injector;
+			this.pool = pool;
+		}
+
+		public static Injector createInjector(ForkJoinPool pool, Module... modules) {
+			Injector injector = Guice.createInjector(Stage.DEVELOPMENT, modules);
+			new ParallelEagerSingletons(injector, pool).buildSingletons();
+			return injector;
+		}
+
+		private void buildSingletons() {
+			List<Binding<?>> bindings = new ArrayList<>(injector.getBindings().values());
+			List<CompletableFuture<Void>> all = new ArrayList<>();
+			for (Binding<?> binding : bindings) {
+				if (isSingletonToBuild(binding)) {
+					all.add(futureFor(binding, new HashSet<>()));
+				}
+			}
+			CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])).join();
+			if (!errors.isEmpty()) {
+				throw new CreationException(errors);
+			}
+		}
+
+		private static boolean isSingletonToBuild(Binding<?> binding) {
+			return Scopes.isSingleton(binding) && !(binding instanceof InstanceBinding);
+		}
+
+		private CompletableFuture<Void> futureFor(Binding<?> binding, Set<Key<?>> visiting) {
+			Key<?> key = binding.getKey();
+			CompletableFuture<Void> future = futures.get(key);
+			if (future != null) {
+				return future;
+			}
+			visiting.add(key);
+			List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+			for (Binding<?> dependency : singletonDependencies(binding, new HashSet<>())) {
+				// a circular dependency is left to Guice
+				if (!visiting.contains(dependency.getKey())) {
+					dependencies.add(futureFor(dependency, visiting));
+				}
+			}
+			visiting.remove(key);
+			future = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture<?>[0]))
+				.thenRunAsync(() -> build(key), pool);
+			futures.put(key, future);
+			return future;
+		}
+
+		private void build(Key<?> key) {
+			if (!errors.isEmpty()) {
+				return;
+			}
+			try {
+				injector.getInstance(key);
+			} catch (ProvisionException e) {
+				errors.addAll(e.getErrorMessages());
+			} catch (ConfigurationException e) {
+				errors.addAll(e.getErrorMessages());
+			} catch (RuntimeException | Error e) {
+				errors.add(new Message(Collections.singletonList(key), "Error building " + key + ": " + e, e));
+			}
+		}
+
+		/**
+		 * The singletons the binding depends on, following unscoped bindings.
+		 */
+		private List<Binding<?>> singletonDependencies(Binding<?> binding, Set<Key<?>> seen) {
+			List<Binding<?>> result = new ArrayList<>();
+			if (!(binding instanceof HasDependencies)) {
+				return result;
+			}
+			for (Dependency<?> dependency : ((HasDependencies) binding).getDependencies()) {
+				Key<?> key = dependency.getKey();
+				Class<?> rawType = key.getTypeLiteral().getRawType();
+				if (!seen.add(key) || rawType == Provider.class || rawType == javax.inject.Provider.class
+						|| rawType == Injector.class) {
+					// providers are lazy, they do not impose any order
+					continue;
+				}
+				Binding<?> dependencyBinding;
+				try {
+					dependencyBinding = injector.getBinding(key);
+				} catch (ConfigurationException e) {
+					// will be reported when building the singleton
+					continue;
+				}
+				if (isSingletonToBuild(dependencyBinding)) {
+					result.add(dependencyBinding);
+				} else {
+					result.addAll(singletonDependencies(dependencyBinding, seen));
+				}
+			}
+			return result;
+		}
+
+	}
+
+	@Before
+	public void resetBuilt() {
+		bothStarted = new CountDownLatch(2);
+		notInParallel.set(false);
+		built.clear();
+	}
+
+	@Test
+	public void testIndependentSingletonsAreBuiltInParallelAndInDependencyOrder() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			Injector injector = ParallelEagerSingletons.createInjector(pool, new MyModule());
+			assertEquals(false, notInParallel.get());
+			assertEquals(3, built.size());
+			// the dependent service is built last
+			assertSame(MyDependentService.class, built.get(2));
+			MyDependentService dependent = injector.getInstance(MyDependentService.class);
+			assertSame(injector.getInstance(MySecondService.class), dependent.getMyClass().getSecond());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testFailuresAreReportedAsCreationExceptionAsInProduction() {
+		Module module = new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(MyFailingService.class);
+			}
+		};
+		String expected = null;
+		try {
+			Guice.createInjector(Stage.PRODUCTION, module);
+			fail();
+		} catch (CreationException e) {
+			expected = e.getMessage();
+		}
+		try {
+			ParallelEagerSingletons.createInjector(ForkJoinPool.commonPool(), module);
+			fail();
+		} catch (CreationException e) {
+			assertEquals(expected, e.getMessage());
+		}
+	}
+
+	@Test
+	public void testOtherExceptionsAreReportedAsCreationException() {
+		try {
+			ParallelEagerSingletons.createInjector(ForkJoinPool.commonPool(), new AbstractModule() {
+				@Override
+				protected void configure() {
+					// Guice does not wrap the errors thrown by a provider
+					bind(MyClass.class).toProvider(() -> {
+						throw new AssertionError("intentional");
+					}).in(Singleton.class);
+				}
+			});
+			fail();
+		} catch (CreationException e) {
+			assertEquals(AssertionError.class, e.getCause().getClass());
+			assertTrue(e.getMessage().contains("Error building " + Key.get(MyClass.class)));
+		}
+	}
+
+	@Test
+	public void testModulesSeeTheDevelopmentStage() {
+		Stage[] stage = new Stage[1];
+		ParallelEagerSingletons.createInjector(ForkJoinPool.commonPool(), binder -> stage[0] = binder.currentStage());
+		assertSame(Stage.DEVELOPMENT, stage[0]);
+	}
+
+}
@@ -0,0 +1,322 @@
+package com.examples.helloguice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.CreationException;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.Stage;
+import com.google.inject.name.Names;
+import com.google.inject.spi.Element;
+import com.google.inject.spi.ElementSource;
+import com.google.inject.spi.Elements;
+import com.google.inject.spi.Message;
+
+public class ParallelModuleConfigurationGuiceLearningTest {
+
+	static class MyClass {
+		@Inject
+		@Named("value42")
+		private String value;
+
+		public String getValue() {
+			return value;
+		}
+	}
+
+	/**
+	 * One of many independent modules, with a slow configure().
+	 */
+	static class MyModule extends AbstractModule {
+
+		private final int index;
+
+		public MyModule(int index) {
+			this.index = index;
+		}
+
+		@Override
+		protected void configure() {
+			try {
+				// e.g., reading some configuration
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			bind(String.class).annotatedWith(Names.named("value" + index)).toInstance("value " + index);
+		}
+
+	}
+
+	/**
+	 * Records the elements of each module concurrently, each one with its own
+	 * binder, and merges them in the order of the modules, so that the injector
+	 * is created with the same elements, in the same order, as with
+	 * {@link Guice#createInjector(Module...)}; errors, e.g., duplicate bindings,
+	 * are then reported in the same way, at the same lines.
+	 *
+	 * The module chain of each element is kept, but it starts with the module
+	 * that replays the recorded elements, e.g.,
+	 * <code>(via modules: com.google.inject.spi.Elements$ElementsAsModule -> MyModule)</code>,
+	 * which Guice omits when a chain has a single module; the messages of a
+	 * {@link CreationException} are thus rewritten with the original sources,
+	 * but the sources of the bindings of the injector still show it.
+	 *
+	 * The modules must be independent: since they are recorded separately, a
+	 * module installed by two of them would not be deduplicated, and its
+	 * elements would be recorded twice, so this fails fast instead; equal
+	 * modules of the list are deduplicated, like Guice does.
+	 */
+	static class ParallelElements {
+
+		private static final String REPLAYING_MODULE = Elements.getModule(Collections.<Element> emptyList())
+				.getClass().getName();
+
+		/**
+		 * @throws IllegalArgumentException if a module is installed by more than
+		 *         one of the modules
+		 */
+		public static List<Element> getElements(ExecutorService executor, Stage stage, List<Module> modules) {
+			List<Module> distinctModules = new ArrayList<>(new LinkedHashSet<>(modules));
+			List<CompletableFuture<List<Element>>> futures = new ArrayList<>();
+			for (Module module : distinctModules) {
+				futures.add(CompletableFuture.supplyAsync(() -> Elements.getElements(stage, module), executor));
+			}
+			List<Element> elements = new ArrayList<>();
+			Set<String> topLevelModules = new HashSet<>();
+			for (Module module : distinctModules) {
+				topLevelModules.add(module.getClass().getName());
+			}
+			Map<String, Module> installers = new HashMap<>();
+			try {
+				for (int i = 0; i < futures.size(); ++i) {
+					List<Element> moduleElements = futures.get(i).join();
+					checkInstalledOnce(distinctModules.get(i), moduleElements, topLevelModules, installers);
+					elements.addAll(moduleElements);
+				}
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			}
+			return elements;
+		}
+
+		/**
+		 * Records the modules installed by the module, i.e., the ones of the chains
+		 * of its elements except the last one, the module itself, and checks that
+		 * none of them is in the list of modules or installed by another module of
+		 * the list.
+		 */
+		private static void checkInstalledOnce(Module module, List<Element> elements, Set<String> topLevelModules,
+				Map<String, Module> installers) {
+			Set<String> installed = new HashSet<>();
+			for (Element element : elements) {
+				if (element.getSource() instanceof ElementSource) {
+					List<String> chain = ((ElementSource) element.getSource()).getModuleClassNames();
+					installed.addAll(chain.subList(0, chain.size() - 1));
+				}
+			}
+			for (String moduleClassName : installed) {
+				if (topLevelModules.contains(moduleClassName)) {
+					throw new IllegalArgumentException(moduleClassName + " is installed by "
+							+ module.getClass().getName() + " and also in the list of modules");
+				}
+				Module installer = installers.putIfAbsent(moduleClassName, module);
+				if (installer != null && installer != module) {
+					throw new IllegalArgumentException(moduleClassName + " is installed by both "
+							+ installer.getClass().getName() + " and " + module.getClass().getName()
+							+ ", install it once in the list of modules instead");
+				}
+			}
+		}
+
+		public static Injector createInjector(ExecutorService executor, Stage stage, List<Module> modules) {
+			List<Element> elements = getElements(executor, stage, modules);
+			try {
+				return Guice.createInjector(stage, Elements.getModule(elements));
+			} catch (CreationException e) {
+				throw withOriginalSources(e);
+			}
+		}
+
+		/**
+		 * @return the exception, with the sources of its messages replaced by the
+		 *         sources of the recorded elements, and the replaying module
+		 *         removed from the module chains in the text of the messages
+		 */
+		private static CreationException withOriginalSources(CreationException e) {
+			List<Message> messages = new ArrayList<>();
+			for (Message message : e.getErrorMessages()) {
+				List<Object> sources = new ArrayList<>();
+				for (Object source : message.getSources()) {
+					if (source instanceof ElementSource
+							&& ((ElementSource) source).getOriginalElementSource() != null
+							&& ((ElementSource) source).getModuleClassNames().equals(
+								Collections.singletonList(REPLAYING_MODULE))) {
+						source = ((ElementSource) source).getOriginalElementSource();
+					}
+					sources.add(source);
+				}
+				String text = message.getMessage()
+						// a single original module, whose chain Guice omits
+						.replaceAll(" \\(via modules: " + Pattern.quote(REPLAYING_MODULE) + " -> [^ )]+\\)", "")
+						.replace(REPLAYING_MODULE + " -> ", "");
+				messages.add(new Message(sources, text, message.getCause()));
+			}
+			CreationException result = new CreationException(messages);
+			result.setStackTrace(e.getStackTrace());
+			return result;
+		}
+
+	}
+
+	private ExecutorService executor = Executors.newFixedThreadPool(8);
+
+	@After
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private static List<Module> modules(int count) {
+		List<Module> modules = new ArrayList<>();
+		for (int i = 0; i < count; ++i) {
+			modules.add(new MyModule(i));
+		}
+		return modules;
+	}
+
+	@Test
+	public void testElementsAreMergedInModuleOrder() {
+		List<Module> modules = modules(100);
+		List<Element> sequential = Elements.getElements(modules);
+		List<Element> parallel = ParallelElements.getElements(executor, Stage.DEVELOPMENT, modules);
+		assertEquals(sequential.size(), parallel.size());
+		for (int i = 0; i < sequential.size(); ++i) {
+			assertEquals(sequential.get(i).getSource().toString(), parallel.get(i).getSource().toString());
+			assertEquals(sequential.get(i).toString(), parallel.get(i).toString());
+		}
+		Injector injector = ParallelElements.createInjector(executor, Stage.DEVELOPMENT, modules);
+		assertNotNull(injector.getInstance(MyClass.class).getValue());
+	}
+
+	@Test
+	public void testDuplicateBindingsAreReportedWithTheSameMessages() {
+		List<Module> modules = new ArrayList<>(modules(10));
+		// identical duplicate bindings are ignored by Guice, conflicting ones are not
+		modules.add(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(String.class).annotatedWith(Names.named("value3")).toInstance("another value");
+			}
+		});
+		String expected = null;
+		try {
+			Guice.createInjector(modules);
+		} catch (CreationException e) {
+			expected = e.getMessage();
+		}
+		String actual = null;
+		try {
+			ParallelElements.createInjector(executor, Stage.DEVELOPMENT, modules);
+		} catch (CreationException e) {
+			actual = e.getMessage();
+		}
+		assertNotNull(expected);
+		assertEquals(expected, actual);
+	}
+
+	static class MyInstalledModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(String.class).annotatedWith(Names.named("installed")).toInstance("installed");
+		}
+
+	}
+
+	static class MyInstallingModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			install(new MyInstalledModule());
+		}
+
+	}
+
+	static class MyOtherInstallingModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			install(new MyInstalledModule());
+		}
+
+	}
+
+	@Test
+	public void testModulesInstalledTwiceAreRejected() {
+		try {
+			ParallelElements.getElements(executor, Stage.DEVELOPMENT,
+				Arrays.asList(new MyInstallingModule(), new MyOtherInstallingModule()));
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith(MyInstalledModule.class.getName()
+					+ " is installed by both " + MyInstallingModule.class.getName() + " and "
+					+ MyOtherInstallingModule.class.getName()));
+		}
+	}
+
+	@Test
+	public void testEqualModulesAreDeduplicated() {
+		Module module = new MyModule(1);
+		List<Module> modules = Arrays.asList(module, new MyInstallingModule(), module);
+		assertEquals(Elements.getElements(modules).size(),
+			ParallelElements.getElements(executor, Stage.DEVELOPMENT, modules).size());
+	}
+
+	/**
+	 * Compares the sequential and parallel configuration of 200 modules.
+	 */
+	@Test
+	public void testParallelConfigurationBenchmark() {
+		List<Module> modules = modules(200);
+		long start = System.nanoTime();
+		Elements.getElements(modules);
+		long sequential = (System.nanoTime() - start) / 1000000;
+		start = System.nanoTime();
+		ParallelElements.getElements(executor, Stage.DEVELOPMENT, modules);
+		long parallel = (System.nanoTime() - start) / 1000000;
+		System.out.println(String.format("%d modules configured in %d ms sequentially, %d ms in parallel",
+			modules.size(), sequential, parallel));
+		assertEquals(Arrays.asList(200, 200), Arrays.asList(Elements.getElements(modules).size(),
+			ParallelElements.getElements(executor, Stage.DEVELOPMENT, modules).size()));
+	}
+
+}
@@ -0,0 +1,464 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.OutOfScopeException;
+import com.google.inject.Provider;
+import com.google.inject.ProvisionException;
+import com.google.inject.Scope;
+import com.google.inject.ScopeAnnotation;
+
+public class PooledScopeGuiceLearningTest {
+
+	/**
+	 * Annotation for heavyweight, non thread-safe types whose instances are
+	 * borrowed from a pool of at most {@link #max()} instances for the duration
+	 * of a unit of work; when a binding is scoped with in(Pooled.class) the
+	 * annotation is not available, and the size must be given explicitly with
+	 * {@link PooledScope#withMax(Key, int)}.
+	 */
+	@Target({ TYPE, METHOD })
+	@Retention(RUNTIME)
+	@ScopeAnnotation
+	static @interface Pooled {
+		int max() default 4;
+	}
+
+	@Pooled(max = 2)
+	private static class MyParser {
+		private static final AtomicInteger created = new AtomicInteger();
+
+		// not thread-safe state
+		private final StringBuilder buffer = new StringBuilder();
+
+		public MyParser() {
+			created.incrementAndGet();
+		}
+
+		public String parse(String s) {
+			buffer.setLength(0);
+			return buffer.append(s).reverse().toString();
+		}
+	}
+
+	/**
+	 * Fails to be created while {@link #failures} is positive.
+	 */
+	@Pooled(max = 1)
+	private static class MyFlakyParser {
+		private static final AtomicInteger failures = new AtomicInteger();
+
+		public MyFlakyParser() {
+			if (failures.getAndDecrement() > 0) {
+				throw new IllegalStateException("backend not available");
+			}
+		}
+	}
+
+	private static interface MyTokenizer {
+
+	}
+
+	private static class MyTokenizerImpl implements MyTokenizer {
+
+	}
+
+	private static class MyClass {
+		private MyParser parser;
+
+		@Inject
+		public MyClass(MyParser parser) {
+			this.parser = parser;
+		}
+
+		public MyParser getParser() {
+			return parser;
+		}
+	}
+
+	private static class PooledScope implements Scope {
+
+		/**
+		 * A lock-free bounded pool: idle instances are kept in a
+		 * {@link ConcurrentLinkedQueue} and the number of created instances is
+		 * bounded with a compare-and-set on an {@link AtomicInteger}.
+		 */
+		private static class Pool {
+			private final ConcurrentLinkedQueue<Object> idle = new ConcurrentLinkedQueue<>();
+			private final AtomicInteger created = new AtomicInteger();
+			private final AtomicLong waitNanos = new AtomicLong();
+			private final int max;
+			private final Provider<?> unscoped;
+
+			Pool(int max, Provider<?> unscoped) {
+				this.max = max;
+				this.unscoped = unscoped;
+			}
+
+			/**
+			 * @return null if no instance has been returned to the pool within the
+			 *         given time
+			 */
+			Object borrow(long maxWaitNanos) {
+				long start = 0;
+				while (true) {
+					Object o = idle.poll();
+					if (o != null) {
+						recordWait(start);
+						return o;
+					}
+					int current = created.get();
+					if (current < max && created.compareAndSet(current, current + 1)) {
+						recordWait(start);
+						try {
+							return unscoped.get();
+						} catch (RuntimeException | Error e) {
+							// the instance has not been created: give its slot back
+							created.decrementAndGet();
+							throw e;
+						}
+					}
+					if (start == 0) {
+						start = System.nanoTime();
+					} else if (System.nanoTime() - start > maxWaitNanos) {
+						recordWait(start);
+						return null;
+					}
+					LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+				}
+			}
+
+			void giveBack(Object o) {
+				idle.offer(o);
+			}
+
+			private void recordWait(long start) {
+				if (start != 0) {
+					waitNanos.addAndGet(System.nanoTime() - start);
+				}
+			}
+		}
+
+		/**
+		 * The instances borrowed in the current unit of work.
+		 */
+		private static class Borrowed extends HashMap<Key<?>, Object> {
+
+			private static final long serialVersionUID = -4309728123488216421L;
+
+		}
+
+		private final Map<Key<?>, Pool> pools = new ConcurrentHashMap<>();
+
+		private final Map<Key<?>, Integer> sizes = new HashMap<>();
+
+		private final long maxWaitNanos;
+
+		/**
+		 * @param maxWait how long to wait for an instance to be returned to a full
+		 *                pool, e.g., when nested units of work on the same thread
+		 *                borrow more instances than the pool can create
+		 */
+		public PooledScope(long maxWait, TimeUnit unit) {
+			this.maxWaitNanos = unit.toNanos(maxWait);
+		}
+
+		/**
+		 * Sets the size of the pool for a key, which is required when the key's
+		 * type is not annotated with {@link Pooled}.
+		 */
+		public PooledScope withMax(Key<?> key, int max) {
+			sizes.put(key, max);
+			return this;
+		}
+
+		private final ThreadLocal<ArrayDeque<Borrowed>> borrowedStack = new ThreadLocal<ArrayDeque<Borrowed>>() {
+			@Override
+			protected ArrayDeque<Borrowed> initialValue() {
+				return new ArrayDeque<>();
+			}
+		};
+
+		@Override
+		public <T> Provider<T> scope(final Key<T> key, final Provider<T> unscoped) {
+			Integer max = sizes.get(key);
+			if (max == null) {
+				Pooled pooled = key.getTypeLiteral().getRawType().getAnnotation(Pooled.class);
+				if (pooled == null) {
+					throw new IllegalArgumentException("The size of the pool of " + key + " must be given explicitly");
+				}
+				max = pooled.max();
+			}
+			Pool pool = new Pool(max, unscoped);
+			pools.put(key, pool);
+			return new Provider<T>() {
+				@Override
+				public T get() {
+					Borrowed borrowed = borrowedStack.get().peek();
+					if (borrowed == null) {
+						throw new OutOfScopeException("Cannot access " + key + " outside of a unit of work");
+					}
+					Object o = borrowed.get(key);
+					if (o == null) {
+						o = pool.borrow(maxWaitNanos);
+						if (o == null) {
+							throw new ProvisionException("Timed out waiting for an instance of " + key);
+						}
+						borrowed.put(key, o);
+					}
+					@SuppressWarnings("unchecked")
+					T toReturn = (T) o;
+					return toReturn;
+				}
+			};
+		}
+
+		/**
+		 * Starts a unit of work.
+		 */
+		public void enter() {
+			borrowedStack.get().push(new Borrowed());
+		}
+
+		/**
+		 * Ends the current unit of work, returning to their pools all the instances
+		 * borrowed in it.
+		 */
+		public void leave() {
+			Borrowed borrowed = borrowedStack.get().pop();
+			for (Map.Entry<Key<?>, Object> entry : borrowed.entrySet()) {
+				pools.get(entry.getKey()).giveBack(entry.getValue());
+			}
+		}
+
+		public int getCreated(Key<?> key) {
+			return pools.get(key).created.get();
+		}
+
+		public int getIdle(Key<?> key) {
+			return pools.get(key).idle.size();
+		}
+
+		/**
+		 * @return the total time, in nanoseconds, spent waiting for an instance to be
+		 *         returned to the pool
+		 */
+		public long getWaitNanos(Key<?> key) {
+			return pools.get(key).waitNanos.get();
+		}
+
+	}
+
+	static class MyModule extends AbstractModule {
+
+		private PooledScope scope;
+
+		public MyModule() {
+			this(new PooledScope(5, TimeUnit.SECONDS));
+		}
+
+		public MyModule(PooledScope scope) {
+			this.scope = scope;
+		}
+
+		@Override
+		protected void configure() {
+			bindScope(Pooled.class, scope);
+			bind(PooledScope.class).toInstance(scope);
+		}
+
+	}
+
+	private static final Key<MyParser> PARSER = Key.get(MyParser.class);
+
+	@Test
+	public void testSameInstanceWithinAUnitOfWork() {
+		Injector injector = Guice.createInjector(new MyModule());
+		PooledScope scope = injector.getInstance(PooledScope.class);
+		scope.enter();
+		try {
+			assertSame(injector.getInstance(MyParser.class), injector.getInstance(MyClass.class).getParser());
+		} finally {
+			scope.leave();
+		}
+	}
+
+	@Test
+	public void testInstanceIsReturnedToThePoolAtTheEndOfTheUnitOfWork() {
+		Injector injector = Guice.createInjector(new MyModule());
+		PooledScope scope = injector.getInstance(PooledScope.class);
+		scope.enter();
+		MyParser first = injector.getInstance(MyParser.class);
+		assertEquals(0, scope.getIdle(PARSER));
+		scope.leave();
+		assertEquals(1, scope.getIdle(PARSER));
+		scope.enter();
+		assertSame(first, injector.getInstance(MyParser.class));
+		scope.leave();
+		assertEquals(1, scope.getCreated(PARSER));
+	}
+
+	@Test
+	public void testNestedUnitsOfWorkBorrowDifferentInstances() {
+		Injector injector = Guice.createInjector(new MyModule());
+		PooledScope scope = injector.getInstance(PooledScope.class);
+		scope.enter();
+		MyParser outer = injector.getInstance(MyParser.class);
+		scope.enter();
+		assertNotSame(outer, injector.getInstance(MyParser.class));
+		scope.leave();
+		scope.leave();
+		assertEquals(2, scope.getIdle(PARSER));
+	}
+
+	@Test(expected = ProvisionException.class)
+	public void testCannotInjectOutsideAUnitOfWork() {
+		Injector injector = Guice.createInjector(new MyModule());
+		injector.getInstance(MyClass.class);
+	}
+
+	@Test
+	public void testNeverMoreThanMaxInstances() throws Exception {
+		Injector injector = Guice.createInjector(new MyModule());
+		PooledScope scope = injector.getInstance(PooledScope.class);
+		MyParser.created.set(0);
+		List<Thread> threads = new ArrayList<>();
+		List<Exception> exceptions = new ArrayList<>();
+		for (int i = 0; i < 100; ++i) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					scope.enter();
+					try {
+						MyParser parser = injector.getInstance(MyClass.class).getParser();
+						if (!"cba".equals(parser.parse("abc"))) {
+							exceptions.add(new IllegalStateException("parser shared among threads"));
+						}
+					} finally {
+						scope.leave();
+					}
+				};
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (!exceptions.isEmpty()) {
+			throw exceptions.get(0);
+		}
+		assertTrue(MyParser.created.get() <= 2);
+		assertEquals(MyParser.created.get(), scope.getIdle(PARSER));
+	}
+
+	@Test
+	public void testFailedProvisionsDoNotExhaustThePool() {
+		Injector injector = Guice.createInjector(new MyModule());
+		PooledScope scope = injector.getInstance(PooledScope.class);
+		MyFlakyParser.failures.set(3);
+		for (int i = 0; i < 3; ++i) {
+			scope.enter();
+			try {
+				injector.getInstance(MyFlakyParser.class);
+				fail();
+			} catch (ProvisionException e) {
+				assertEquals("backend not available", e.getCause().getMessage());
+			} finally {
+				scope.leave();
+			}
+		}
+		assertEquals(0, scope.getCreated(Key.get(MyFlakyParser.class)));
+		scope.enter();
+		try {
+			injector.getInstance(MyFlakyParser.class);
+		} finally {
+			scope.leave();
+		}
+		assertEquals(1, scope.getCreated(Key.get(MyFlakyParser.class)));
+	}
+
+	@Test
+	public void testNestedUnitsOfWorkBeyondTheMaxTimeOut() {
+		Injector injector = Guice.createInjector(new MyModule(new PooledScope(100, TimeUnit.MILLISECONDS)));
+		PooledScope scope = injector.getInstance(PooledScope.class);
+		scope.enter();
+		injector.getInstance(MyParser.class);
+		scope.enter();
+		injector.getInstance(MyParser.class);
+		scope.enter();
+		try {
+			injector.getInstance(MyParser.class);
+			fail();
+		} catch (ProvisionException e) {
+			assertTrue(e.getMessage().contains("Timed out waiting for an instance of " + PARSER));
+		} finally {
+			scope.leave();
+			scope.leave();
+			scope.leave();
+		}
+		assertEquals(2, scope.getIdle(PARSER));
+	}
+
+	@Test
+	public void testSizeOfLinkedBindingsIsExplicit() {
+		Key<MyTokenizer> tokenizer = Key.get(MyTokenizer.class);
+		AbstractModule tokenizerModule = new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(MyTokenizer.class).to(MyTokenizerImpl.class).in(Pooled.class);
+			}
+		};
+		try {
+			Guice.createInjector(new MyModule(), tokenizerModule);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Guice does not wrap the exceptions thrown by Scope.scope
+			assertEquals("The size of the pool of " + tokenizer + " must be given explicitly", e.getMessage());
+		}
+		Injector injector = Guice.createInjector(
+			new MyModule(new PooledScope(100, TimeUnit.MILLISECONDS).withMax(tokenizer, 1)), tokenizerModule);
+		PooledScope scope = injector.getInstance(PooledScope.class);
+		scope.enter();
+		injector.getInstance(MyTokenizer.class);
+		scope.enter();
+		try {
+			injector.getInstance(MyTokenizer.class);
+			fail();
+		} catch (ProvisionException e) {
+			assertEquals(1, scope.getCreated(tokenizer));
+		} finally {
+			scope.leave();
+			scope.leave();
+		}
+	}
+
+}
@@ -0,0 +1,427 @@
+package com.examples.helloguice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.CreationException;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Scopes;
+import com.google.inject.Singleton;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.spi.Elements;
+import com.google.inject.spi.InstanceBinding;
+import com.google.inject.spi.ProvisionListener;
+
+public class ProvisionMetricsGuiceLearningTest {
+
+	static class MyParam {
+
+	}
+
+	static interface MyInterface {
+
+	}
+
+	static class MyImplementation implements MyInterface {
+
+	}
+
+	@Singleton
+	static class MySingleton {
+
+	}
+
+	static class MyClass {
+		@Inject
+		public MyClass(MyInterface field, MyParam myParam, MySingleton mySingleton) {
+		}
+	}
+
+	/**
+	 * A histogram of latencies with 64 buckets, one for each power of 2 of
+	 * nanoseconds: its memory is fixed, and recording a value only increments
+	 * striped counters, without locking and without allocating.
+	 */
+	static class LogHistogram {
+		private static final int BUCKETS = 64;
+
+		private final LongAdder[] buckets = new LongAdder[BUCKETS];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+
+		LogHistogram() {
+			for (int i = 0; i < BUCKETS; ++i) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			buckets[BUCKETS - 1 - Long.numberOfLeadingZeros(Math.max(nanos, 1))].increment();
+			count.increment();
+			sum.add(nanos);
+		}
+
+		long getCount() {
+			return count.sum();
+		}
+
+		long getMean() {
+			long n = count.sum();
+			return n == 0 ? 0 : sum.sum() / n;
+		}
+
+		/**
+		 * @return the upper bound of the bucket containing the given percentile
+		 */
+		long getPercentile(double percentile) {
+			long[] snapshot = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				snapshot[i] = buckets[i].sum();
+				total += snapshot[i];
+			}
+			long threshold = (long) Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				seen += snapshot[i];
+				if (seen >= threshold && snapshot[i] > 0) {
+					return i == BUCKETS - 1 ? Long.MAX_VALUE : (2L << i) - 1;
+				}
+			}
+			return 0;
+		}
+	}
+
+	public static interface KeyMetricsMBean {
+		long getCount();
+
+		long getMeanNanos();
+
+		long getP50Nanos();
+
+		long getP99Nanos();
+	}
+
+	public static interface InjectorMetricsMBean {
+		long getSingletonsCreated();
+
+		long getChildInjectors();
+
+		int getJitBindings();
+	}
+
+	static class KeyMetrics implements KeyMetricsMBean {
+		private final LogHistogram histogram = new LogHistogram();
+
+		@Override
+		public long getCount() {
+			return histogram.getCount();
+		}
+
+		@Override
+		public long getMeanNanos() {
+			return histogram.getMean();
+		}
+
+		@Override
+		public long getP50Nanos() {
+			return histogram.getPercentile(50);
+		}
+
+		@Override
+		public long getP99Nanos() {
+			return histogram.getPercentile(99);
+		}
+	}
+
+	/**
+	 * Counts provisions and records their latency per {@link Key}, publishing
+	 * them, together with a few injector metrics, as MBeans on the platform
+	 * MBean server.
+	 *
+	 * The MBeans are registered by {@link #register()}, to be called once the
+	 * injector has been created, so that configuring the module more than once,
+	 * or failing to create the injector, has no side effect on the MBean server;
+	 * the metrics of keys first provisioned later are registered at that time.
+	 * {@link #close()} unregisters them.
+	 *
+	 * Once the metrics of a key have been created, at its first provision,
+	 * recording does not allocate.
+	 */
+	static class ProvisionMetrics implements InjectorMetricsMBean, AutoCloseable {
+
+		private static final String DOMAIN = "com.examples.helloguice";
+
+		private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		private final String injectorName;
+
+		private final ConcurrentMap<Key<?>, KeyMetrics> metrics = new ConcurrentHashMap<>();
+
+		private final List<ObjectName> registered = new ArrayList<>();
+
+		private final LongAdder singletonsCreated = new LongAdder();
+
+		private final LongAdder childInjectors = new LongAdder();
+
+		@Inject
+		private Injector injector;
+
+		private boolean registering;
+
+		public ProvisionMetrics(String injectorName) {
+			this.injectorName = injectorName;
+		}
+
+		<T> void onProvision(ProvisionListener.ProvisionInvocation<T> provision) {
+			long start = System.nanoTime();
+			provision.provision();
+			long elapsed = System.nanoTime() - start;
+			Binding<T> binding = provision.getBinding();
+			KeyMetrics keyMetrics = metrics.get(binding.getKey());
+			if (keyMetrics == null) {
+				keyMetrics = newKeyMetrics(binding.getKey());
+			}
+			keyMetrics.histogram.record(elapsed);
+			if (Scopes.isSingleton(binding) && !(binding instanceof InstanceBinding)) {
+				singletonsCreated.increment();
+			}
+		}
+
+		private synchronized KeyMetrics newKeyMetrics(Key<?> key) {
+			KeyMetrics keyMetrics = metrics.get(key);
+			if (keyMetrics == null) {
+				keyMetrics = new KeyMetrics();
+				metrics.put(key, keyMetrics);
+				if (registering) {
+					register(key, keyMetrics);
+				}
+			}
+			return keyMetrics;
+		}
+
+		private ObjectName objectName(String properties) {
+			try {
+				return new ObjectName(DOMAIN + ":injector=" + ObjectName.quote(injectorName) + "," + properties);
+			} catch (JMException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		/**
+		 * Registers the MBeans of the injector and of the keys provisioned so far.
+		 */
+		public synchronized void register() {
+			if (registering) {
+				throw new IllegalStateException("Already registered");
+			}
+			registering = true;
+			register(objectName("type=Injector"), this, InjectorMetricsMBean.class);
+			metrics.forEach(this::register);
+		}
+
+		private void register(Key<?> key, KeyMetrics keyMetrics) {
+			register(objectName("type=Provisions,key=" + ObjectName.quote(key.toString())), keyMetrics,
+				KeyMetricsMBean.class);
+		}
+
+		private synchronized <T> void register(ObjectName name, T mbean, Class<T> mbeanInterface) {
+			try {
+				server.registerMBean(new StandardMBean(mbean, mbeanInterface), name);
+				registered.add(name);
+			} catch (JMException e) {
+				throw new IllegalStateException("Cannot register " + name, e);
+			}
+		}
+
+		@Override
+		public synchronized void close() {
+			registering = false;
+			for (ObjectName name : registered) {
+				try {
+					server.unregisterMBean(name);
+				} catch (JMException e) {
+					// already unregistered
+				}
+			}
+			registered.clear();
+		}
+
+		public Injector createChildInjector(Module... modules) {
+			Injector child = injector.createChildInjector(modules);
+			childInjectors.increment();
+			return child;
+		}
+
+		@Override
+		public long getSingletonsCreated() {
+			return singletonsCreated.sum();
+		}
+
+		@Override
+		public long getChildInjectors() {
+			return childInjectors.sum();
+		}
+
+		@Override
+		public int getJitBindings() {
+			return injector.getAllBindings().size() - injector.getBindings().size();
+		}
+
+	}
+
+	static class ProvisionMetricsModule extends AbstractModule {
+
+		private final String injectorName;
+
+		public ProvisionMetricsModule(String injectorName) {
+			this.injectorName = injectorName;
+		}
+
+		@Override
+		protected void configure() {
+			ProvisionMetrics metrics = new ProvisionMetrics(injectorName);
+			requestInjection(metrics);
+			bind(ProvisionMetrics.class).toInstance(metrics);
+			bindListener(Matchers.any(), new ProvisionListener() {
+				@Override
+				public <T> void onProvision(ProvisionInvocation<T> provision) {
+					metrics.onProvision(provision);
+				}
+			});
+		}
+
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyInterface.class).to(MyImplementation.class);
+			install(new ProvisionMetricsModule("test"));
+		}
+
+	}
+
+	private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+	private Injector injector;
+
+	@After
+	public void unregister() {
+		if (injector != null) {
+			injector.getInstance(ProvisionMetrics.class).close();
+		}
+	}
+
+	private Injector createInjector(Module... modules) {
+		injector = Guice.createInjector(modules);
+		injector.getInstance(ProvisionMetrics.class).register();
+		return injector;
+	}
+
+	private Set<ObjectName> registeredNames() throws JMException {
+		return server.queryNames(new ObjectName("com.examples.helloguice:injector=\"test\",*"), null);
+	}
+
+	private Object attribute(String properties, String attribute) throws JMException {
+		return server.getAttribute(new ObjectName("com.examples.helloguice:injector=\"test\"," + properties),
+			attribute);
+	}
+
+	@Test
+	public void testProvisionsPerKeyAreExposedOverJmx() throws JMException {
+		createInjector(new MyModule());
+		for (int i = 0; i < 10; ++i) {
+			injector.getInstance(MyClass.class);
+		}
+		String myParamKey = ObjectName.quote(Key.get(MyParam.class).toString());
+		assertEquals(10L, attribute("type=Provisions,key=" + myParamKey, "Count"));
+		String myClassKey = ObjectName.quote(Key.get(MyClass.class).toString());
+		assertEquals(10L, attribute("type=Provisions,key=" + myClassKey, "Count"));
+		long p50 = (Long) attribute("type=Provisions,key=" + myClassKey, "P50Nanos");
+		long p99 = (Long) attribute("type=Provisions,key=" + myClassKey, "P99Nanos");
+		assertTrue(p50 > 0);
+		assertTrue(p99 >= p50);
+		// MySingleton is provisioned only once
+		String mySingletonKey = ObjectName.quote(Key.get(MySingleton.class).toString());
+		assertEquals(1L, attribute("type=Provisions,key=" + mySingletonKey, "Count"));
+	}
+
+	@Test
+	public void testInjectorMetrics() throws JMException {
+		createInjector(new MyModule());
+		injector.getInstance(MyClass.class);
+		ProvisionMetrics metrics = injector.getInstance(ProvisionMetrics.class);
+		metrics.createChildInjector();
+		metrics.createChildInjector();
+		assertEquals(1L, attribute("type=Injector", "SingletonsCreated"));
+		assertEquals(2L, attribute("type=Injector", "ChildInjectors"));
+		// MyClass, MyImplementation, MyParam and MySingleton
+		assertEquals(4, attribute("type=Injector", "JitBindings"));
+	}
+
+	@Test
+	public void testNoRegistrationUntilTheInjectorIsCreated() throws JMException {
+		// configuring the module more than once has no side effect
+		Elements.getElements(new MyModule());
+		Elements.getElements(new MyModule());
+		assertEquals(0, registeredNames().size());
+		try {
+			// a conflicting binding
+			Guice.createInjector(new MyModule(),
+				binder -> binder.bind(MyInterface.class).toInstance(new MyImplementation()));
+			fail();
+		} catch (CreationException e) {
+			assertEquals(0, registeredNames().size());
+		}
+		createInjector(new MyModule());
+		ObjectName mySingleton = new ObjectName("com.examples.helloguice:injector=\"test\",type=Provisions,key="
+				+ ObjectName.quote(Key.get(MySingleton.class).toString()));
+		assertTrue(registeredNames().contains(new ObjectName("com.examples.helloguice:injector=\"test\",type=Injector")));
+		assertFalse(registeredNames().contains(mySingleton));
+		// keys first provisioned after the registration are registered as well
+		injector.getInstance(MySingleton.class);
+		assertTrue(registeredNames().contains(mySingleton));
+		injector.getInstance(ProvisionMetrics.class).close();
+		assertEquals(0, registeredNames().size());
+	}
+
+	@Test
+	public void testHistogramPercentiles() {
+		LogHistogram histogram = new LogHistogram();
+		for (int i = 0; i < 99; ++i) {
+			histogram.record(100);
+		}
+		histogram.record(1000000);
+		assertEquals(127, histogram.getPercentile(50));
+		assertEquals(127, histogram.getPercentile(99));
+		assertEquals((1 << 20) - 1, histogram.getPercentile(100));
+		assertEquals((99 * 100 + 1000000) / 100, histogram.getMean());
+	}
+
+}
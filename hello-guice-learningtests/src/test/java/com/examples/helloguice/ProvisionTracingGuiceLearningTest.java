@@ -0,0 +1,576 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.Provides;
+import com.google.inject.Scope;
+import com.google.inject.ScopeAnnotation;
+import com.google.inject.Singleton;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+import com.google.inject.spi.ProvisionListener;
+
+public class ProvisionTracingGuiceLearningTest {
+
+	@Target({ TYPE, METHOD })
+	@Retention(RUNTIME)
+	@ScopeAnnotation
+	static @interface FactoryParameterScoped {
+
+	}
+
+	@FactoryParameterScoped
+	static class MyParam {
+		public int i = 0;
+
+		public MyParam() {
+
+		}
+
+		public MyParam(int i) {
+			this.i = i;
+		}
+	}
+
+	static class FactoryScope implements Scope {
+
+		private final ThreadLocal<ArrayDeque<Map<Key<?>, Object>>> parametersStack = new ThreadLocal<ArrayDeque<Map<Key<?>, Object>>>() {
+			@Override
+			protected ArrayDeque<Map<Key<?>, Object>> initialValue() {
+				return new ArrayDeque<>();
+			}
+		};
+
+		@Override
+		public <T> Provider<T> scope(final Key<T> key, final Provider<T> unscoped) {
+			return new Provider<T>() {
+				@Override
+				public T get() {
+					@SuppressWarnings("unchecked")
+					T toReturn = (T) parametersStack.get().peek().get(key);
+					return toReturn;
+				}
+			};
+		}
+
+		public void enter() {
+			parametersStack.get().push(new HashMap<>());
+		}
+
+		public void leave() {
+			parametersStack.get().pop();
+		}
+
+		public void addParameter(Object o) {
+			parametersStack.get().peek().put(Key.get(o.getClass()), o);
+		}
+
+	}
+
+	static class GenericFactory {
+		@Inject
+		private Injector injector;
+
+		@Inject
+		private FactoryScope scope;
+
+		public <T> T create(Class<T> type, Object... parameters) {
+			try {
+				scope.enter();
+				for (Object parameter : parameters) {
+					scope.addParameter(parameter);
+				}
+				return injector.getInstance(type);
+			} finally {
+				scope.leave();
+			}
+		}
+	}
+
+	@Singleton
+	static class MySingleton {
+		public MySingleton() throws InterruptedException {
+			// simulate an expensive singleton
+			Thread.sleep(5);
+		}
+	}
+
+	static interface MyInterface {
+
+	}
+
+	static class MyImplementation implements MyInterface {
+
+	}
+
+	static class MyClass {
+		@Inject
+		private MySingleton mySingleton;
+
+		@Inject
+		public MyClass(MyInterface field, MyParam myParam) {
+		}
+	}
+
+	static class MyNestedClass extends MyClass {
+		@Inject
+		public MyNestedClass(MyInterface field, MyParam myParam, GenericFactory factory) {
+			super(field, myParam);
+			factory.create(MyClass.class, new MyParam(2));
+		}
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			FactoryScope scope = new FactoryScope();
+			bindScope(FactoryParameterScoped.class, scope);
+			bind(FactoryScope.class).toInstance(scope);
+			bind(MyInterface.class).to(MyImplementation.class);
+		}
+
+	}
+
+	/**
+	 * Records, for a fraction of the top-level provisions, the tree of the
+	 * provisions it starts, one tree for each top-level provision, with the
+	 * total time of each node and its self time (its total time minus the total
+	 * time of its children).
+	 *
+	 * Nodes are identified by the {@link Key} of the binding, so that different
+	 * keys of the same type, or types with the same simple name, are not merged.
+	 * A tree can be printed in the folded stacks format of flame graph tools,
+	 * one line per path with its self time.
+	 *
+	 * Only the most recent trees are kept, so that sampling can run for the
+	 * whole life of an application; older trees are dropped, and counted.
+	 */
+	static class ProvisionTracer implements ProvisionListener {
+
+		static class Node {
+			private final Key<?> key;
+			private final List<Node> children = new ArrayList<>();
+			private long totalNanos;
+
+			Node(Key<?> key) {
+				this.key = key;
+			}
+
+			public Key<?> getKey() {
+				return key;
+			}
+
+			public List<Node> getChildren() {
+				return children;
+			}
+
+			public long getTotalNanos() {
+				return totalNanos;
+			}
+
+			public long getSelfNanos() {
+				long self = totalNanos;
+				for (Node child : children) {
+					self -= child.totalNanos;
+				}
+				return self;
+			}
+
+			/**
+			 * @return the folded stacks of this tree, in the order of provision,
+			 *         with the self time of each path
+			 */
+			public List<String> getFoldedStacks() {
+				List<String> lines = new ArrayList<>();
+				fold("", lines);
+				return lines;
+			}
+
+			private void fold(String prefix, List<String> lines) {
+				String path = prefix + nameOf(key);
+				lines.add(path + " " + getSelfNanos());
+				for (Node child : children) {
+					child.fold(path + ";", lines);
+				}
+			}
+
+			@Override
+			public String toString() {
+				StringBuilder builder = new StringBuilder();
+				print("", builder);
+				return builder.toString();
+			}
+
+			private void print(String indent, StringBuilder builder) {
+				builder.append(String.format("%s%s self %d ns, total %d ns%n", indent, nameOf(key),
+					getSelfNanos(), totalNanos));
+				for (Node child : children) {
+					child.print(indent + "  ", builder);
+				}
+			}
+		}
+
+		private static class Trace {
+			private final ArrayDeque<Node> stack = new ArrayDeque<>();
+			private int depth;
+			private boolean sampled;
+		}
+
+		private final double samplingRate;
+
+		private final Random random;
+
+		private final ThreadLocal<Trace> trace = new ThreadLocal<Trace>() {
+			@Override
+			protected Trace initialValue() {
+				return new Trace();
+			}
+		};
+
+		static final int DEFAULT_MAX_TRACES = 1000;
+
+		private final int maxTraces;
+
+		// guarded by itself
+		private final ArrayDeque<Node> trees = new ArrayDeque<>();
+
+		// guarded by trees
+		private long droppedTraces;
+
+		/**
+		 * @param samplingRate
+		 *            the fraction, between 0 and 1, of top-level provisions to trace
+		 */
+		public ProvisionTracer(double samplingRate) {
+			this(samplingRate, null);
+		}
+
+		/**
+		 * @param samplingRate
+		 *            the fraction, between 0 and 1, of top-level provisions to trace
+		 * @param random
+		 *            the source of the sampling decisions, e.g., with a seed to
+		 *            make them reproducible; if null, a {@link ThreadLocalRandom}
+		 *            is used
+		 */
+		public ProvisionTracer(double samplingRate, Random random) {
+			this(samplingRate, random, DEFAULT_MAX_TRACES);
+		}
+
+		/**
+		 * @param maxTraces
+		 *            the number of most recent trees that are kept
+		 */
+		public ProvisionTracer(double samplingRate, Random random, int maxTraces) {
+			if (maxTraces <= 0) {
+				throw new IllegalArgumentException("maxTraces must be positive: " + maxTraces);
+			}
+			this.samplingRate = samplingRate;
+			this.random = random;
+			this.maxTraces = maxTraces;
+		}
+
+		/**
+		 * @return the name of the key in the traces: its type, with its
+		 *         annotation, if any
+		 */
+		static String nameOf(Key<?> key) {
+			String type = key.getTypeLiteral().toString();
+			if (key.getAnnotation() != null) {
+				return type + " " + key.getAnnotation();
+			}
+			if (key.getAnnotationType() != null) {
+				return type + " @" + key.getAnnotationType().getName();
+			}
+			return type;
+		}
+
+		@Override
+		public <T> void onProvision(ProvisionInvocation<T> provision) {
+			Trace current = trace.get();
+			if (current.depth == 0) {
+				current.sampled = samplingRate >= 1
+						|| (random != null ? random : ThreadLocalRandom.current()).nextDouble() < samplingRate;
+			}
+			current.depth++;
+			try {
+				if (current.sampled) {
+					trace(current, provision);
+				} else {
+					provision.provision();
+				}
+			} finally {
+				current.depth--;
+			}
+		}
+
+		private <T> void trace(Trace current, ProvisionInvocation<T> provision) {
+			Node parent = current.stack.peek();
+			Node node = new Node(provision.getBinding().getKey());
+			current.stack.push(node);
+			long start = System.nanoTime();
+			try {
+				provision.provision();
+			} finally {
+				node.totalNanos = System.nanoTime() - start;
+				current.stack.pop();
+				if (parent != null) {
+					parent.children.add(node);
+				} else {
+					add(node);
+				}
+			}
+		}
+
+		private void add(Node tree) {
+			synchronized (trees) {
+				if (trees.size() == maxTraces) {
+					trees.removeFirst();
+					++droppedTraces;
+				}
+				trees.addLast(tree);
+			}
+		}
+
+		/**
+		 * @return the most recent trees of the traced top-level provisions, in
+		 *         the order they completed
+		 */
+		public List<Node> getTraces() {
+			synchronized (trees) {
+				return new ArrayList<>(trees);
+			}
+		}
+
+		/**
+		 * @return the kept trees, which are removed from the tracer
+		 */
+		public List<Node> drainTraces() {
+			synchronized (trees) {
+				List<Node> drained = new ArrayList<>(trees);
+				trees.clear();
+				return drained;
+			}
+		}
+
+		/**
+		 * @return the number of trees dropped to keep the most recent ones
+		 */
+		public long getDroppedTraces() {
+			synchronized (trees) {
+				return droppedTraces;
+			}
+		}
+
+		public void reset() {
+			synchronized (trees) {
+				trees.clear();
+				droppedTraces = 0;
+			}
+		}
+
+	}
+
+	static class MyTracingModule extends MyModule {
+
+		private ProvisionTracer tracer;
+
+		public MyTracingModule(ProvisionTracer tracer) {
+			this.tracer = tracer;
+		}
+
+		@Override
+		protected void configure() {
+			super.configure();
+			bindListener(Matchers.any(), tracer);
+		}
+
+	}
+
+	static class MyClassWithNamedDependencies {
+		@Inject
+		public MyClassWithNamedDependencies(@Named("first") MyInterface first,
+				@Named("second") MyInterface second) {
+		}
+	}
+
+	private static String name(Class<?> type) {
+		return ProvisionTracer.nameOf(Key.get(type));
+	}
+
+	private static Map<String, Long> folded(ProvisionTracer.Node tree) {
+		Map<String, Long> folded = new LinkedHashMap<>();
+		for (String line : tree.getFoldedStacks()) {
+			int space = line.lastIndexOf(' ');
+			folded.put(line.substring(0, space), Long.parseLong(line.substring(space + 1)));
+		}
+		return folded;
+	}
+
+	@Test
+	public void testProvisioningTreeAsFoldedStacks() {
+		ProvisionTracer tracer = new ProvisionTracer(1);
+		Injector injector = Guice.createInjector(new MyTracingModule(tracer));
+		GenericFactory factory = injector.getInstance(GenericFactory.class);
+		tracer.reset();
+		factory.create(MyNestedClass.class, new MyParam(1));
+		assertEquals(1, tracer.getTraces().size());
+		ProvisionTracer.Node tree = tracer.getTraces().get(0);
+		assertEquals(Key.get(MyNestedClass.class), tree.getKey());
+		Map<String, Long> folded = folded(tree);
+		String root = name(MyNestedClass.class);
+		assertTrue(folded.containsKey(root + ";" + name(MyImplementation.class)));
+		assertTrue(folded.containsKey(root + ";" + name(GenericFactory.class)));
+		// MyClass is built by the factory while building MyNestedClass
+		String nested = root + ";" + name(MyClass.class);
+		assertTrue(folded.containsKey(nested + ";" + name(MyImplementation.class)));
+		// the singleton is built once, for the nested MyClass, which is
+		// constructed before the fields of MyNestedClass are injected
+		assertTrue(folded.get(nested + ";" + name(MySingleton.class)) >= 5000000);
+		assertFalse(folded.containsKey(root + ";" + name(MySingleton.class)));
+		// the total time includes the time of the children
+		assertTrue(tree.getTotalNanos() >= 5000000);
+		assertTrue(tree.getSelfNanos() < tree.getTotalNanos());
+		assertTrue(tree.toString().startsWith(root + " self "));
+	}
+
+	@Test
+	public void testOneTreeForEachTopLevelProvision() {
+		ProvisionTracer tracer = new ProvisionTracer(1);
+		Injector injector = Guice.createInjector(new MyTracingModule(tracer));
+		GenericFactory factory = injector.getInstance(GenericFactory.class);
+		tracer.reset();
+		factory.create(MyNestedClass.class, new MyParam(1));
+		factory.create(MyNestedClass.class, new MyParam(1));
+		List<ProvisionTracer.Node> traces = tracer.getTraces();
+		assertEquals(2, traces.size());
+		String singleton = name(MyNestedClass.class) + ";" + name(MyClass.class) + ";"
+				+ name(MySingleton.class);
+		// only the first request built the singleton
+		assertTrue(folded(traces.get(0)).get(singleton) >= 5000000);
+		assertFalse(folded(traces.get(1)).containsKey(singleton));
+	}
+
+	@Test
+	public void testOnlyTheMostRecentTreesAreKept() {
+		ProvisionTracer tracer = new ProvisionTracer(1, null, 3);
+		Injector injector = Guice.createInjector(new MyTracingModule(tracer));
+		GenericFactory factory = injector.getInstance(GenericFactory.class);
+		tracer.reset();
+		for (int i = 0; i < 5; ++i) {
+			factory.create(MyNestedClass.class, new MyParam(i));
+		}
+		assertEquals(3, tracer.getTraces().size());
+		assertEquals(2, tracer.getDroppedTraces());
+		// the first request, which built the singleton, has been dropped
+		String singleton = name(MyNestedClass.class) + ";" + name(MyClass.class) + ";"
+				+ name(MySingleton.class);
+		assertFalse(folded(tracer.getTraces().get(0)).containsKey(singleton));
+		assertEquals(3, tracer.drainTraces().size());
+		assertEquals(0, tracer.getTraces().size());
+	}
+
+	@Test
+	public void testKeysOfTheSameTypeAreNotMerged() {
+		ProvisionTracer tracer = new ProvisionTracer(1);
+		Injector injector = Guice.createInjector(new MyTracingModule(tracer), new AbstractModule() {
+			@Provides
+			@Named("first")
+			MyInterface first() {
+				return new MyImplementation();
+			}
+
+			@Provides
+			@Named("second")
+			MyInterface second() {
+				return new MyImplementation();
+			}
+		});
+		// the instance of FactoryScope is provisioned when the injector is created
+		tracer.reset();
+		injector.getInstance(MyClassWithNamedDependencies.class);
+		assertEquals(1, tracer.getTraces().size());
+		ProvisionTracer.Node tree = tracer.getTraces().get(0);
+		Set<Key<?>> keys = new HashSet<>();
+		for (ProvisionTracer.Node child : tree.getChildren()) {
+			keys.add(child.getKey());
+		}
+		assertEquals(2, keys.size());
+		assertTrue(keys.contains(Key.get(MyInterface.class, Names.named("first"))));
+		assertTrue(keys.contains(Key.get(MyInterface.class, Names.named("second"))));
+		// the root and one path for each key
+		assertEquals(3, folded(tree).size());
+	}
+
+	@Test
+	public void testSampling() {
+		ProvisionTracer tracer = new ProvisionTracer(0);
+		Injector injector = Guice.createInjector(new MyTracingModule(tracer));
+		GenericFactory factory = injector.getInstance(GenericFactory.class);
+		for (int i = 0; i < 100; ++i) {
+			factory.create(MyNestedClass.class, new MyParam(1));
+		}
+		assertEquals(0, tracer.getTraces().size());
+	}
+
+	@Test
+	public void testSamplingWithARateBetweenZeroAndOne() {
+		// a seeded random, which records the decisions of the tracer
+		List<Double> draws = new ArrayList<>();
+		Random random = new Random(42) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public double nextDouble() {
+				double draw = super.nextDouble();
+				draws.add(draw);
+				return draw;
+			}
+		};
+		ProvisionTracer tracer = new ProvisionTracer(0.3, random);
+		Injector injector = Guice.createInjector(new MyTracingModule(tracer));
+		GenericFactory factory = injector.getInstance(GenericFactory.class);
+		tracer.reset();
+		draws.clear();
+		for (int i = 0; i < 100; ++i) {
+			factory.create(MyNestedClass.class, new MyParam(1));
+		}
+		// one decision for each top-level provision, not for nested ones
+		assertEquals(100, draws.size());
+		long sampled = draws.stream().filter(d -> d < 0.3).count();
+		assertEquals(sampled, tracer.getTraces().size());
+		assertTrue(sampled > 0 && sampled < 100);
+		for (ProvisionTracer.Node tree : tracer.getTraces()) {
+			assertEquals(Key.get(MyNestedClass.class), tree.getKey());
+		}
+	}
+
+}
@@ -0,0 +1,409 @@
+package com.examples.helloguice;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.matcher.Matchers;
+
+public class TimedInterceptorGuiceLearningTest {
+
+	/**
+	 * The latency of the annotated method is recorded by {@link TimedModule}.
+	 *
+	 * Guice intercepts only methods of instances it creates, and the methods must
+	 * not be private, static or final.
+	 */
+	@Target(METHOD)
+	@Retention(RUNTIME)
+	static @interface Timed {
+
+	}
+
+	static interface MyInterface {
+		int compute(int value);
+	}
+
+	static class MyImplementation implements MyInterface {
+		@Timed
+		@Override
+		public int compute(int value) {
+			return value * 2;
+		}
+	}
+
+	static class MyClass {
+		@Inject
+		private MyInterface field;
+
+		@Timed
+		public MyInterface getField() {
+			return field;
+		}
+
+		public int notTimed() {
+			return 0;
+		}
+	}
+
+	/**
+	 * A histogram of latencies in nanoseconds, with 4 buckets for each power of
+	 * 2, so that the reported percentiles are within 25% of the actual values.
+	 *
+	 * Its memory is fixed, and recording a value only increments an element of
+	 * an {@link AtomicLongArray}, without locking and without allocating (unlike
+	 * a LongAdder, which allocates its cells under contention).
+	 */
+	static class LatencyHistogram {
+		private static final int SUB_BUCKETS = 4;
+
+		private static final int BUCKETS = 62 * SUB_BUCKETS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		static int indexOf(long nanos) {
+			if (nanos < SUB_BUCKETS) {
+				return (int) Math.max(nanos, 0);
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			int subBucket = (int) (nanos >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+			return (exponent - 1) * SUB_BUCKETS + subBucket;
+		}
+
+		static long upperBoundOf(int index) {
+			if (index < SUB_BUCKETS) {
+				return index;
+			}
+			int exponent = index / SUB_BUCKETS + 1;
+			long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - 2);
+			return lowerBound + (1L << (exponent - 2)) - 1;
+		}
+
+		void record(long nanos) {
+			buckets.incrementAndGet(indexOf(nanos));
+		}
+
+		long getCount() {
+			long count = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				count += buckets.get(i);
+			}
+			return count;
+		}
+
+		/**
+		 * @return the upper bound of the bucket containing the given percentile
+		 */
+		long getPercentile(double percentile) {
+			long[] snapshot = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				snapshot[i] = buckets.get(i);
+				total += snapshot[i];
+			}
+			long threshold = (long) Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				seen += snapshot[i];
+				if (seen >= threshold && snapshot[i] > 0) {
+					return upperBoundOf(i);
+				}
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Records the latency of one method annotated with {@link Timed} in its
+	 * histogram, which the interceptor holds, so that a call does not look it
+	 * up.
+	 */
+	static class TimedInterceptor implements MethodInterceptor {
+
+		private final LatencyHistogram histogram;
+
+		public TimedInterceptor(LatencyHistogram histogram) {
+			this.histogram = histogram;
+		}
+
+		@Override
+		public Object invoke(MethodInvocation invocation) throws Throwable {
+			long start = System.nanoTime();
+			try {
+				return invocation.proceed();
+			} finally {
+				histogram.record(System.nanoTime() - start);
+			}
+		}
+
+	}
+
+	/**
+	 * The histograms of the methods annotated with {@link Timed}, created when
+	 * the module is configured.
+	 */
+	static class TimedHistograms {
+
+		private final Map<Method, LatencyHistogram> histograms;
+
+		public TimedHistograms(Map<Method, LatencyHistogram> histograms) {
+			this.histograms = Collections.unmodifiableMap(new LinkedHashMap<>(histograms));
+		}
+
+		public LatencyHistogram getHistogram(Method method) {
+			return histograms.get(method);
+		}
+
+		/**
+		 * @return one line for each timed method, with its count and its 50th, 90th
+		 *         and 99th percentiles
+		 */
+		public String report() {
+			StringBuilder report = new StringBuilder();
+			for (Map.Entry<Method, LatencyHistogram> entry : histograms.entrySet()) {
+				Method method = entry.getKey();
+				LatencyHistogram histogram = entry.getValue();
+				report.append(String.format("%s.%s count=%d p50=%dns p90=%dns p99=%dns%n",
+					method.getDeclaringClass().getSimpleName(), method.getName(), histogram.getCount(),
+					histogram.getPercentile(50), histogram.getPercentile(90), histogram.getPercentile(99)));
+			}
+			return report.toString();
+		}
+
+	}
+
+	/**
+	 * Intercepts the methods annotated with {@link Timed} of the given classes
+	 * (and of their superclasses), each one with its own
+	 * {@link TimedInterceptor}; since the interceptor of a method is chosen when
+	 * the module is configured, the classes must be known then. The histograms
+	 * are also bound, so that they can be injected and exported.
+	 */
+	static class TimedModule extends AbstractModule {
+
+		private final List<Class<?>> classes;
+
+		public TimedModule(Class<?>... classes) {
+			this.classes = Arrays.asList(classes);
+		}
+
+		@Override
+		protected void configure() {
+			Map<Method, LatencyHistogram> histograms = new LinkedHashMap<>();
+			for (Class<?> type : classes) {
+				for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+					for (Method method : c.getDeclaredMethods()) {
+						if (method.isAnnotationPresent(Timed.class) && !histograms.containsKey(method)) {
+							LatencyHistogram histogram = new LatencyHistogram();
+							histograms.put(method, histogram);
+							// Method.equals compares the declaring class, so an overriding
+							// method is not matched
+							bindInterceptor(Matchers.any(), Matchers.only(method), new TimedInterceptor(histogram));
+						}
+					}
+				}
+			}
+			bind(TimedHistograms.class).toInstance(new TimedHistograms(histograms));
+		}
+
+	}
+
+	static class MyModule extends AbstractModule {
+
+		@Override
+		protected void configure() {
+			bind(MyInterface.class).to(MyImplementation.class);
+		}
+
+	}
+
+	@Test
+	public void testBucketBounds() {
+		for (long nanos : new long[] { 0, 1, 3, 4, 5, 7, 8, 9, 100, 1000, 123456789, Long.MAX_VALUE }) {
+			int index = LatencyHistogram.indexOf(nanos);
+			assertTrue(nanos <= LatencyHistogram.upperBoundOf(index));
+			assertTrue(index == 0 || nanos > LatencyHistogram.upperBoundOf(index - 1));
+		}
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 100; ++i) {
+			histogram.record(i * 1000);
+		}
+		assertEquals(100, histogram.getCount());
+		long p50 = histogram.getPercentile(50);
+		long p99 = histogram.getPercentile(99);
+		assertTrue(p50 >= 50000 && p50 < 50000 * 1.25);
+		assertTrue(p99 >= 99000 && p99 < 99000 * 1.25);
+	}
+
+	@Test
+	public void testTimedMethodsAreRecorded() throws Exception {
+		Injector injector = Guice.createInjector(new MyModule(),
+			new TimedModule(MyClass.class, MyImplementation.class));
+		MyClass o = injector.getInstance(MyClass.class);
+		assertEquals(MyImplementation.class, o.getField().getClass().getSuperclass());
+		assertEquals(4, o.getField().compute(2));
+		o.notTimed();
+		TimedHistograms histograms = injector.getInstance(TimedHistograms.class);
+		assertSame(histograms, injector.getInstance(TimedHistograms.class));
+		assertEquals(2, histograms.getHistogram(MyClass.class.getMethod("getField")).getCount());
+		assertEquals(1,
+			histograms.getHistogram(MyImplementation.class.getMethod("compute", int.class)).getCount());
+		assertNull(histograms.getHistogram(MyClass.class.getMethod("notTimed")));
+		assertTrue(histograms.report().contains("MyImplementation.compute count=1 "));
+	}
+
+	static class MyTimedSubclass extends MyImplementation {
+
+	}
+
+	static class MyOverridingSubclass extends MyImplementation {
+		@Override
+		public int compute(int value) {
+			return value * 3;
+		}
+	}
+
+	@Test
+	public void testInheritedTimedMethodsShareTheirHistogram() throws Exception {
+		Injector injector = Guice.createInjector(new TimedModule(MyTimedSubclass.class));
+		injector.getInstance(MyTimedSubclass.class).compute(1);
+		// the overriding method is not annotated, so it is not timed
+		assertEquals(3, injector.getInstance(MyOverridingSubclass.class).compute(1));
+		injector.getInstance(MyImplementation.class).compute(1);
+		assertEquals(2, injector.getInstance(TimedHistograms.class)
+				.getHistogram(MyImplementation.class.getMethod("compute", int.class)).getCount());
+	}
+
+	/**
+	 * Calls {@link MyInterface#compute(int)} in a loop, after a warm-up, and
+	 * prints the best mean time of a call, in nanoseconds: run in a new JVM for
+	 * each kind of receiver, the call site only sees one class and stays
+	 * monomorphic, as in an application where a call site always gets the same
+	 * (intercepted or not) implementation.
+	 */
+	public static class Benchmark {
+
+		static final int ITERATIONS = 5000000;
+
+		public static void main(String[] args) {
+			Injector injector;
+			switch (args[0]) {
+			case "plain":
+			case "clock":
+				injector = Guice.createInjector(new MyModule());
+				break;
+			case "intercepted":
+				injector = Guice.createInjector(new MyModule(), new AbstractModule() {
+					@Override
+					protected void configure() {
+						bindInterceptor(Matchers.any(), Matchers.annotatedWith(Timed.class),
+							invocation -> invocation.proceed());
+					}
+				});
+				break;
+			case "timed":
+				injector = Guice.createInjector(new MyModule(), new TimedModule(MyImplementation.class));
+				break;
+			default:
+				throw new IllegalArgumentException(args[0]);
+			}
+			MyInterface receiver = injector.getInstance(MyInterface.class);
+			if (args[0].equals("clock")) {
+				receiver = value -> (int) System.nanoTime();
+			}
+			long best = Long.MAX_VALUE;
+			// the first runs are the warm-up
+			for (int run = 0; run < 10; ++run) {
+				best = Math.min(best, benchmark(receiver, ITERATIONS));
+			}
+			System.out.println((double) best / ITERATIONS);
+		}
+
+		private static long benchmark(MyInterface receiver, int iterations) {
+			long sink = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; ++i) {
+				sink += receiver.compute(i);
+			}
+			long nanos = System.nanoTime() - start;
+			// prevents the loop from being eliminated
+			if (sink == 1) {
+				throw new AssertionError();
+			}
+			return nanos;
+		}
+
+	}
+
+	/**
+	 * @return the mean time of a call, in nanoseconds, measured by
+	 *         {@link Benchmark} in a new JVM
+	 */
+	private static double benchmark(String receiver) throws IOException, InterruptedException {
+		List<String> command = Arrays.asList(
+			System.getProperty("java.home") + File.separator + "bin" + File.separator + "java", "-cp",
+			System.getProperty("java.class.path"), Benchmark.class.getName(), receiver);
+		// warnings, e.g., about the reflective access of Guice on Java 9+, go to
+		// the output of the test
+		Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		String output = new String(ByteStreams.toByteArray(process.getInputStream()), StandardCharsets.UTF_8);
+		assertEquals(output, 0, process.waitFor());
+		return Double.parseDouble(output.trim());
+	}
+
+	/**
+	 * Compares the mean time of a call to a method intercepted by
+	 * {@link TimedInterceptor} with the one of the same method not intercepted
+	 * and intercepted by an interceptor that does nothing, to separate the cost
+	 * of the interception from the one of the recording.
+	 *
+	 * The recording is two calls to {@link System#nanoTime()} and an atomic
+	 * increment, without allocation nor lookup: the target of 50 ns only holds
+	 * where the clock is cheap, e.g., 20 ns per call, but a virtual machine may
+	 * take 40 ns per call or more. The recording is thus checked against the
+	 * cost of the clock on this machine, with 50 ns for the rest.
+	 */
+	@Test
+	public void testTimedOverheadBenchmark() throws Exception {
+		double plainNanos = benchmark("plain");
+		double clockNanos = benchmark("clock") - plainNanos;
+		double interceptedNanos = benchmark("intercepted");
+		double timedNanos = benchmark("timed");
+		double recordingNanos = timedNanos - interceptedNanos;
+		System.out.println(String.format(
+			"clock: %.1f ns per call, interception: %.1f ns per call, @Timed recording: %.1f ns per call", clockNanos,
+			interceptedNanos - plainNanos, recordingNanos));
+		assertTrue(recordingNanos + " ns", recordingNanos < 2 * clockNanos + 50);
+	}
+
+}